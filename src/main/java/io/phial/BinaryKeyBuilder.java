@@ -0,0 +1,57 @@
+package io.phial;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// builds keys comparable with Arrays.compareUnsigned
+public class BinaryKeyBuilder {
+    private byte[] bytes = new byte[16];
+    private int size;
+
+    public BinaryKeyBuilder appendLong(long value) {
+        this.ensureCapacity(Long.BYTES);
+        // flip the sign bit so negative values are ordered before positive ones
+        value ^= Long.MIN_VALUE;
+        for (int i = Long.BYTES - 1; i >= 0; --i) {
+            this.bytes[this.size++] = (byte) (value >>> (i * 8));
+        }
+        return this;
+    }
+
+    public BinaryKeyBuilder appendBoolean(boolean value) {
+        this.ensureCapacity(1);
+        this.bytes[this.size++] = (byte) (value ? 1 : 0);
+        return this;
+    }
+
+    // 0x00 is escaped as 0x00 0xff and the string is terminated by 0x00 0x00, so a prefix is ordered first
+    public BinaryKeyBuilder appendString(String value) {
+        var utf8 = value.getBytes(StandardCharsets.UTF_8);
+        this.ensureCapacity(utf8.length * 2 + 2);
+        for (var b : utf8) {
+            this.bytes[this.size++] = b;
+            if (b == 0) {
+                this.bytes[this.size++] = (byte) 0xff;
+            }
+        }
+        this.bytes[this.size++] = 0;
+        this.bytes[this.size++] = 0;
+        return this;
+    }
+
+    public byte[] build() {
+        return Arrays.copyOf(this.bytes, this.size);
+    }
+
+    public static byte[] encode(EntityKeyEncoder encoder, Entity entity) {
+        var builder = new BinaryKeyBuilder();
+        encoder.encode(entity, builder);
+        return builder.build();
+    }
+
+    private void ensureCapacity(int n) {
+        if (this.size + n > this.bytes.length) {
+            this.bytes = Arrays.copyOf(this.bytes, Math.max(this.bytes.length * 2, this.size + n));
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package io.phial;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+// assigns revisions to committing transactions and publishes them in order without locks
+class CommitSequencer {
+    private static final int DEFAULT_CAPACITY = 4096;
+    private static final int MAX_SPINS = 64;
+
+    private final long[] dispatchedRevisions;
+    private final long[] completedRevisions;
+    private final int mask;
+    private volatile long nextRevision = 1;
+    // the last revision whose commits and the ones of all lower revisions are enqueued
+    private volatile long dispatchedRevision;
+    private volatile long visibleRevision;
+
+    CommitSequencer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    CommitSequencer(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("capacity must be a power of 2, got " + capacity);
+        }
+        this.dispatchedRevisions = new long[capacity];
+        this.completedRevisions = new long[capacity];
+        this.mask = capacity - 1;
+    }
+
+    long getVisibleRevision() {
+        return this.visibleRevision;
+    }
+
+    long getDispatchedRevision() {
+        return this.dispatchedRevision;
+    }
+
+    long next() {
+        var revision = (long) NEXT_REVISION.getAndAdd(this, 1L);
+        // the slots of the revision in the rings are free only after the revision one lap behind is visible
+        for (int spins = 0; revision - this.visibleRevision > this.completedRevisions.length; ++spins) {
+            CommitSequencer.backOff(spins);
+        }
+        return revision;
+    }
+
+    // returns true if the dispatched revision advances
+    boolean dispatch(long revision) {
+        return this.mark(this.dispatchedRevisions, DISPATCHED_REVISION, revision);
+    }
+
+    // either committed or failed, returns true if the visible revision advances
+    boolean complete(long revision) {
+        return this.mark(this.completedRevisions, VISIBLE_REVISION, revision);
+    }
+
+    private boolean mark(long[] revisions, VarHandle watermark, long revision) {
+        REVISION.setVolatile(revisions, (int) (revision & this.mask), revision);
+        var advanced = false;
+        for (; ; ) {
+            var current = (long) watermark.getVolatile(this);
+            var next = current + 1;
+            if ((long) REVISION.getVolatile(revisions, (int) (next & this.mask)) != next) {
+                // the mark of the next revision will advance the watermark
+                return advanced;
+            }
+            if (watermark.compareAndSet(this, current, next)) {
+                advanced = true;
+            }
+        }
+    }
+
+    // spins briefly, then yields to the thread being waited for, which may not be running
+    private static void backOff(int spins) {
+        if (spins < MAX_SPINS) {
+            Thread.onSpinWait();
+        } else {
+            Thread.yield();
+        }
+    }
+
+    private static final VarHandle NEXT_REVISION;
+    private static final VarHandle DISPATCHED_REVISION;
+    private static final VarHandle VISIBLE_REVISION;
+    private static final VarHandle REVISION;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            NEXT_REVISION = lookup.findVarHandle(CommitSequencer.class, "nextRevision", long.class);
+            DISPATCHED_REVISION = lookup.findVarHandle(CommitSequencer.class, "dispatchedRevision", long.class);
+            VISIBLE_REVISION = lookup.findVarHandle(CommitSequencer.class, "visibleRevision", long.class);
+            REVISION = MethodHandles.arrayElementVarHandle(long[].class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
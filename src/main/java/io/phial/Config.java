@@ -4,6 +4,15 @@ import java.util.HashMap;
 import java.util.Map;
 
 public class Config {
+    public enum WriteConflictDetection {
+        // updates are merged over the latest version, the last committer wins
+        NONE,
+        // a transaction fails to commit if an entity it writes is committed by others after its snapshot
+        AT_COMMIT,
+        // like AT_COMMIT, and writes fail as soon as they are made if the conflicting commits are done already
+        AT_WRITE,
+    }
+
     public static class Builder {
         private final Config config = new Config();
 
@@ -22,11 +31,22 @@ public class Config {
             return this;
         }
 
+        // 1 to update secondary indexes in the committing thread
+        public Builder setIndexUpdateParallelism(int indexUpdateParallelism) {
+            this.config.indexUpdateParallelism = indexUpdateParallelism;
+            return this;
+        }
+
         public Builder setCommitBatchSize(int commitBatchSize) {
             this.config.commitBatchSize = commitBatchSize;
             return this;
         }
 
+        public Builder setWriteConflictDetection(WriteConflictDetection writeConflictDetection) {
+            this.config.writeConflictDetection = writeConflictDetection;
+            return this;
+        }
+
         public Builder setFreedMemoryGcIntervalMillis(int freedMemoryGcIntervalMillis) {
             this.config.freedMemoryGcIntervalMillis = freedMemoryGcIntervalMillis;
             return this;
@@ -84,7 +104,9 @@ public class Config {
     private int coreTaskPoolSize = Runtime.getRuntime().availableProcessors();
     private int maxTaskPoolSize = Runtime.getRuntime().availableProcessors() * 2;
     private int taskPoolKeepAliveSeconds = 60;
+    private int indexUpdateParallelism = Runtime.getRuntime().availableProcessors();
     private int commitBatchSize = 100;
+    private WriteConflictDetection writeConflictDetection = WriteConflictDetection.NONE;
     private int freedMemoryGcIntervalMillis = 100;
     private int memoryArenaNumber = Runtime.getRuntime().availableProcessors();
     private int memoryThreadCacheGcIntervalMillis = 1000;
@@ -114,7 +136,9 @@ public class Config {
         this.coreTaskPoolSize = config.coreTaskPoolSize;
         this.maxTaskPoolSize = config.maxTaskPoolSize;
         this.taskPoolKeepAliveSeconds = config.taskPoolKeepAliveSeconds;
+        this.indexUpdateParallelism = config.indexUpdateParallelism;
         this.commitBatchSize = config.commitBatchSize;
+        this.writeConflictDetection = config.writeConflictDetection;
         this.freedMemoryGcIntervalMillis = config.freedMemoryGcIntervalMillis;
         this.memoryArenaNumber = config.memoryArenaNumber;
         this.memoryThreadCacheGcIntervalMillis = config.memoryThreadCacheGcIntervalMillis;
@@ -140,10 +164,18 @@ public class Config {
         return this.maxTaskPoolSize;
     }
 
+    public int getIndexUpdateParallelism() {
+        return this.indexUpdateParallelism;
+    }
+
     public int getCommitBatchSize() {
         return this.commitBatchSize;
     }
 
+    public WriteConflictDetection getWriteConflictDetection() {
+        return this.writeConflictDetection;
+    }
+
     public int getFreedMemoryGcIntervalMillis() {
         return this.freedMemoryGcIntervalMillis;
     }
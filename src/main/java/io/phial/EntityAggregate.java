@@ -0,0 +1,52 @@
+package io.phial;
+
+import java.util.function.ToLongFunction;
+
+public class EntityAggregate {
+    static final EntityAggregate EMPTY = new EntityAggregate(0, 0, Long.MAX_VALUE, Long.MIN_VALUE);
+
+    private final long count;
+    private final long sum;
+    private final long min;
+    private final long max;
+
+    EntityAggregate(long count, long sum, long min, long max) {
+        this.count = count;
+        this.sum = sum;
+        this.min = min;
+        this.max = max;
+    }
+
+    static EntityAggregate of(Iterable<Entity> entities, ToLongFunction<Entity> valueExtractor) {
+        long count = 0;
+        long sum = 0;
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (var entity : entities) {
+            var value = valueExtractor.applyAsLong(entity);
+            ++count;
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        return new EntityAggregate(count, sum, min, max);
+    }
+
+    public long getCount() {
+        return this.count;
+    }
+
+    public long getSum() {
+        return this.sum;
+    }
+
+    // Long.MAX_VALUE if there are no entities
+    public long getMin() {
+        return this.min;
+    }
+
+    // Long.MIN_VALUE if there are no entities
+    public long getMax() {
+        return this.max;
+    }
+}
@@ -4,4 +4,7 @@ import java.util.Comparator;
 
 public interface EntityComparator extends Comparator<Entity> {
     String getKeyString(Entity entity);
+
+    // entities equal by this comparator must have the same hash, computed from the key fields
+    int hash(Entity entity);
 }
@@ -0,0 +1,33 @@
+package io.phial;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+
+public class EntityCursor {
+    private final Transaction transaction;
+    private final Spliterator<Entity> spliterator;
+    private boolean finished;
+
+    EntityCursor(Transaction transaction, Spliterator<Entity> spliterator) {
+        this.transaction = transaction;
+        this.spliterator = spliterator;
+    }
+
+    public List<Entity> next(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("negative count " + count);
+        }
+        this.transaction.checkStatus();
+        var result = new ArrayList<Entity>(Math.min(count, 1024));
+        while (!this.finished && result.size() < count) {
+            // the spliterator keeps its position between pages
+            this.finished = !this.spliterator.tryAdvance(result::add);
+        }
+        return result;
+    }
+
+    public boolean isFinished() {
+        return this.finished;
+    }
+}
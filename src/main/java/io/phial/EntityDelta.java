@@ -0,0 +1,115 @@
+package io.phial;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ObjLongConsumer;
+import java.util.function.ToLongFunction;
+
+// commutative operations applied to the latest version of an existing entity at commit, such as adding to a
+// counter, so deltas of concurrent transactions never conflict
+public class EntityDelta<E extends AbstractEntity> extends AbstractEntity implements EntityUpdate {
+    // an update of the same transaction merged before the operations, or null
+    private final EntityUpdate update;
+    private final List<Consumer<E>> operations;
+
+    public EntityDelta(long id) {
+        if (id <= 0) {
+            throw new IllegalArgumentException("a delta needs the id of an existing entity, got " + id);
+        }
+        this.id = id;
+        this.update = null;
+        this.operations = new ArrayList<>();
+    }
+
+    private EntityDelta(long id, EntityUpdate update, List<Consumer<E>> operations) {
+        this.id = id;
+        this.update = update;
+        this.operations = operations;
+    }
+
+    public EntityDelta<E> add(ToLongFunction<E> getter, ObjLongConsumer<E> setter, long value) {
+        this.operations.add(entity -> setter.accept(entity, getter.applyAsLong(entity) + value));
+        return this;
+    }
+
+    public EntityDelta<E> increment(ToLongFunction<E> getter, ObjLongConsumer<E> setter) {
+        return this.add(getter, setter, 1);
+    }
+
+    public EntityDelta<E> min(ToLongFunction<E> getter, ObjLongConsumer<E> setter, long value) {
+        this.operations.add(entity -> setter.accept(entity, Math.min(getter.applyAsLong(entity), value)));
+        return this;
+    }
+
+    public EntityDelta<E> max(ToLongFunction<E> getter, ObjLongConsumer<E> setter, long value) {
+        this.operations.add(entity -> setter.accept(entity, Math.max(getter.applyAsLong(entity), value)));
+        return this;
+    }
+
+    // drops the oldest elements beyond the capacity, the list is copied
+    public <T> EntityDelta<E> append(Function<E, List<T>> getter,
+                                     BiConsumer<E, List<T>> setter,
+                                     T element,
+                                     int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("invalid capacity " + capacity);
+        }
+        this.operations.add(entity -> {
+            var list = getter.apply(entity);
+            var result = new ArrayList<T>(list == null ? 0 : list.size() + 1);
+            if (list != null) {
+                result.addAll(list.subList(Math.max(list.size() + 1 - capacity, 0), list.size()));
+            }
+            result.add(element);
+            setter.accept(entity, result);
+        });
+        return this;
+    }
+
+    EntityDelta<E> andThen(EntityDelta<E> delta) {
+        var operations = new ArrayList<>(this.operations);
+        operations.addAll(delta.operations);
+        return new EntityDelta<>(this.id, this.update, operations);
+    }
+
+    EntityDelta<E> withUpdate(EntityUpdate update) {
+        return new EntityDelta<>(this.id, update, this.operations);
+    }
+
+    EntityUpdate getUpdate() {
+        return this.update;
+    }
+
+    // a copy not affected by operations added to this delta later
+    EntityDelta<E> copy() {
+        return new EntityDelta<>(this.id, this.update, new ArrayList<>(this.operations));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Entity merge(Entity base) {
+        if (this.update != null) {
+            base = ((AbstractEntity) this.update).merge(base);
+        }
+        if (base == null) {
+            return null;
+        }
+        if (((AbstractEntity) base).isNull()) {
+            // the entity is removed and stays removed
+            var result = new NullEntity();
+            result.setId(this.id);
+            result.setRevision(this.revision);
+            return result;
+        }
+        var result = (E) ((AbstractEntity) base).clone();
+        result.setRevision(this.revision);
+        result.setNextRevisionEntity(null);
+        for (var operation : this.operations) {
+            operation.accept(result);
+        }
+        return result;
+    }
+}
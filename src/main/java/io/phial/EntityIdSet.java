@@ -0,0 +1,62 @@
+package io.phial;
+
+// an open addressing set of entity ids. ids are positive, so zero marks empty slots
+class EntityIdSet {
+    private long[] slots = new long[8];
+    private int size;
+
+    boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    boolean contains(long id) {
+        var slots = this.slots;
+        int mask = slots.length - 1;
+        for (int i = EntityIdSet.hash(id) & mask; ; i = (i + 1) & mask) {
+            var slot = slots[i];
+            if (slot == 0) {
+                return false;
+            }
+            if (slot == id) {
+                return true;
+            }
+        }
+    }
+
+    void add(long id) {
+        if (id <= 0) {
+            throw new IllegalArgumentException("invalid id " + id);
+        }
+        if ((this.size + 1) * 2 > this.slots.length) {
+            var slots = this.slots;
+            this.slots = new long[slots.length * 2];
+            for (var slot : slots) {
+                if (slot != 0) {
+                    this.insert(slot);
+                }
+            }
+        }
+        if (this.insert(id)) {
+            ++this.size;
+        }
+    }
+
+    private boolean insert(long id) {
+        int mask = this.slots.length - 1;
+        for (int i = EntityIdSet.hash(id) & mask; ; i = (i + 1) & mask) {
+            var slot = this.slots[i];
+            if (slot == id) {
+                return false;
+            }
+            if (slot == 0) {
+                this.slots[i] = id;
+                return true;
+            }
+        }
+    }
+
+    private static int hash(long id) {
+        var h = id * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
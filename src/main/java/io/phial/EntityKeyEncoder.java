@@ -0,0 +1,6 @@
+package io.phial;
+
+// encodes keys to bytes ordered by Arrays.compareUnsigned as the entity comparator orders them
+public interface EntityKeyEncoder {
+    void encode(Entity entity, BinaryKeyBuilder builder);
+}
@@ -0,0 +1,10 @@
+package io.phial;
+
+// converts entities to and from off-heap memory, the id and the revision are stored by the caller
+public interface EntitySerializer {
+    int getSerializedSize(Entity entity);
+
+    void serialize(Entity entity, long address);
+
+    Entity deserialize(long address, int size);
+}
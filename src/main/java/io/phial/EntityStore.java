@@ -4,18 +4,37 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 
 public class EntityStore {
     private final Map<Class<?>, EntityTable> tables = new ConcurrentHashMap<>();
+    private final ForkJoinPool indexUpdatePool;
+
+    public EntityStore() {
+        this(null);
+    }
+
+    // tables update secondary indexes in parallel in the pool, or one by one if it is null
+    public EntityStore(ForkJoinPool indexUpdatePool) {
+        this.indexUpdatePool = indexUpdatePool;
+    }
 
     public EntityTable createTable(Class<?> clazz) {
-        var table = new EntityTable(clazz.getSimpleName());
+        return this.createTable(clazz, null);
+    }
+
+    public EntityTable createTable(Class<?> clazz, OffHeapEntityStorage offHeapEntityStorage) {
+        var table = new EntityTable(clazz.getSimpleName(), offHeapEntityStorage, this.indexUpdatePool);
         if (this.tables.putIfAbsent(clazz, table) != null) {
             throw new IllegalArgumentException("table " + clazz.getSimpleName() + " exists");
         }
         return table;
     }
 
+    public int getTableCount() {
+        return this.tables.size();
+    }
+
     public Collection<EntityTable> getAllTables() {
         return Collections.unmodifiableCollection(tables.values());
     }
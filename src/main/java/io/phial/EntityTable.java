@@ -1,33 +1,180 @@
 package io.phial;
 
+import io.phial.memory.FreedMemoryGcManager;
+import io.phial.memory.MemoryArena;
+import io.phial.specs.EntityTableIndexSpec;
+
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class EntityTable {
+    // commits with fewer entities update secondary indexes one by one in the committing thread
+    private static final int PARALLEL_INDEX_UPDATE_THRESHOLD = 32;
+    private static final int INDEX_BUILD_BATCH_SIZE = 65536;
+
     private final AtomicLong nextId = new AtomicLong(1);
 
-    private final List<EntityTableIndex> indexes = new ArrayList<>();
+    // dropped indexes are replaced by null, so that the ids of other indexes do not change
+    private final List<EntityTableIndex> indexes = new CopyOnWriteArrayList<>();
+    // the least snapshot revision each index can be read at, indexes built online miss older versions
+    private final List<Long> indexRevisions = new CopyOnWriteArrayList<>();
     private final String name;
+    private final OffHeapEntityStorage offHeapEntityStorage;
+    // updates secondary indexes of large commits in parallel, null to update them in the committing thread
+    private final ForkJoinPool indexUpdatePool;
+    private boolean supersededEntitiesTracked;
+
+    // held by commits, and by index creation and dropping to change indexes between commits
+    private final Object indexLock = new Object();
+    private long lastCommittedRevision;
+    private final List<IndexBuild> indexBuilds = new ArrayList<>();
+
+    // an index being built online, commits after the snapshot it is built from are queued and applied later.
+    // its id is reserved by a null index until it is built
+    private static class IndexBuild {
+        final EntityTableIndex index;
+        final int indexId;
+        final Queue<CommittedEntities> committedEntitiesQueue = new ConcurrentLinkedQueue<>();
+        volatile boolean cancelled;
+
+        IndexBuild(EntityTableIndex index, int indexId) {
+            this.index = index;
+            this.indexId = indexId;
+        }
+    }
+
+    private static class CommittedEntities {
+        final long revision;
+        final List<Entity> entities;
+        final List<Entity> supersededEntities;
+
+        CommittedEntities(long revision, List<Entity> entities, List<Entity> supersededEntities) {
+            this.revision = revision;
+            this.entities = entities;
+            this.supersededEntities = supersededEntities;
+        }
+    }
+
+    private static class PendingCommit {
+        final int position;
+        final long transactionId;
+        final long revision;
+        final List<Entity> entities = new ArrayList<>();
+        // the previous revisions of the entities, or null for new ones
+        final List<Entity> previousEntities = new ArrayList<>();
+        final List<Entity> supersededEntities = new ArrayList<>();
+        final List<Entity> mainIndexEntities = new ArrayList<>();
+
+        PendingCommit(int position, long transactionId, long revision) {
+            this.position = position;
+            this.transactionId = transactionId;
+            this.revision = revision;
+        }
+    }
+
+    // puts the entities of a commit to a secondary index, and stops at the first duplicated key
+    private static class SecondaryIndexUpdate extends RecursiveAction {
+        final EntityTableIndex index;
+        final List<Entity> entities;
+        final List<Entity> previousEntities;
+        int count;
+        DuplicatedKeyException exception;
+
+        SecondaryIndexUpdate(EntityTableIndex index, List<Entity> entities, List<Entity> previousEntities) {
+            this.index = index;
+            this.entities = entities;
+            this.previousEntities = previousEntities;
+        }
+
+        @Override
+        protected void compute() {
+            var batch = new ArrayList<Entity>();
+            for (int i = 0; i < this.entities.size(); ++i) {
+                if (this.isKeyChanged(i)) {
+                    batch.add(this.entities.get(i));
+                }
+            }
+            if (this.index instanceof EntityTableSortedIndex) {
+                batch.sort(this.index.getEntityComparator());
+            }
+            try {
+                this.index.putAll(batch);
+                this.count = this.entities.size();
+                return;
+            } catch (DuplicatedKeyException e) {
+                // take back the entities put before the failure, and find the first duplicated key in the order of
+                // entities rather than keys
+                for (var entity : batch) {
+                    if (this.index.get(0, Long.MAX_VALUE, entity) == entity) {
+                        this.index.remove(entity);
+                    }
+                }
+            }
+            for (; this.count < this.entities.size(); ++this.count) {
+                if (this.isKeyChanged(this.count)) {
+                    try {
+                        this.index.put(this.entities.get(this.count), false, false);
+                    } catch (DuplicatedKeyException e) {
+                        this.exception = e;
+                        return;
+                    }
+                }
+            }
+        }
+
+        void revert() {
+            for (int i = 0; i < this.count; ++i) {
+                if (this.isKeyChanged(i)) {
+                    this.index.remove(this.entities.get(i));
+                }
+            }
+        }
+
+        // an index entry with an unchanged key reaches the new revision by the revision link
+        private boolean isKeyChanged(int i) {
+            var previous = this.previousEntities.get(i);
+            return previous == null || this.index.getEntityComparator().compare(previous, this.entities.get(i)) != 0;
+        }
+    }
 
     private class TransactionPatch {
-        final List<TransactionEntityTableSkipListIndex> indexes = new ArrayList<>();
+        final List<EntityTableIndex> indexes = new ArrayList<>();
+        EntityTableSortedIndex mainPatchIndex;
+        final EntityIdSet modifiedIds = new EntityIdSet();
+        // ids of the entities with deltas in the main patch, applied to the entities read through any index
+        final EntityIdSet deltaIds = new EntityIdSet();
+        // secondary indexes are restored by the failed commit, only the main index is left to roll back
+        boolean secondaryIndexesReverted;
+        List<EntityTableRead> reads;
+        long snapshotRevision;
+        Config.WriteConflictDetection writeConflictDetection = Config.WriteConflictDetection.NONE;
 
         TransactionPatch() {
-            EntityTableSortedIndex mainPatchIndex = null;
             for (var index : EntityTable.this.indexes) {
-                if (index instanceof EntityTableSortedIndex) {
+                if (index == null) {
+                    this.indexes.add(null);
+                } else if (index instanceof EntityTableSortedIndex) {
                     var transactionEntityTableIndex = new TransactionEntityTableSkipListIndex(
-                            (EntityTableSortedIndex) index, mainPatchIndex);
+                            (EntityTableSortedIndex) index, this.indexes.isEmpty() ? null : this.modifiedIds);
                     this.indexes.add(transactionEntityTableIndex);
-                    if (mainPatchIndex == null) {
-                        mainPatchIndex = transactionEntityTableIndex.getPatch();
+                    if (this.mainPatchIndex == null) {
+                        this.mainPatchIndex = transactionEntityTableIndex.getPatch();
                     }
+                } else {
+                    this.indexes.add(new TransactionEntityTableHashIndex(index, this.modifiedIds));
                 }
             }
         }
@@ -36,7 +183,17 @@ public class EntityTable {
     private final Map<Long, TransactionPatch> transactionPatches = new ConcurrentHashMap<>();
 
     public EntityTable(String name) {
+        this(name, null);
+    }
+
+    public EntityTable(String name, OffHeapEntityStorage offHeapEntityStorage) {
+        this(name, offHeapEntityStorage, null);
+    }
+
+    public EntityTable(String name, OffHeapEntityStorage offHeapEntityStorage, ForkJoinPool indexUpdatePool) {
         this.name = name;
+        this.offHeapEntityStorage = offHeapEntityStorage;
+        this.indexUpdatePool = indexUpdatePool;
         var comp = new EntityComparator() {
             @Override
             public String getKeyString(Entity entity) {
@@ -47,15 +204,37 @@ public class EntityTable {
             public int compare(Entity entity1, Entity entity2) {
                 return Long.compare(entity1.getId(), entity2.getId());
             }
+
+            @Override
+            public int hash(Entity entity) {
+                return Long.hashCode(entity.getId());
+            }
         };
-        this.indexes.add(new EntityTableSkipListIndex(true, comp));
+        this.indexes.add(new EntityTableIdIndex(comp, offHeapEntityStorage));
+        this.indexRevisions.add(0L);
     }
 
     public String getName() {
         return this.name;
     }
 
-    public void createIndex(EntityComparator comparator, boolean unique) {
+    public int createIndex(EntityComparator comparator, boolean unique, EntityTableIndexSpec.Type type) {
+        return this.createIndex(new EntityTableIndexSpec(unique, comparator, type), null, null);
+    }
+
+    // the index is filled from a snapshot while commits go on, and is only visible after it catches up with them
+    public int createIndex(EntityTableIndexSpec indexSpec,
+                           MemoryArena memoryArena,
+                           FreedMemoryGcManager freedMemoryGcManager) {
+        var comparator = indexSpec.getRecordComparator();
+        var unique = indexSpec.isUnique();
+        var type = indexSpec.getType();
+        var keyEncoder = indexSpec.getKeyEncoder();
+        var valueExtractor = indexSpec.getValueExtractor();
+        if (this.offHeapEntityStorage != null) {
+            // secondary indexes need entities on heap to compare keys
+            throw new IllegalArgumentException("table " + this.name + " with off-heap storage can not be indexed");
+        }
         var comp = unique ? comparator : new EntityComparator() {
             @Override
             public String getKeyString(Entity entity) {
@@ -70,23 +249,199 @@ public class EntityTable {
                 }
                 return c;
             }
+
+            // the id is left out, so all entities of a key are found in the same bucket of hash indexes
+            @Override
+            public int hash(Entity entity) {
+                return comparator.hash(entity);
+            }
         };
-        this.indexes.add(new EntityTableSkipListIndex(unique, comp));
+        if (!unique && keyEncoder != null) {
+            var encoder = keyEncoder;
+            keyEncoder = (entity, builder) -> {
+                encoder.encode(entity, builder);
+                builder.appendLong(entity.getId());
+            };
+        }
+        if (valueExtractor != null && type != EntityTableIndexSpec.Type.BP_TREE) {
+            throw new IllegalArgumentException("index type " + type + " does not aggregate values");
+        }
+        EntityTableIndex index;
+        switch (type) {
+            case SKIP_LIST:
+                index = new EntityTableSkipListIndex(unique, comp, indexSpec.getLongKeyExtractor(), keyEncoder);
+                break;
+            case BP_TREE:
+                index = new EntityTableBpTreeIndex(unique, comp, indexSpec.getLongKeyExtractor(), valueExtractor);
+                break;
+            case HASH:
+                index = new EntityTableHashIndex(unique, comp);
+                break;
+            case OFF_HEAP_SKIP_LIST:
+                if (memoryArena == null || freedMemoryGcManager == null) {
+                    throw new IllegalArgumentException("index type " + type + " requires a memory arena");
+                }
+                index = new EntityTableOffHeapSkipListIndex(unique, comp, memoryArena, freedMemoryGcManager);
+                break;
+            default:
+                throw new IllegalArgumentException("unsupported index type " + type);
+        }
+        return this.buildIndex(index);
     }
 
-    public long getNextId() {
-        return this.nextId.getAndIncrement();
+    public void dropIndex(int indexId) {
+        synchronized (this.indexLock) {
+            var indexBuild = this.getIndexBuild(indexId);
+            if (indexBuild != null) {
+                // the build stops at its next batch
+                indexBuild.cancelled = true;
+                this.indexBuilds.remove(indexBuild);
+                return;
+            }
+            this.getIndex(indexId);
+            if (indexId == 1) {
+                throw new IllegalArgumentException("the primary index of table " + this.name + " can not be dropped");
+            }
+            this.indexes.set(indexId - 1, null);
+        }
     }
 
-    public Entity getByIndex(long transactionId, int indexId, long snapshotRevision, Entity key) {
+    public EntityTableIndexStatistics getIndexStatistics(int indexId) {
+        return this.getIndex(indexId).getStatistics();
+    }
+
+    private int buildIndex(EntityTableIndex index) {
+        IndexBuild indexBuild;
+        long snapshotRevision;
+        synchronized (this.indexLock) {
+            snapshotRevision = this.lastCommittedRevision;
+            indexBuild = new IndexBuild(index, this.indexes.size() + 1);
+            this.indexes.add(null);
+            this.indexRevisions.add(snapshotRevision);
+            this.indexBuilds.add(indexBuild);
+            if (index instanceof EntityTableBpTreeIndex) {
+                this.supersededEntitiesTracked = true;
+            }
+        }
+        try {
+            // fill the index from the snapshot in sorted runs, so that the snapshot is never held on heap
+            var mainIndex = (EntityTableSortedIndex) this.indexes.get(0);
+            var entities = new ArrayList<Entity>();
+            var iterator = mainIndex.query(0, snapshotRevision, null, false, null, false).iterator();
+            while (iterator.hasNext()) {
+                var entity = iterator.next();
+                if (!((AbstractEntity) entity).isNull()) {
+                    entities.add(entity);
+                }
+                if (entities.size() == INDEX_BUILD_BATCH_SIZE || !iterator.hasNext()) {
+                    this.checkIndexBuild(indexBuild);
+                    entities.sort(index.getEntityComparator());
+                    index.putAll(entities);
+                    entities.clear();
+                }
+            }
+            // catch up with commits without blocking them, then apply the rest with commits blocked
+            EntityTable.applyCommittedEntities(indexBuild);
+            synchronized (this.indexLock) {
+                this.checkIndexBuild(indexBuild);
+                EntityTable.applyCommittedEntities(indexBuild);
+                this.indexBuilds.remove(indexBuild);
+                this.indexes.set(indexBuild.indexId - 1, index);
+                return indexBuild.indexId;
+            }
+        } catch (RuntimeException e) {
+            // the reserved id is left as a dropped index
+            synchronized (this.indexLock) {
+                this.indexBuilds.remove(indexBuild);
+            }
+            if (e instanceof DuplicatedKeyException) {
+                throw new DuplicatedKeyException(this.name + " " + e.getMessage());
+            }
+            throw e;
+        }
+    }
+
+    private void checkIndexBuild(IndexBuild indexBuild) {
+        if (indexBuild.cancelled) {
+            throw new IllegalStateException(
+                    "index " + indexBuild.indexId + " of table " + this.name + " is dropped while it is built");
+        }
+    }
+
+    private IndexBuild getIndexBuild(int indexId) {
+        synchronized (this.indexLock) {
+            for (var indexBuild : this.indexBuilds) {
+                if (indexBuild.indexId == indexId) {
+                    return indexBuild;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static void applyCommittedEntities(IndexBuild indexBuild) {
+        var index = indexBuild.index;
+        for (; ; ) {
+            var committedEntities = indexBuild.committedEntitiesQueue.poll();
+            if (committedEntities == null) {
+                return;
+            }
+            for (var entity : committedEntities.entities) {
+                index.put(entity, false, false);
+            }
+            if (index instanceof EntityTableSortedIndex) {
+                for (var entity : committedEntities.supersededEntities) {
+                    ((EntityTableSortedIndex) index).supersede(entity, committedEntities.revision);
+                }
+            }
+        }
+    }
+
+    private EntityTableIndex getIndex(int indexId) {
+        if (indexId < 1 || indexId > this.indexes.size()) {
+            throw new IllegalArgumentException("index " + indexId + " of table " + this.name + " does not exist");
+        }
+        var index = this.indexes.get(indexId - 1);
+        if (index == null) {
+            if (this.getIndexBuild(indexId) != null) {
+                throw new IllegalStateException("index " + indexId + " of table " + this.name + " is being built");
+            }
+            throw new IllegalArgumentException("index " + indexId + " of table " + this.name + " is dropped");
+        }
+        return index;
+    }
+
+    private EntityTableIndex getIndex(long transactionId, int indexId, long snapshotRevision) {
+        var index = this.getIndex(indexId);
+        if (snapshotRevision < this.indexRevisions.get(indexId - 1)) {
+            throw new IllegalStateException(
+                    "index " + indexId + " of table " + this.name + " is not built at revision " + snapshotRevision);
+        }
         var transactionPatch = this.getTransactionPatch(transactionId, false);
-        EntityTableIndex index;
         if (transactionPatch == null) {
-            index = this.indexes.get(indexId - 1);
-        } else {
-            index = transactionPatch.indexes.get(indexId - 1);
+            return index;
+        }
+        if (indexId > transactionPatch.indexes.size() || transactionPatch.indexes.get(indexId - 1) == null) {
+            throw new IllegalStateException(
+                    "index " + indexId + " of table " + this.name + " is created after the transaction modified it");
         }
-        return index.get(transactionId, snapshotRevision, key);
+        return transactionPatch.indexes.get(indexId - 1);
+    }
+
+    long getLastCommittedRevision() {
+        synchronized (this.indexLock) {
+            return this.lastCommittedRevision;
+        }
+    }
+
+    public long getNextId() {
+        return this.nextId.getAndIncrement();
+    }
+
+    public Entity getByIndex(long transactionId, int indexId, long snapshotRevision, Entity key) {
+        var index = this.getIndex(transactionId, indexId, snapshotRevision);
+        return this.resolveDelta(
+                transactionId, snapshotRevision, this.load(index.get(transactionId, snapshotRevision, key)));
     }
 
     public Stream<Entity> queryByIndex(long transactionId,
@@ -96,90 +451,677 @@ public class EntityTable {
                                        boolean fromInclusive,
                                        Entity to,
                                        boolean toInclusive) {
-        var transactionPatch = this.getTransactionPatch(transactionId, false);
-        EntityTableSortedIndex index;
-        if (transactionPatch == null) {
-            index = (EntityTableSortedIndex) this.indexes.get(indexId - 1);
+        return this.queryByIndex(
+                transactionId, indexId, snapshotRevision, from, fromInclusive, to, toInclusive, false, 0, -1);
+    }
+
+    // offset and limit count visible entities, the scan stops as soon as the limit is reached
+    public Stream<Entity> queryByIndex(long transactionId,
+                                       int indexId,
+                                       long snapshotRevision,
+                                       Entity from,
+                                       boolean fromInclusive,
+                                       Entity to,
+                                       boolean toInclusive,
+                                       boolean descending,
+                                       long offset,
+                                       long limit) {
+        var index = this.getIndex(transactionId, indexId, snapshotRevision);
+        if (!index.isUnique()) {
+            from = EntityTable.getBound(from, fromInclusive ? 0 : Long.MAX_VALUE);
+            to = EntityTable.getBound(to, toInclusive ? Long.MAX_VALUE : 0);
+        }
+        Stream<Entity> stream;
+        if (index instanceof EntityTableSortedIndex) {
+            var sortedIndex = (EntityTableSortedIndex) index;
+            stream = descending
+                    ? sortedIndex.queryDescending(transactionId, snapshotRevision, from, fromInclusive, to, toInclusive)
+                    : sortedIndex.query(transactionId, snapshotRevision, from, fromInclusive, to, toInclusive);
         } else {
-            index = transactionPatch.indexes.get(indexId - 1);
+            this.checkSingleKey(index, indexId, from, fromInclusive, to, toInclusive);
+            stream = index.queryKey(transactionId, snapshotRevision, from, to);
+        }
+        stream = stream.map(entity -> this.resolveDelta(transactionId, snapshotRevision, this.load(entity)))
+                .filter(entity -> entity != null && !((AbstractEntity) entity).isNull());
+        if (offset > 0) {
+            stream = stream.skip(offset);
+        }
+        if (limit >= 0) {
+            stream = stream.limit(limit);
         }
+        return stream;
+    }
+
+    // order statistics are kept by the counters of B+-tree indexes only, and corrected with the patch
+    public long countByIndex(long transactionId,
+                             int indexId,
+                             long snapshotRevision,
+                             Entity from,
+                             boolean fromInclusive,
+                             Entity to,
+                             boolean toInclusive) {
+        var transactionIndex = this.getSortedIndex(transactionId, indexId, snapshotRevision);
+        var index = this.getCountedIndex(indexId, snapshotRevision);
         if (!index.isUnique()) {
-            if (from != null) {
-                from = ((AbstractEntity) from).clone();
-                ((AbstractEntity) from).setId(fromInclusive ? 0 : Long.MAX_VALUE);
+            from = EntityTable.getBound(from, fromInclusive ? 0 : Long.MAX_VALUE);
+            to = EntityTable.getBound(to, toInclusive ? Long.MAX_VALUE : 0);
+        }
+        var count = index.count(0, snapshotRevision, from, fromInclusive, to, toInclusive);
+        if (transactionIndex == index) {
+            return count;
+        }
+        var comparator = index.getEntityComparator();
+        for (var entity : this.getShadowedEntities(transactionId, indexId, snapshotRevision)) {
+            if (EntityTable.isInRange(comparator, entity, from, fromInclusive, to, toInclusive)) {
+                --count;
+            }
+        }
+        return count + this.getPatchEntities(
+                transactionId, transactionIndex, snapshotRevision, from, fromInclusive, to, toInclusive).size();
+    }
+
+    public long rankByIndex(long transactionId, int indexId, long snapshotRevision, Entity key) {
+        return this.countByIndex(transactionId, indexId, snapshotRevision, null, false, key, false);
+    }
+
+    public Entity selectByIndex(long transactionId, int indexId, long snapshotRevision, long rank) {
+        if (rank < 0) {
+            throw new IllegalArgumentException("negative rank " + rank);
+        }
+        var transactionIndex = this.getSortedIndex(transactionId, indexId, snapshotRevision);
+        var index = this.getCountedIndex(indexId, snapshotRevision);
+        if (transactionIndex == index) {
+            return this.load(index.select(0, snapshotRevision, rank));
+        }
+        // the entities of the patch are placed among the snapshot entities by their ranks in the snapshot
+        var shadowedEntities = this.getShadowedEntities(transactionId, indexId, snapshotRevision);
+        var patchEntities = this.getPatchEntities(
+                transactionId, transactionIndex, snapshotRevision, null, false, null, false);
+        var comparator = index.getEntityComparator();
+        int shadowedCount = 0;
+        for (int i = 0; i < patchEntities.size(); ++i) {
+            var entity = patchEntities.get(i);
+            while (shadowedCount < shadowedEntities.size()
+                    && comparator.compare(shadowedEntities.get(shadowedCount), entity) < 0) {
+                ++shadowedCount;
+            }
+            var position = index.rank(0, snapshotRevision, entity) - shadowedCount + i;
+            if (rank == position) {
+                return entity;
+            }
+            if (rank < position) {
+                return this.selectUnshadowed(transactionId, index, snapshotRevision, shadowedEntities, rank - i);
             }
-            if (to != null) {
-                to = ((AbstractEntity) to).clone();
-                ((AbstractEntity) to).setId(toInclusive ? Long.MAX_VALUE : 0);
+        }
+        return this.selectUnshadowed(
+                transactionId, index, snapshotRevision, shadowedEntities, rank - patchEntities.size());
+    }
+
+    private Entity selectUnshadowed(long transactionId,
+                                    EntityTableSortedIndex index,
+                                    long snapshotRevision,
+                                    List<Entity> shadowedEntities,
+                                    long rank) {
+        for (var entity : shadowedEntities) {
+            if (index.rank(0, snapshotRevision, entity) > rank) {
+                break;
             }
+            ++rank;
         }
-        return index.query(transactionId, snapshotRevision, from, fromInclusive, to, toInclusive)
-                .filter(entity -> !((AbstractEntity) entity).isNull());
+        return this.resolveDelta(transactionId, snapshotRevision, this.load(index.select(0, snapshotRevision, rank)));
+    }
+
+    private EntityTableSortedIndex getCountedIndex(int indexId, long snapshotRevision) {
+        var index = this.getSortedIndex(0, indexId, snapshotRevision);
+        if (!(index instanceof EntityTableBpTreeIndex)) {
+            throw new IllegalArgumentException("index " + indexId + " of table " + this.name + " is "
+                    + EntityTable.getIndexKind(index) + ", only " + EntityTableIndexSpec.Type.BP_TREE
+                    + " indexes maintain order statistics");
+        }
+        return index;
+    }
+
+    private static String getIndexKind(EntityTableIndex index) {
+        if (index instanceof EntityTableIdIndex) {
+            return "the id index";
+        }
+        if (index instanceof EntityTableSkipListIndex) {
+            return "a " + EntityTableIndexSpec.Type.SKIP_LIST + " index";
+        }
+        if (index instanceof EntityTableOffHeapSkipListIndex) {
+            return "an " + EntityTableIndexSpec.Type.OFF_HEAP_SKIP_LIST + " index";
+        }
+        return "a " + index.getClass().getSimpleName();
+    }
+
+    private List<Entity> getShadowedEntities(long transactionId, int indexId, long snapshotRevision) {
+        var transactionPatch = this.getTransactionPatch(transactionId, false);
+        var mainIndex = this.indexes.get(0);
+        var entities = new ArrayList<Entity>();
+        transactionPatch.mainPatchIndex.query(transactionId, snapshotRevision, null, false, null, false)
+                .filter(entity -> indexId == 1 || transactionPatch.modifiedIds.contains(entity.getId()))
+                .forEach(entity -> {
+                    var base = (AbstractEntity) this.load(mainIndex.get(0, snapshotRevision, entity));
+                    if (base != null && !base.isNull()) {
+                        entities.add(base);
+                    }
+                });
+        entities.sort(this.getIndex(indexId).getEntityComparator());
+        return entities;
+    }
+
+    private List<Entity> getPatchEntities(long transactionId,
+                                          EntityTableSortedIndex transactionIndex,
+                                          long snapshotRevision,
+                                          Entity from,
+                                          boolean fromInclusive,
+                                          Entity to,
+                                          boolean toInclusive) {
+        return ((TransactionEntityTableSkipListIndex) transactionIndex).getPatch()
+                .query(0, snapshotRevision, from, fromInclusive, to, toInclusive)
+                .map(entity -> this.resolveDelta(transactionId, snapshotRevision, entity))
+                .filter(entity -> entity != null && !((AbstractEntity) entity).isNull())
+                .collect(Collectors.toList());
+    }
+
+    private static boolean isInRange(EntityComparator comparator,
+                                     Entity entity,
+                                     Entity from,
+                                     boolean fromInclusive,
+                                     Entity to,
+                                     boolean toInclusive) {
+        if (from != null) {
+            var c = comparator.compare(entity, from);
+            if (c < 0 || c == 0 && !fromInclusive) {
+                return false;
+            }
+        }
+        if (to != null) {
+            var c = comparator.compare(entity, to);
+            return c < 0 || c == 0 && toInclusive;
+        }
+        return true;
+    }
+
+    public EntityAggregate aggregateByIndex(long transactionId,
+                                            int indexId,
+                                            long snapshotRevision,
+                                            Entity from,
+                                            boolean fromInclusive,
+                                            Entity to,
+                                            boolean toInclusive) {
+        var index = this.getSortedIndex(transactionId, indexId, snapshotRevision);
+        if (!index.isUnique()) {
+            from = EntityTable.getBound(from, fromInclusive ? 0 : Long.MAX_VALUE);
+            to = EntityTable.getBound(to, toInclusive ? Long.MAX_VALUE : 0);
+        }
+        return index.aggregate(transactionId, snapshotRevision, from, fromInclusive, to, toInclusive);
     }
 
     public void put(long transactionId, List<EntityUpdate> entities) {
         var transactionPatch = this.getTransactionPatch(transactionId, true);
-        var mainIndex = transactionPatch.indexes.get(0);
+        if (transactionPatch.writeConflictDetection == Config.WriteConflictDetection.AT_WRITE) {
+            // check all entities before any of them is put, a failed write leaves the patch unchanged
+            for (var entity : entities) {
+                if (entity.getId() != 0 && !(entity instanceof EntityDelta)) {
+                    this.checkWriteConflict(transactionPatch, transactionId, entity.getId());
+                }
+            }
+        }
         for (var entity : entities) {
+            if (entity instanceof EntityDelta) {
+                this.putDelta(transactionPatch, (EntityDelta<?>) entity);
+                continue;
+            }
             ((AbstractEntity) entity).setRevision(0);
             var id = entity.getId();
             if (id == 0) {
                 ((AbstractEntity) entity).setId(this.nextId.getAndIncrement());
             }
-            entity = (EntityUpdate) ((AbstractEntity) entity).clone();
-            for (var index : transactionPatch.indexes) {
+            this.putEntity(transactionPatch, (EntityUpdate) ((AbstractEntity) entity).clone());
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void putEntity(TransactionPatch transactionPatch, EntityUpdate entity) {
+        var mainIndex = transactionPatch.indexes.get(0);
+        var written = transactionPatch.mainPatchIndex.get(0, Long.MAX_VALUE, entity);
+        transactionPatch.modifiedIds.add(entity.getId());
+        for (var index : transactionPatch.indexes) {
+            if (index == mainIndex && written instanceof EntityDelta) {
+                // the operations of an earlier delta are applied after the update
+                EntityTable.linkDeltaUpdate(written, entity);
+                index.put(((EntityDelta) written).withUpdate(entity), false, false);
+            } else if (index != null) {
                 index.put(entity, index == mainIndex, false);
             }
         }
     }
 
+    // deltas are kept in the main index of the patch only, and combined with earlier writes of the same entity
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void putDelta(TransactionPatch transactionPatch, EntityDelta delta) {
+        delta = delta.copy();
+        delta.setRevision(0);
+        var written = (AbstractEntity) transactionPatch.mainPatchIndex.get(0, Long.MAX_VALUE, delta);
+        if (written instanceof EntityDelta) {
+            delta = ((EntityDelta) written).andThen(delta);
+        } else if (written != null && written.isNull()) {
+            throw new IllegalStateException(
+                    "entity " + delta.getId() + " of table " + this.name + " is removed by the transaction");
+        } else if (written != null) {
+            delta = delta.withUpdate((EntityUpdate) written);
+        }
+        transactionPatch.deltaIds.add(delta.getId());
+        transactionPatch.indexes.get(0).put(delta, false, false);
+    }
+
+    // secondary indexes of the patch keep the update of a delta, which is linked to the entity replacing the delta
+    private static void linkDeltaUpdate(Entity written, Entity entity) {
+        if (written instanceof EntityDelta && ((EntityDelta<?>) written).getUpdate() != null) {
+            ((AbstractEntity) ((EntityDelta<?>) written).getUpdate()).setNextRevisionEntity(entity);
+        }
+    }
+
+    // applies the delta written by the transaction to the entity in its snapshot
+    private Entity resolveDelta(long transactionId, long snapshotRevision, Entity entity) {
+        if (entity == null) {
+            return null;
+        }
+        var transactionPatch = this.getTransactionPatch(transactionId, false);
+        if (transactionPatch == null || !transactionPatch.deltaIds.contains(entity.getId())) {
+            return entity;
+        }
+        var delta = transactionPatch.mainPatchIndex.get(0, Long.MAX_VALUE, entity);
+        if (!(delta instanceof EntityDelta)) {
+            return entity;
+        }
+        var base = this.load(this.indexes.get(0).get(0, snapshotRevision, entity));
+        return ((EntityDelta<?>) delta).merge(base);
+    }
+
     public boolean remove(long transactionId, long revision, List<Long> ids) {
         var ret = false;
         var transactionPatch = this.getTransactionPatch(transactionId, true);
         var mainIndex = transactionPatch.indexes.get(0);
-        var nullEntity = new NullEntity();
+        if (transactionPatch.writeConflictDetection == Config.WriteConflictDetection.AT_WRITE) {
+            for (var id : ids) {
+                this.checkWriteConflict(transactionPatch, transactionId, id);
+            }
+        }
         for (var id : ids) {
+            var nullEntity = new NullEntity();
             nullEntity.setId(id);
             var entity = mainIndex.get(transactionId, revision, nullEntity);
             if (entity != null) {
                 ret = true;
+                transactionPatch.modifiedIds.add(id);
+                EntityTable.linkDeltaUpdate(entity, nullEntity);
                 mainIndex.put(nullEntity, true, false);
             }
         }
         return ret;
     }
 
+    // the first committer wins
+    void setWriteConflictDetection(long transactionId,
+                                   long snapshotRevision,
+                                   Config.WriteConflictDetection writeConflictDetection) {
+        var transactionPatch = this.getTransactionPatch(transactionId, true);
+        transactionPatch.snapshotRevision = snapshotRevision;
+        transactionPatch.writeConflictDetection = writeConflictDetection;
+    }
+
+    private void checkWriteConflict(TransactionPatch transactionPatch, long transactionId, long id) {
+        var key = new NullEntity();
+        key.setId(id);
+        var latest = (AbstractEntity) this.indexes.get(0).get(0, Long.MAX_VALUE, key);
+        if (latest != null && latest.getRevision() > transactionPatch.snapshotRevision) {
+            throw new TransactionConflictException("transaction " + transactionId + " wrote entity " + id
+                    + " of table " + this.name + " committed after its snapshot");
+        }
+    }
+
     public void commit(long transactionId, long revision) {
-        try {
-            var entities = new ArrayList<Entity>();
-            // insert the main index at first, make sure modified entities are linked to the current revision
-            this.forEachUpdatedEntity(transactionId, entity -> {
-                ((AbstractEntity) entity).setRevision(revision);
-                var index = EntityTable.this.indexes.get(0);
-                var merged = index.put(entity, true, true);
-                if (!((AbstractEntity) merged).isNull()) { // null entities are not inserted to other indexes
-                    entities.add(merged);
+        var exception = this.commit(new long[]{transactionId}, new long[]{revision})[0];
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    // commits a group of transactions in the order of revisions, returns the exception of each one or null
+    public RuntimeException[] commit(long[] transactionIds, long[] revisions) {
+        var exceptions = new RuntimeException[transactionIds.length];
+        synchronized (this.indexLock) {
+            var commits = new ArrayList<PendingCommit>();
+            for (int i = 0; i < transactionIds.length; ++i) {
+                var transactionPatch = this.getTransactionPatch(transactionIds[i], false);
+                if (transactionPatch != null && transactionPatch.reads != null) {
+                    // reads are validated against all commits before, including the ones of the group
+                    this.commitSecondaryIndexes(commits, exceptions);
+                    commits.clear();
+                    try {
+                        if (!this.validateReads(transactionPatch, revisions[i] - 1)) {
+                            throw new TransactionConflictException("transaction " + transactionIds[i]
+                                    + " read entities of table " + this.name + " modified after its snapshot");
+                        }
+                    } catch (RuntimeException e) {
+                        exceptions[i] = e;
+                        continue;
+                    }
+                }
+                var commit = new PendingCommit(i, transactionIds[i], revisions[i]);
+                try {
+                    this.commitMainIndex(commit);
+                    commits.add(commit);
+                } catch (RuntimeException e) {
+                    this.revertMainIndex(commit);
+                    exceptions[i] = e;
+                }
+            }
+            this.commitSecondaryIndexes(commits, exceptions);
+        }
+        return exceptions;
+    }
+
+    // puts the entities of the commits to secondary indexes, in one batch if no keys are duplicated
+    private void commitSecondaryIndexes(List<PendingCommit> commits, RuntimeException[] exceptions) {
+        if (commits.size() == 1) {
+            this.commitSecondaryIndexes(commits.get(0), exceptions);
+        }
+        if (commits.size() <= 1) {
+            return;
+        }
+        var entities = new ArrayList<Entity>();
+        var previousEntities = new ArrayList<Entity>();
+        for (var commit : commits) {
+            entities.addAll(commit.entities);
+            previousEntities.addAll(commit.previousEntities);
+        }
+        if (this.updateSecondaryIndexes(entities, previousEntities) == null) {
+            for (var commit : commits) {
+                this.completeCommit(commit);
+            }
+            return;
+        }
+        // later transactions are merged over the failed ones, so the group is committed again one by one
+        for (int i = commits.size() - 1; i >= 0; --i) {
+            this.revertMainIndex(commits.get(i));
+        }
+        for (var commit : commits) {
+            var retry = new PendingCommit(commit.position, commit.transactionId, commit.revision);
+            try {
+                this.commitMainIndex(retry);
+            } catch (RuntimeException e) {
+                this.revertMainIndex(retry);
+                exceptions[retry.position] = e;
+                continue;
+            }
+            this.commitSecondaryIndexes(retry, exceptions);
+        }
+    }
+
+    private void commitSecondaryIndexes(PendingCommit commit, RuntimeException[] exceptions) {
+        var exception = this.updateSecondaryIndexes(commit.entities, commit.previousEntities);
+        if (exception != null) {
+            this.revertMainIndex(commit);
+            this.getTransactionPatch(commit.transactionId, false).secondaryIndexesReverted = true;
+            exceptions[commit.position] = new DuplicatedKeyException(this.name + " " + exception.getMessage());
+            return;
+        }
+        this.completeCommit(commit);
+    }
+
+    // removes the commit from the main index, and resets the revisions of the patch so that rollback skips them
+    private void revertMainIndex(PendingCommit commit) {
+        var mainIndex = this.indexes.get(0);
+        for (int i = commit.mainIndexEntities.size() - 1; i >= 0; --i) {
+            var entity = (AbstractEntity) commit.mainIndexEntities.get(i);
+            var revision = entity.getRevision();
+            var previous = (AbstractEntity) mainIndex.get(0, revision - 1, entity);
+            mainIndex.remove(entity);
+            if (previous != null && previous.getNextRevisionEntity() != null
+                    && ((AbstractEntity) previous.getNextRevisionEntity()).getRevision() == revision) {
+                previous.setNextRevisionEntity(null);
+            }
+        }
+        commit.mainIndexEntities.clear();
+        this.forEachUpdatedEntity(commit.transactionId, entity -> ((AbstractEntity) entity).setRevision(0));
+    }
+
+    // returns false if entities read by the transaction are modified by commits up to the revision
+    boolean validateReads(long transactionId, long revision) {
+        synchronized (this.indexLock) {
+            var transactionPatch = this.getTransactionPatch(transactionId, false);
+            return transactionPatch == null || transactionPatch.reads == null
+                    || this.validateReads(transactionPatch, revision);
+        }
+    }
+
+    private boolean validateReads(TransactionPatch transactionPatch, long revision) {
+        if (this.lastCommittedRevision <= transactionPatch.snapshotRevision) {
+            return true;
+        }
+        for (var read : transactionPatch.reads) {
+            if (!this.validateRead(read, transactionPatch, revision)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean validateRead(EntityTableRead read, TransactionPatch transactionPatch, long revision) {
+        var snapshotRevision = transactionPatch.snapshotRevision;
+        var modifiedIds = transactionPatch.modifiedIds;
+        if (read.key != null) {
+            if (read.last != null && modifiedIds.contains(read.last.getId())) {
+                // the entity is written by the transaction itself
+                return true;
+            }
+            var entity = (AbstractEntity) this.getByIndex(0, read.indexId, revision, read.key);
+            if (entity != null && (entity.isNull() || modifiedIds.contains(entity.getId()))) {
+                entity = null;
+            }
+            if (entity == null || read.last == null) {
+                return entity == null && read.last == null;
+            }
+            return entity.getId() == read.last.getId() && entity.getRevision() <= snapshotRevision;
+        }
+        var index = this.getIndex(0, read.indexId, revision);
+        var from = read.from;
+        var fromInclusive = read.fromInclusive;
+        var to = read.to;
+        var toInclusive = read.toInclusive;
+        if (!index.isUnique()) {
+            from = EntityTable.getBound(from, fromInclusive ? 0 : Long.MAX_VALUE);
+            to = EntityTable.getBound(to, toInclusive ? Long.MAX_VALUE : 0);
+        }
+        if (!(index instanceof EntityTableSortedIndex)) {
+            // entities of a key are not ordered, so the whole key is validated
+            var count = this.countKey(index, revision, from, to, transactionPatch);
+            return count >= 0 && count == this.countKey(index, snapshotRevision, from, to, transactionPatch);
+        }
+        if (!read.exhausted) {
+            if (read.last == null) {
+                return true;
+            }
+            // the range ends at the last entity consumed, which is an exact bound of both unique and non-unique keys
+            if (read.descending) {
+                from = read.last;
+                fromInclusive = true;
+            } else {
+                to = read.last;
+                toInclusive = true;
+            }
+        }
+        // a counted range is compared with the committed entities of the snapshot, including the modified ones
+        var counted = read.committedCount >= 0;
+        long count = 0;
+        var iterator = ((EntityTableSortedIndex) index)
+                .query(0, revision, from, fromInclusive, to, toInclusive).iterator();
+        while (iterator.hasNext()) {
+            var entity = (AbstractEntity) this.load(iterator.next());
+            if (entity == null || entity.isNull() || !counted && modifiedIds.contains(entity.getId())) {
+                continue;
+            }
+            if (entity.getRevision() > snapshotRevision) {
+                return false;
+            }
+            ++count;
+        }
+        return count == (counted ? read.committedCount : read.countUnmodified(modifiedIds));
+    }
+
+    // the number of committed entities of the key not modified by the transaction, or -1 if some of them are committed
+    // after its snapshot
+    private long countKey(EntityTableIndex index,
+                          long revision,
+                          Entity from,
+                          Entity to,
+                          TransactionPatch transactionPatch) {
+        long count = 0;
+        var iterator = index.queryKey(0, revision, from, to).iterator();
+        while (iterator.hasNext()) {
+            var entity = (AbstractEntity) this.load(iterator.next());
+            if (entity == null || entity.isNull() || transactionPatch.modifiedIds.contains(entity.getId())) {
+                continue;
+            }
+            if (entity.getRevision() > transactionPatch.snapshotRevision) {
+                return -1;
+            }
+            ++count;
+        }
+        return count;
+    }
+
+    void setReads(long transactionId, long snapshotRevision, List<EntityTableRead> reads) {
+        var transactionPatch = this.getTransactionPatch(transactionId, true);
+        transactionPatch.snapshotRevision = snapshotRevision;
+        transactionPatch.reads = reads;
+    }
+
+    // inserts the main index, make sure modified entities are linked to the current revision
+    private void commitMainIndex(PendingCommit commit) {
+        var transactionPatch = this.getTransactionPatch(commit.transactionId, false);
+        if (transactionPatch != null
+                && transactionPatch.writeConflictDetection != Config.WriteConflictDetection.NONE) {
+            // commits before, including the ones of the group, are in the main index already
+            this.forEachUpdatedEntity(commit.transactionId, entity -> {
+                // deltas never conflict, unless they follow an update of the transaction
+                if (!(entity instanceof EntityDelta) || ((EntityDelta<?>) entity).getUpdate() != null) {
+                    this.checkWriteConflict(transactionPatch, commit.transactionId, entity.getId());
                 }
             });
+        }
+        this.forEachUpdatedEntity(commit.transactionId, entity -> {
+            ((AbstractEntity) entity).setRevision(commit.revision);
+            var index = EntityTable.this.indexes.get(0);
+            var previous = index.get(commit.transactionId, Long.MAX_VALUE, entity);
+            if (previous != null && ((AbstractEntity) previous).isNull()) {
+                previous = null;
+            }
+            if (previous != null && this.supersededEntitiesTracked) {
+                commit.supersededEntities.add(previous);
+            }
+            var merged = index.put(entity, true, true);
+            if (merged == null) {
+                throw new IllegalStateException(
+                        "entity " + entity.getId() + " of table " + this.name + " to update does not exist");
+            }
+            commit.mainIndexEntities.add(entity);
+            if (!((AbstractEntity) merged).isNull()) { // null entities are not inserted to other indexes
+                commit.entities.add(merged);
+                commit.previousEntities.add(previous);
+            }
+        });
+    }
 
-            for (var entity : entities) {
-                for (int i = 1; i < EntityTable.this.indexes.size(); ++i) {
-                    var index = EntityTable.this.indexes.get(i);
-                    index.put(entity, false, false);
+    // puts the entities to secondary indexes, returns the duplicated key exception after reverting all of them
+    private DuplicatedKeyException updateSecondaryIndexes(List<Entity> entities, List<Entity> previousEntities) {
+        var updates = new ArrayList<SecondaryIndexUpdate>();
+        for (int i = 1; i < EntityTable.this.indexes.size(); ++i) {
+            var index = EntityTable.this.indexes.get(i);
+            if (index != null) {
+                updates.add(new SecondaryIndexUpdate(index, entities, previousEntities));
+            }
+        }
+        if (this.indexUpdatePool != null && updates.size() > 1 && entities.size() >= PARALLEL_INDEX_UPDATE_THRESHOLD) {
+            this.indexUpdatePool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(updates)));
+        } else {
+            for (var update : updates) {
+                update.invoke();
+            }
+        }
+        // report the first duplicated key as if the entities are put one by one
+        SecondaryIndexUpdate failedUpdate = null;
+        for (var update : updates) {
+            if (update.exception != null && (failedUpdate == null || update.count < failedUpdate.count)) {
+                failedUpdate = update;
+            }
+        }
+        if (failedUpdate == null) {
+            return null;
+        }
+        for (var update : updates) {
+            update.revert();
+        }
+        return failedUpdate.exception;
+    }
+
+    private void completeCommit(PendingCommit commit) {
+        // transactions which only read the table do not change it
+        if (!commit.mainIndexEntities.isEmpty()) {
+            this.lastCommittedRevision = commit.revision;
+        }
+        for (var entity : commit.supersededEntities) {
+            for (int i = 1; i < EntityTable.this.indexes.size(); ++i) {
+                var index = EntityTable.this.indexes.get(i);
+                if (index instanceof EntityTableSortedIndex) {
+                    ((EntityTableSortedIndex) index).supersede(entity, commit.revision);
                 }
             }
-        } catch (DuplicatedKeyException e) {
-            throw new DuplicatedKeyException(this.name + " " + e.getMessage());
+        }
+        if (!this.indexBuilds.isEmpty() && (!commit.entities.isEmpty() || !commit.supersededEntities.isEmpty())) {
+            var committedEntities = new CommittedEntities(commit.revision, commit.entities, commit.supersededEntities);
+            for (var indexBuild : this.indexBuilds) {
+                indexBuild.committedEntitiesQueue.add(committedEntities);
+            }
         }
     }
 
     public void rollback(long transactionId) {
+        var transactionPatch = this.getTransactionPatch(transactionId, false);
+        var secondaryIndexesReverted = transactionPatch != null && transactionPatch.secondaryIndexesReverted;
         this.forEachUpdatedEntity(transactionId, entity -> {
-            if (((AbstractEntity) entity).getRevision() > 0) {
+            var revision = ((AbstractEntity) entity).getRevision();
+            if (revision > 0) {
+                var mainIndex = EntityTable.this.indexes.get(0);
+                var previous = (AbstractEntity) mainIndex.get(transactionId, revision - 1, entity);
                 for (int i = 0; i < EntityTable.this.indexes.size(); ++i) {
-                    if (i == 0 || !((AbstractEntity) entity).isNull()) {
-                        var index = EntityTable.this.indexes.get(i);
+                    var index = EntityTable.this.indexes.get(i);
+                    if (index == null || i > 0 && secondaryIndexesReverted) {
+                        continue;
+                    }
+                    if (i == 0) {
                         index.remove(entity);
+                    } else if (!((AbstractEntity) entity).isNull() && (previous == null || previous.isNull()
+                            || index.getEntityComparator().compare(previous, entity) != 0)) {
+                        // entries with unchanged keys are not inserted by the commit
+                        index.remove(entity);
+                    }
+                }
+                if (previous != null && previous.getNextRevisionEntity() != null
+                        && ((AbstractEntity) previous.getNextRevisionEntity()).getRevision() == revision) {
+                    previous.setNextRevisionEntity(null);
+                }
+                if (previous != null && !previous.isNull() && this.supersededEntitiesTracked
+                        && !secondaryIndexesReverted) {
+                    // the previous entity is visible again, the statistics superseding it are recomputed
+                    for (int i = 1; i < EntityTable.this.indexes.size(); ++i) {
+                        var index = EntityTable.this.indexes.get(i);
+                        if (index instanceof EntityTableSortedIndex) {
+                            ((EntityTableSortedIndex) index).supersede(previous, revision);
+                        }
                     }
                 }
             }
@@ -193,8 +1135,49 @@ public class EntityTable {
 
     public void garbageCollection(long revision) {
         for (var index : this.indexes) {
-            index.garbageCollection(revision);
+            if (index != null) {
+                index.garbageCollection(revision);
+            }
+        }
+    }
+
+    private EntityTableSortedIndex getSortedIndex(long transactionId, int indexId, long snapshotRevision) {
+        var index = this.getIndex(transactionId, indexId, snapshotRevision);
+        if (!(index instanceof EntityTableSortedIndex)) {
+            throw new IllegalArgumentException("index " + indexId + " of table " + this.name + " is not sorted");
+        }
+        return (EntityTableSortedIndex) index;
+    }
+
+    // indexes which are not sorted only query the entities of a single key
+    private void checkSingleKey(EntityTableIndex index,
+                                int indexId,
+                                Entity from,
+                                boolean fromInclusive,
+                                Entity to,
+                                boolean toInclusive) {
+        if (from == null || to == null || !fromInclusive || !toInclusive || index.getEntityComparator()
+                .compare(EntityTable.getBound(from, 0), EntityTable.getBound(to, 0)) != 0) {
+            throw new IllegalArgumentException("index " + indexId + " of table " + this.name
+                    + " is not sorted, only a single key can be queried");
+        }
+    }
+
+    // keys of non-unique indexes are ordered by ids at last, the id of a bound selects the first or the last one
+    private static Entity getBound(Entity key, long id) {
+        if (key == null) {
+            return null;
+        }
+        var bound = ((AbstractEntity) key).clone();
+        bound.setId(id);
+        return bound;
+    }
+
+    private Entity load(Entity entity) {
+        if (entity == null || this.offHeapEntityStorage == null) {
+            return entity;
         }
+        return this.offHeapEntityStorage.load(entity);
     }
 
     private void forEachUpdatedEntity(long transactionId, Consumer<Entity> consumer) {
@@ -202,11 +1185,12 @@ public class EntityTable {
         if (transactionPatch == null) {
             return;
         }
-        var mainPatchIndex = transactionPatch.indexes.get(0).getPatch();
+        var mainPatchIndex = transactionPatch.mainPatchIndex;
         var from = new NullEntity();
         var to = new NullEntity();
         to.setId(Long.MAX_VALUE);
-        mainPatchIndex.query(transactionId, 0, from, true, to, true).forEach(consumer);
+        // entities of the patch get the revision of the commit, which must be visible to a rollback after it fails
+        mainPatchIndex.query(transactionId, Long.MAX_VALUE, from, true, to, true).forEach(consumer);
     }
 
     private TransactionPatch getTransactionPatch(long transactionId, boolean createIfAbsent) {
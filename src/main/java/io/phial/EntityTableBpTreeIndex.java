@@ -1,28 +1,1332 @@
 package io.phial;
 
-public class EntityTableBpTreeIndex implements EntityTableIndex {
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+// a B+-tree synchronized by optimistic lock coupling, readers validate node versions after reading.
+// full nodes are split eagerly on the way down, nodes are never merged.
+// nodes summarize their subtrees, inner nodes recompute the summaries from their children after a change below
+public class EntityTableBpTreeIndex implements EntityTableSortedIndex {
+    private static final int FANOUT = 64;
+
+    private final boolean unique;
+    private final EntityComparator entityComparator;
+    private final ToLongFunction<Entity> longKeyExtractor;
+    private final ToLongFunction<Entity> valueExtractor;
+
+    private static class EntityNode {
+        Entity entity;
+        EntityNode next;
+    }
+
+    private static abstract class Node {
+        // odd if locked, increased by one on both locking and unlocking
+        long version;
+        int count;
+        // replaced as a whole, inner nodes replace it without locking
+        Summary summary = Summary.EMPTY;
+    }
+
+    // the number and the values of visible entities of a subtree, the same for snapshots not older than the change
+    // revision
+    private static class Summary {
+        static final Summary EMPTY = new Summary(0, 0, 0, Long.MAX_VALUE, Long.MIN_VALUE);
+
+        final long changeRevision;
+        final long count;
+        final long sum;
+        final long min;
+        final long max;
+
+        Summary(long changeRevision, long count, long sum, long min, long max) {
+            this.changeRevision = changeRevision;
+            this.count = count;
+            this.sum = sum;
+            this.min = min;
+            this.max = max;
+        }
+    }
+
+    private static class InnerNode extends Node {
+        // children[i] holds keys in [keys[i - 1], keys[i])
+        final Entity[] keys = new Entity[FANOUT - 1];
+        // extracted long keys of the keys above, valid if the index has a long key extractor
+        final long[] longKeys = new long[FANOUT - 1];
+        final Node[] children = new Node[FANOUT];
+    }
+
+    private static class LeafNode extends Node {
+        final Entity[] keys = new Entity[FANOUT];
+        final long[] longKeys = new long[FANOUT];
+        final EntityNode[] entityNodes = new EntityNode[FANOUT];
+        // keys not less than the high key are moved to the next leaf nodes by splits
+        Entity highKey;
+        LeafNode next;
+    }
+
+    private final LeafNode firstLeafNode = new LeafNode();
+    private volatile Node root = this.firstLeafNode;
+    private volatile EntityTableIndexStatistics statistics = EntityTableIndexStatistics.EMPTY;
+
+    public EntityTableBpTreeIndex(boolean unique, EntityComparator entityComparator) {
+        this(unique, entityComparator, null);
+    }
+
+    public EntityTableBpTreeIndex(boolean unique,
+                                  EntityComparator entityComparator,
+                                  ToLongFunction<Entity> longKeyExtractor) {
+        this(unique, entityComparator, longKeyExtractor, null);
+    }
+
+    public EntityTableBpTreeIndex(boolean unique,
+                                  EntityComparator entityComparator,
+                                  ToLongFunction<Entity> longKeyExtractor,
+                                  ToLongFunction<Entity> valueExtractor) {
+        this.unique = unique;
+        this.entityComparator = entityComparator;
+        this.longKeyExtractor = longKeyExtractor;
+        this.valueExtractor = valueExtractor;
+    }
+
     @Override
     public boolean isUnique() {
-        return false;
+        return this.unique;
+    }
+
+    @Override
+    public EntityComparator getEntityComparator() {
+        return this.entityComparator;
+    }
+
+    @Override
+    public ToLongFunction<Entity> getValueExtractor() {
+        return this.valueExtractor;
     }
 
     @Override
     public Entity get(long transactionId, long snapshotRevision, Entity key) {
-        return null;
+        var longKey = this.getLongKey(key);
+        var leafNode = this.findLeafNode(key, longKey);
+        for (; ; ) {
+            var version = EntityTableBpTreeIndex.readLock(leafNode);
+            var highKey = leafNode.highKey;
+            if (highKey != null && this.entityComparator.compare(key, highKey) >= 0) {
+                // the leaf node is split after it is found, move right
+                var next = leafNode.next;
+                if (next != null && EntityTableBpTreeIndex.validate(leafNode, version)) {
+                    leafNode = next;
+                }
+                continue;
+            }
+            int pos = this.lowerBound(leafNode, Math.min(leafNode.count, FANOUT), key, longKey);
+            if (pos < 0) {
+                continue;
+            }
+            EntityNode entityNode = null;
+            if (pos < Math.min(leafNode.count, FANOUT)) {
+                var k = leafNode.keys[pos];
+                if (k == null) {
+                    continue;
+                }
+                if (this.compare(key, longKey, k, leafNode.longKeys[pos]) == 0) {
+                    entityNode = leafNode.entityNodes[pos];
+                }
+            }
+            if (EntityTableBpTreeIndex.validate(leafNode, version)) {
+                return this.getEntitySnapshot(snapshotRevision, entityNode);
+            }
+        }
+    }
+
+    @Override
+    public Stream<Entity> query(long transactionId,
+                                long revision,
+                                Entity from,
+                                boolean fromInclusive,
+                                Entity to,
+                                boolean toInclusive) {
+        var iterator = new Iterator<Entity>() {
+            final Entity[] keys = new Entity[FANOUT];
+            final EntityNode[] entityNodes = new EntityNode[FANOUT];
+            int size;
+            int pos;
+            LeafNode nextLeafNode;
+            Entity lastKey = from;
+            long lastLongKey = from == null ? 0 : EntityTableBpTreeIndex.this.getLongKey(from);
+            boolean lastKeyInclusive = fromInclusive;
+            boolean finished;
+            Entity next = this.getNext();
+
+            Entity getNext() {
+                for (; ; ) {
+                    while (this.pos < this.size) {
+                        var key = this.keys[this.pos];
+                        var entityNode = this.entityNodes[this.pos];
+                        ++this.pos;
+                        if (to != null) {
+                            var c = EntityTableBpTreeIndex.this.entityComparator.compare(key, to);
+                            if (c > 0 || c == 0 && !toInclusive) {
+                                this.finished = true;
+                                return null;
+                            }
+                        }
+                        var entity = EntityTableBpTreeIndex.this.getEntitySnapshot(revision, entityNode);
+                        if (entity != null) {
+                            return entity;
+                        }
+                    }
+                    if (this.finished) {
+                        return null;
+                    }
+                    this.readLeafNode();
+                }
+            }
+
+            void readLeafNode() {
+                var leafNode = this.nextLeafNode;
+                for (; ; ) {
+                    if (leafNode == null) {
+                        leafNode = this.lastKey == null
+                                ? EntityTableBpTreeIndex.this.firstLeafNode
+                                : EntityTableBpTreeIndex.this.findLeafNode(this.lastKey, this.lastLongKey);
+                    }
+                    var version = EntityTableBpTreeIndex.readLock(leafNode);
+                    int count = Math.min(leafNode.count, FANOUT);
+                    int start = 0;
+                    if (this.lastKey != null) {
+                        start = EntityTableBpTreeIndex.this.lowerBound(leafNode, count, this.lastKey, this.lastLongKey);
+                        if (start < 0) {
+                            leafNode = null;
+                            continue;
+                        }
+                        if (!this.lastKeyInclusive && start < count && leafNode.keys[start] != null
+                                && EntityTableBpTreeIndex.this.compare(
+                                this.lastKey, this.lastLongKey, leafNode.keys[start], leafNode.longKeys[start]) == 0) {
+                            ++start;
+                        }
+                    }
+                    int size = 0;
+                    long lastLongKey = 0;
+                    boolean valid = true;
+                    for (int i = start; i < count; ++i) {
+                        var key = leafNode.keys[i];
+                        lastLongKey = leafNode.longKeys[i];
+                        var entityNode = leafNode.entityNodes[i];
+                        if (key == null || entityNode == null) {
+                            valid = false;
+                            break;
+                        }
+                        this.keys[size] = key;
+                        this.entityNodes[size] = entityNode;
+                        ++size;
+                    }
+                    var next = leafNode.next;
+                    if (valid && EntityTableBpTreeIndex.validate(leafNode, version)) {
+                        this.size = size;
+                        this.pos = 0;
+                        this.nextLeafNode = next;
+                        if (size > 0) {
+                            this.lastKey = this.keys[size - 1];
+                            this.lastLongKey = lastLongKey;
+                            this.lastKeyInclusive = false;
+                        }
+                        if (next == null) {
+                            this.finished = true;
+                        }
+                        return;
+                    }
+                    // the leaf node is modified, find it again by the last key
+                    leafNode = null;
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return this.next != null;
+            }
+
+            @Override
+            public Entity next() {
+                var result = this.next;
+                this.next = this.getNext();
+                return result;
+            }
+        };
+        var spliterator = Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED);
+        return StreamSupport.stream(spliterator, false);
+    }
+
+    @Override
+    public Stream<Entity> queryDescending(long transactionId,
+                                          long revision,
+                                          Entity from,
+                                          boolean fromInclusive,
+                                          Entity to,
+                                          boolean toInclusive) {
+        var iterator = new DescendingIterator(revision, from, fromInclusive, to, toInclusive);
+        var spliterator = Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED);
+        return StreamSupport.stream(spliterator, false);
+    }
+
+    // leaf nodes are only linked forward, the previous one is found from the root by the separator key
+    private class DescendingIterator implements Iterator<Entity> {
+        private final long revision;
+        private final Entity from;
+        private final boolean fromInclusive;
+        private final Entity[] keys = new Entity[FANOUT];
+        private final EntityNode[] entityNodes = new EntityNode[FANOUT];
+        private int size;
+        private int pos;
+        private Entity bound;
+        private long boundLongKey;
+        private boolean boundInclusive;
+        // the separator key below all keys of the found leaf node, or null for the first leaf node
+        private Entity lowKey;
+        private long lowLongKey;
+        private boolean finished;
+        private Entity next;
+
+        DescendingIterator(long revision, Entity from, boolean fromInclusive, Entity to, boolean toInclusive) {
+            this.revision = revision;
+            this.from = from;
+            this.fromInclusive = fromInclusive;
+            this.bound = to;
+            this.boundLongKey = to == null ? 0 : EntityTableBpTreeIndex.this.getLongKey(to);
+            this.boundInclusive = toInclusive;
+            this.next = this.getNext();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.next != null;
+        }
+
+        @Override
+        public Entity next() {
+            var result = this.next;
+            this.next = this.getNext();
+            return result;
+        }
+
+        private Entity getNext() {
+            var index = EntityTableBpTreeIndex.this;
+            for (; ; ) {
+                while (this.pos < this.size) {
+                    var key = this.keys[this.pos];
+                    var entityNode = this.entityNodes[this.pos];
+                    ++this.pos;
+                    if (this.from != null) {
+                        var c = index.entityComparator.compare(key, this.from);
+                        if (c < 0 || c == 0 && !this.fromInclusive) {
+                            this.finished = true;
+                            return null;
+                        }
+                    }
+                    var entity = index.getEntitySnapshot(this.revision, entityNode);
+                    if (entity != null) {
+                        return entity;
+                    }
+                }
+                if (this.finished) {
+                    return null;
+                }
+                this.readLeafNode();
+            }
+        }
+
+        private void readLeafNode() {
+            var index = EntityTableBpTreeIndex.this;
+            LeafNode leafNode = null;
+            for (; ; ) {
+                if (leafNode == null) {
+                    leafNode = this.findLeafNode();
+                }
+                var version = EntityTableBpTreeIndex.readLock(leafNode);
+                var highKey = leafNode.highKey;
+                if (highKey != null && (this.bound == null
+                        || (this.boundInclusive ? index.entityComparator.compare(highKey, this.bound) <= 0
+                        : index.entityComparator.compare(highKey, this.bound) < 0))) {
+                    // the leaf node is split after it is found, keys before the bound are moved right
+                    var next = leafNode.next;
+                    if (next == null || !EntityTableBpTreeIndex.validate(leafNode, version)) {
+                        leafNode = null;
+                        continue;
+                    }
+                    this.lowKey = highKey;
+                    this.lowLongKey = index.getLongKey(highKey);
+                    leafNode = next;
+                    continue;
+                }
+                int count = Math.min(leafNode.count, FANOUT);
+                int end = count;
+                if (this.bound != null) {
+                    end = this.boundInclusive
+                            ? index.upperBound(leafNode.keys, leafNode.longKeys, count, this.bound, this.boundLongKey)
+                            : index.lowerBound(leafNode.keys, leafNode.longKeys, count, this.bound, this.boundLongKey);
+                    if (end < 0) {
+                        leafNode = null;
+                        continue;
+                    }
+                }
+                int size = 0;
+                boolean valid = true;
+                for (int i = end - 1; i >= 0; --i) {
+                    var key = leafNode.keys[i];
+                    var entityNode = leafNode.entityNodes[i];
+                    if (key == null || entityNode == null) {
+                        valid = false;
+                        break;
+                    }
+                    this.keys[size] = key;
+                    this.entityNodes[size] = entityNode;
+                    ++size;
+                }
+                if (valid && EntityTableBpTreeIndex.validate(leafNode, version)) {
+                    this.size = size;
+                    this.pos = 0;
+                    // keys before the leaf node are less than its separator key
+                    this.bound = this.lowKey;
+                    this.boundLongKey = this.lowLongKey;
+                    this.boundInclusive = false;
+                    if (this.lowKey == null
+                            || this.from != null && index.entityComparator.compare(this.lowKey, this.from) <= 0) {
+                        this.finished = true;
+                    }
+                    return;
+                }
+                // the leaf node is modified, find it again by the bound
+                leafNode = null;
+            }
+        }
+
+        private LeafNode findLeafNode() {
+            var index = EntityTableBpTreeIndex.this;
+            start:
+            for (; ; ) {
+                var node = index.root;
+                var version = EntityTableBpTreeIndex.readLock(node);
+                if (node != index.root) {
+                    continue;
+                }
+                InnerNode parent = null;
+                long parentVersion = 0;
+                Entity lowKey = null;
+                long lowLongKey = 0;
+                while (node instanceof InnerNode) {
+                    var innerNode = (InnerNode) node;
+                    if (parent != null && !EntityTableBpTreeIndex.validate(parent, parentVersion)) {
+                        continue start;
+                    }
+                    var keys = innerNode.keys;
+                    var longKeys = innerNode.longKeys;
+                    int count = Math.min(innerNode.count, FANOUT - 1);
+                    int pos = count;
+                    if (this.bound != null) {
+                        pos = this.boundInclusive
+                                ? index.upperBound(keys, longKeys, count, this.bound, this.boundLongKey)
+                                : index.lowerBound(keys, longKeys, count, this.bound, this.boundLongKey);
+                        if (pos < 0) {
+                            continue start;
+                        }
+                    }
+                    if (pos > 0) {
+                        lowKey = keys[pos - 1];
+                        lowLongKey = longKeys[pos - 1];
+                    }
+                    var child = innerNode.children[pos];
+                    if (lowKey == null && pos > 0 || child == null
+                            || !EntityTableBpTreeIndex.validate(innerNode, version)) {
+                        continue start;
+                    }
+                    parent = innerNode;
+                    parentVersion = version;
+                    node = child;
+                    version = EntityTableBpTreeIndex.readLock(node);
+                }
+                if (parent != null && !EntityTableBpTreeIndex.validate(parent, parentVersion)) {
+                    continue;
+                }
+                this.lowKey = lowKey;
+                this.lowLongKey = lowLongKey;
+                return (LeafNode) node;
+            }
+        }
     }
 
     @Override
     public Entity put(Entity entity, boolean linkEntity, boolean mergeEntity) {
-        return null;
+        var longKey = this.getLongKey(entity);
+        var leafNode = this.lockLeafNodeToPut(entity, longKey);
+        Entity result;
+        try {
+            result = this.putToLeafNode(leafNode, entity, longKey, linkEntity, mergeEntity);
+            this.updateStatistics(leafNode, ((AbstractEntity) entity).getRevision());
+        } finally {
+            EntityTableBpTreeIndex.unlock(leafNode);
+        }
+        this.updateSummaries(entity, longKey);
+        return result;
     }
 
+    // entities of a sorted batch go to the leaf node of the previous one until they reach its high key or fill it up
     @Override
-    public void remove(Entity entity) {
+    public void putAll(List<Entity> entities) {
+        LeafNode leafNode = null;
+        // the summaries above a leaf node are updated once for the entities put to it, a failed batch is either
+        // removed or dropped with the index
+        Entity lastEntity = null;
+        long lastLongKey = 0;
+        for (var entity : entities) {
+            var longKey = this.getLongKey(entity);
+            if (leafNode != null) {
+                EntityTableBpTreeIndex.lock(leafNode);
+                var highKey = leafNode.highKey;
+                if (leafNode.count == FANOUT
+                        || highKey != null && this.entityComparator.compare(entity, highKey) >= 0) {
+                    EntityTableBpTreeIndex.unlock(leafNode);
+                    leafNode = null;
+                    this.updateSummaries(lastEntity, lastLongKey);
+                }
+            }
+            if (leafNode == null) {
+                leafNode = this.lockLeafNodeToPut(entity, longKey);
+            }
+            try {
+                this.putToLeafNode(leafNode, entity, longKey, false, false);
+                this.updateStatistics(leafNode, ((AbstractEntity) entity).getRevision());
+            } finally {
+                EntityTableBpTreeIndex.unlock(leafNode);
+            }
+            lastEntity = entity;
+            lastLongKey = longKey;
+        }
+        if (lastEntity != null) {
+            this.updateSummaries(lastEntity, lastLongKey);
+        }
+    }
+
+    private LeafNode lockLeafNodeToPut(Entity entity, long longKey) {
+        start:
+        for (; ; ) {
+            var node = this.root;
+            var version = EntityTableBpTreeIndex.readLock(node);
+            if (node != this.root) {
+                continue;
+            }
+            InnerNode parent = null;
+            long parentVersion = 0;
+            while (node instanceof InnerNode) {
+                var innerNode = (InnerNode) node;
+                if (innerNode.count == FANOUT - 1) {
+                    // split full nodes eagerly, so there is always room in the parent for a new key
+                    this.trySplit(parent, parentVersion, innerNode, version);
+                    continue start;
+                }
+                if (parent != null && !EntityTableBpTreeIndex.validate(parent, parentVersion)) {
+                    continue start;
+                }
+                int pos = this.upperBound(innerNode.keys, innerNode.longKeys, innerNode.count, entity, longKey);
+                if (pos < 0) {
+                    continue start;
+                }
+                var child = innerNode.children[pos];
+                if (child == null || !EntityTableBpTreeIndex.validate(innerNode, version)) {
+                    continue start;
+                }
+                parent = innerNode;
+                parentVersion = version;
+                node = child;
+                version = EntityTableBpTreeIndex.readLock(node);
+            }
+            var leafNode = (LeafNode) node;
+            if (leafNode.count == FANOUT) {
+                this.trySplit(parent, parentVersion, leafNode, version);
+                continue;
+            }
+            if (!EntityTableBpTreeIndex.tryLock(leafNode, version)) {
+                continue;
+            }
+            if (parent != null && !EntityTableBpTreeIndex.validate(parent, parentVersion)) {
+                // the leaf node might be split before it is locked
+                EntityTableBpTreeIndex.unlock(leafNode);
+                continue;
+            }
+            return leafNode;
+        }
+    }
 
+    @Override
+    public void remove(Entity entity) {
+        var longKey = this.getLongKey(entity);
+        var leafNode = this.lockLeafNode(entity, longKey);
+        var removed = false;
+        try {
+            int count = leafNode.count;
+            int pos = this.lowerBound(leafNode, count, entity, longKey);
+            if (pos < count && this.compare(entity, longKey, leafNode.keys[pos], leafNode.longKeys[pos]) == 0) {
+                var rev1 = ((AbstractEntity) entity).getRevision();
+                EntityNode prevEntityNode = null;
+                for (var entityNode = leafNode.entityNodes[pos]; entityNode != null; entityNode = entityNode.next) {
+                    var rev2 = ((AbstractEntity) entityNode.entity).getRevision();
+                    if (rev1 == rev2) {
+                        if (prevEntityNode != null) {
+                            prevEntityNode.next = entityNode.next;
+                        } else if (entityNode.next != null) {
+                            leafNode.entityNodes[pos] = entityNode.next;
+                        } else {
+                            // all entity nodes are removed
+                            EntityTableBpTreeIndex.removeFromLeafNode(leafNode, pos);
+                        }
+                        this.updateStatistics(leafNode, rev1);
+                        removed = true;
+                        break;
+                    } else if (rev1 > rev2) {
+                        break;
+                    }
+                    prevEntityNode = entityNode;
+                }
+            }
+        } finally {
+            EntityTableBpTreeIndex.unlock(leafNode);
+        }
+        if (!removed) {
+            throw new RuntimeException("not found, key=" + this.entityComparator.getKeyString(entity));
+        }
+        this.updateSummaries(entity, longKey);
     }
 
     @Override
     public void garbageCollection(long revision) {
+        var collector = new EntityTableIndexStatistics.Collector(
+                this.entityComparator, EntityTableIndexStatistics.Collector.getHistogramStride(this.statistics));
+        for (var leafNode = this.firstLeafNode; leafNode != null; ) {
+            EntityTableBpTreeIndex.lock(leafNode);
+            try {
+                for (int pos = 0; pos < leafNode.count; ) {
+                    EntityNode prevEntityNode = null;
+                    var removed = false;
+                    for (var entityNode = leafNode.entityNodes[pos]; entityNode != null; ) {
+                        var entity = (AbstractEntity) entityNode.entity;
+                        if (entity.getRevision() <= revision) {
+                            Entity latestEntity = null;
+                            if (entity.isNull() || (latestEntity = EntityTableIndex.getLatestRevision(
+                                    this.entityComparator, entity, revision)) == null) {
+                                if (prevEntityNode == null) {
+                                    EntityTableBpTreeIndex.removeFromLeafNode(leafNode, pos);
+                                    removed = true;
+                                } else {
+                                    prevEntityNode.next = null;
+                                }
+                            } else {
+                                // later revisions with the same key take over the entry
+                                entityNode.entity = latestEntity;
+                                entityNode.next = null;
+                                if (prevEntityNode == null) {
+                                    leafNode.keys[pos] = latestEntity;
+                                }
+                            }
+                            break;
+                        }
+                        prevEntityNode = entityNode;
+                        entityNode = entityNode.next;
+                    }
+                    if (!removed) {
+                        int chainLength = 0;
+                        for (var entityNode = leafNode.entityNodes[pos]; entityNode != null; ) {
+                            ++chainLength;
+                            entityNode = entityNode.next;
+                        }
+                        collector.add(leafNode.entityNodes[pos].entity, chainLength);
+                        ++pos;
+                    }
+                }
+                this.updateStatistics(leafNode, 0);
+            } finally {
+                EntityTableBpTreeIndex.unlock(leafNode);
+            }
+            leafNode = leafNode.next;
+        }
+        this.statistics = collector.build();
+    }
+
+    @Override
+    public EntityTableIndexStatistics getStatistics() {
+        return this.statistics;
+    }
+
+    @Override
+    public void supersede(Entity entity, long revision) {
+        var longKey = this.getLongKey(entity);
+        var leafNode = this.lockLeafNode(entity, longKey);
+        try {
+            this.updateStatistics(leafNode, revision);
+        } finally {
+            EntityTableBpTreeIndex.unlock(leafNode);
+        }
+        this.updateSummaries(entity, longKey);
+    }
+
+    @Override
+    public long count(long transactionId,
+                      long revision,
+                      Entity from,
+                      boolean fromInclusive,
+                      Entity to,
+                      boolean toInclusive) {
+        return this.summarize(revision, from, fromInclusive, to, toInclusive, false).getCount();
+    }
+
+    @Override
+    public EntityAggregate aggregate(long transactionId,
+                                     long revision,
+                                     Entity from,
+                                     boolean fromInclusive,
+                                     Entity to,
+                                     boolean toInclusive) {
+        if (this.valueExtractor == null) {
+            throw new IllegalArgumentException("values are not aggregated by the index");
+        }
+        return this.summarize(revision, from, fromInclusive, to, toInclusive, true);
+    }
+
+    // subtrees in the range and not changed after the revision are summarized by their summaries, so only the nodes
+    // on the paths to both ends of the range and the ones changed after the revision are read
+    private EntityAggregate summarize(long revision,
+                                      Entity from,
+                                      boolean fromInclusive,
+                                      Entity to,
+                                      boolean toInclusive,
+                                      boolean withValues) {
+        for (; ; ) {
+            var node = this.root;
+            var version = EntityTableBpTreeIndex.readLock(node);
+            if (node != this.root) {
+                continue;
+            }
+            var summarizer = new Summarizer(revision, from, fromInclusive, to, toInclusive, withValues);
+            if (summarizer.summarize(node, version, from == null, to == null)) {
+                return new EntityAggregate(summarizer.count, summarizer.sum, summarizer.min, summarizer.max);
+            }
+        }
+    }
+
+    private class Summarizer {
+        private final long revision;
+        private final Entity from;
+        private final long fromLongKey;
+        private final boolean fromInclusive;
+        private final Entity to;
+        private final long toLongKey;
+        private final boolean toInclusive;
+        private final boolean withValues;
+        private long count;
+        private long sum;
+        private long min = Long.MAX_VALUE;
+        private long max = Long.MIN_VALUE;
+
+        Summarizer(long revision,
+                   Entity from,
+                   boolean fromInclusive,
+                   Entity to,
+                   boolean toInclusive,
+                   boolean withValues) {
+            this.revision = revision;
+            this.from = from;
+            this.fromLongKey = from == null ? 0 : EntityTableBpTreeIndex.this.getLongKey(from);
+            this.fromInclusive = fromInclusive;
+            this.to = to;
+            this.toLongKey = to == null ? 0 : EntityTableBpTreeIndex.this.getLongKey(to);
+            this.toInclusive = toInclusive;
+            this.withValues = withValues;
+        }
+
+        // a bound is covered if all keys of the node are known to be within it, returns false if a concurrent
+        // modification is detected
+        private boolean summarize(Node node, long version, boolean fromCovered, boolean toCovered) {
+            var index = EntityTableBpTreeIndex.this;
+            var summary = (Summary) SUMMARY.getAcquire(node);
+            if (node instanceof LeafNode) {
+                return this.summarize((LeafNode) node, version, summary, fromCovered, toCovered);
+            }
+            if (fromCovered && toCovered && summary.changeRevision <= this.revision) {
+                if (!EntityTableBpTreeIndex.validate(node, version)) {
+                    return false;
+                }
+                this.add(summary.count, summary.sum, summary.min, summary.max);
+                return true;
+            }
+            var innerNode = (InnerNode) node;
+            var keys = innerNode.keys;
+            var longKeys = innerNode.longKeys;
+            int count = Math.min(innerNode.count, FANOUT - 1);
+            int first = fromCovered ? 0 : index.upperBound(keys, longKeys, count, this.from, this.fromLongKey);
+            int last = count;
+            if (!toCovered) {
+                last = this.toInclusive
+                        ? index.upperBound(keys, longKeys, count, this.to, this.toLongKey)
+                        : index.lowerBound(keys, longKeys, count, this.to, this.toLongKey);
+            }
+            if (first < 0 || last < 0) {
+                return false;
+            }
+            for (int i = first; i <= last; ++i) {
+                var child = innerNode.children[i];
+                if (child == null) {
+                    return false;
+                }
+                var childVersion = EntityTableBpTreeIndex.readLock(child);
+                // the node is validated before each child, so children split meanwhile are neither skipped nor read
+                // twice
+                if (!EntityTableBpTreeIndex.validate(innerNode, version)
+                        || !this.summarize(child, childVersion, fromCovered || i > first, toCovered || i < last)) {
+                    return false;
+                }
+            }
+            return EntityTableBpTreeIndex.validate(innerNode, version);
+        }
+
+        private boolean summarize(LeafNode leafNode,
+                                  long version,
+                                  Summary summary,
+                                  boolean fromCovered,
+                                  boolean toCovered) {
+            var index = EntityTableBpTreeIndex.this;
+            int size = Math.min(leafNode.count, FANOUT);
+            int start = fromCovered
+                    ? 0 : index.getStartPosition(leafNode, size, this.from, this.fromLongKey, this.fromInclusive);
+            int end = size;
+            if (!toCovered && start >= 0) {
+                end = this.toInclusive
+                        ? index.upperBound(leafNode.keys, leafNode.longKeys, size, this.to, this.toLongKey)
+                        : index.lowerBound(leafNode, size, this.to, this.toLongKey);
+            }
+            if (start < 0 || end < 0) {
+                return false;
+            }
+            long leafCount = 0;
+            long leafSum = 0;
+            long leafMin = Long.MAX_VALUE;
+            long leafMax = Long.MIN_VALUE;
+            if (start == 0 && end == size && summary.changeRevision <= this.revision) {
+                leafCount = summary.count;
+                leafSum = summary.sum;
+                leafMin = summary.min;
+                leafMax = summary.max;
+            } else {
+                for (int i = start; i < end; ++i) {
+                    var entity = index.getEntitySnapshot(this.revision, leafNode.entityNodes[i]);
+                    if (entity != null && !((AbstractEntity) entity).isNull()) {
+                        ++leafCount;
+                        if (this.withValues) {
+                            var value = index.valueExtractor.applyAsLong(entity);
+                            leafSum += value;
+                            leafMin = Math.min(leafMin, value);
+                            leafMax = Math.max(leafMax, value);
+                        }
+                    }
+                }
+            }
+            if (!EntityTableBpTreeIndex.validate(leafNode, version)) {
+                return false;
+            }
+            this.add(leafCount, leafSum, leafMin, leafMax);
+            return true;
+        }
+
+        private void add(long count, long sum, long min, long max) {
+            this.count += count;
+            this.sum += sum;
+            this.min = Math.min(this.min, min);
+            this.max = Math.max(this.max, max);
+        }
+    }
+
+    // subtrees are skipped by their summaries down to the leaf node with the entity of the rank
+    @Override
+    public Entity select(long transactionId, long revision, long rank) {
+        for (; ; ) {
+            var node = this.root;
+            var version = EntityTableBpTreeIndex.readLock(node);
+            if (node != this.root) {
+                continue;
+            }
+            var selector = new Selector(revision, rank);
+            if (selector.select(node, version)) {
+                return selector.result;
+            }
+        }
+    }
+
+    private class Selector {
+        private final long revision;
+        // the number of visible entities left to skip
+        private long remaining;
+        private Entity result;
+
+        Selector(long revision, long rank) {
+            this.revision = revision;
+            this.remaining = rank;
+        }
+
+        // returns false if a concurrent modification is detected
+        private boolean select(Node node, long version) {
+            var index = EntityTableBpTreeIndex.this;
+            var summary = (Summary) SUMMARY.getAcquire(node);
+            if (summary.changeRevision <= this.revision && summary.count <= this.remaining) {
+                if (!EntityTableBpTreeIndex.validate(node, version)) {
+                    return false;
+                }
+                this.remaining -= summary.count;
+                return true;
+            }
+            if (node instanceof LeafNode) {
+                var leafNode = (LeafNode) node;
+                int count = Math.min(leafNode.count, FANOUT);
+                long leafCount = 0;
+                Entity result = null;
+                for (int i = 0; i < count; ++i) {
+                    var entityNode = leafNode.entityNodes[i];
+                    if (index.isVisible(this.revision, entityNode)) {
+                        if (leafCount == this.remaining) {
+                            result = index.getEntitySnapshot(this.revision, entityNode);
+                            break;
+                        }
+                        ++leafCount;
+                    }
+                }
+                if (!EntityTableBpTreeIndex.validate(leafNode, version)) {
+                    return false;
+                }
+                this.remaining -= leafCount;
+                this.result = result;
+                return true;
+            }
+            var innerNode = (InnerNode) node;
+            int count = Math.min(innerNode.count, FANOUT - 1);
+            for (int i = 0; i <= count && this.result == null; ++i) {
+                var child = innerNode.children[i];
+                if (child == null) {
+                    return false;
+                }
+                var childVersion = EntityTableBpTreeIndex.readLock(child);
+                if (!EntityTableBpTreeIndex.validate(innerNode, version) || !this.select(child, childVersion)) {
+                    return false;
+                }
+            }
+            return EntityTableBpTreeIndex.validate(innerNode, version);
+        }
+    }
+
+    // returns the index of the first key after the last key, or -1 if a concurrent modification is detected
+    private int getStartPosition(LeafNode leafNode, int count, Entity lastKey, long lastLongKey, boolean inclusive) {
+        if (lastKey == null) {
+            return 0;
+        }
+        int start = this.lowerBound(leafNode, count, lastKey, lastLongKey);
+        if (start < 0 || inclusive || start == count) {
+            return start;
+        }
+        var key = leafNode.keys[start];
+        if (key == null) {
+            return -1;
+        }
+        return this.compare(lastKey, lastLongKey, key, leafNode.longKeys[start]) == 0 ? start + 1 : start;
+    }
+
+    private Entity putToLeafNode(LeafNode leafNode,
+                                 Entity entity,
+                                 long longKey,
+                                 boolean linkEntity,
+                                 boolean mergeEntity) {
+        int count = leafNode.count;
+        int pos = this.lowerBound(leafNode, count, entity, longKey);
+        var newEntityNode = new EntityNode();
+        if (pos < count && this.compare(entity, longKey, leafNode.keys[pos], leafNode.longKeys[pos]) == 0) {
+            var nextEntityNode = leafNode.entityNodes[pos];
+            var nextEntity = (AbstractEntity) nextEntityNode.entity;
+            if (EntityTableIndex.isDuplicated(this.entityComparator, entity, nextEntity)) {
+                throw new DuplicatedKeyException(this.entityComparator.getKeyString(entity));
+            }
+            if (linkEntity) {
+                nextEntity.setNextRevisionEntity(entity);
+            }
+            if (mergeEntity) {
+                newEntityNode.entity = ((AbstractEntity) entity).merge(nextEntity);
+            } else {
+                newEntityNode.entity = entity;
+            }
+            newEntityNode.next = nextEntityNode;
+            leafNode.entityNodes[pos] = newEntityNode;
+            return newEntityNode.entity;
+        }
+        if (mergeEntity) {
+            newEntityNode.entity = ((AbstractEntity) entity).merge(null);
+            if (newEntityNode.entity == null) {
+                // the entity is for update rather than insertion, and the original one is removed.
+                return null;
+            }
+        } else {
+            newEntityNode.entity = entity;
+        }
+        System.arraycopy(leafNode.keys, pos, leafNode.keys, pos + 1, count - pos);
+        System.arraycopy(leafNode.longKeys, pos, leafNode.longKeys, pos + 1, count - pos);
+        System.arraycopy(leafNode.entityNodes, pos, leafNode.entityNodes, pos + 1, count - pos);
+        leafNode.keys[pos] = newEntityNode.entity;
+        leafNode.longKeys[pos] = longKey;
+        leafNode.entityNodes[pos] = newEntityNode;
+        leafNode.count = count + 1;
+        return newEntityNode.entity;
+    }
+
+    private static void removeFromLeafNode(LeafNode leafNode, int pos) {
+        int count = leafNode.count;
+        System.arraycopy(leafNode.keys, pos + 1, leafNode.keys, pos, count - pos - 1);
+        System.arraycopy(leafNode.longKeys, pos + 1, leafNode.longKeys, pos, count - pos - 1);
+        System.arraycopy(leafNode.entityNodes, pos + 1, leafNode.entityNodes, pos, count - pos - 1);
+        leafNode.keys[count - 1] = null;
+        leafNode.entityNodes[count - 1] = null;
+        leafNode.count = count - 1;
+    }
+
+    private void trySplit(InnerNode parent, long parentVersion, Node node, long version) {
+        if (parent != null && !EntityTableBpTreeIndex.tryLock(parent, parentVersion)) {
+            return;
+        }
+        try {
+            if (!EntityTableBpTreeIndex.tryLock(node, version)) {
+                return;
+            }
+            try {
+                if (parent == null && node != this.root) {
+                    // a new root is created by another thread
+                    return;
+                }
+                Entity separator;
+                long longSeparator;
+                Node newNode;
+                if (node instanceof LeafNode) {
+                    var leafNode = (LeafNode) node;
+                    var newLeafNode = new LeafNode();
+                    int half = FANOUT / 2;
+                    System.arraycopy(leafNode.keys, half, newLeafNode.keys, 0, FANOUT - half);
+                    System.arraycopy(leafNode.longKeys, half, newLeafNode.longKeys, 0, FANOUT - half);
+                    System.arraycopy(leafNode.entityNodes, half, newLeafNode.entityNodes, 0, FANOUT - half);
+                    newLeafNode.count = FANOUT - half;
+                    newLeafNode.next = leafNode.next;
+                    newLeafNode.highKey = leafNode.highKey;
+                    separator = newLeafNode.keys[0];
+                    longSeparator = newLeafNode.longKeys[0];
+                    leafNode.highKey = separator;
+                    leafNode.next = newLeafNode;
+                    for (int i = half; i < FANOUT; ++i) {
+                        leafNode.keys[i] = null;
+                        leafNode.entityNodes[i] = null;
+                    }
+                    leafNode.count = half;
+                    var changeRevision = leafNode.summary.changeRevision;
+                    this.updateStatistics(leafNode, 0);
+                    this.updateStatistics(newLeafNode, changeRevision);
+                    newNode = newLeafNode;
+                } else {
+                    var innerNode = (InnerNode) node;
+                    var newInnerNode = new InnerNode();
+                    int count = innerNode.count;
+                    int half = count / 2;
+                    separator = innerNode.keys[half];
+                    longSeparator = innerNode.longKeys[half];
+                    System.arraycopy(innerNode.keys, half + 1, newInnerNode.keys, 0, count - half - 1);
+                    System.arraycopy(innerNode.longKeys, half + 1, newInnerNode.longKeys, 0, count - half - 1);
+                    System.arraycopy(innerNode.children, half + 1, newInnerNode.children, 0, count - half);
+                    newInnerNode.count = count - half - 1;
+                    for (int i = half; i < count; ++i) {
+                        innerNode.keys[i] = null;
+                        innerNode.children[i + 1] = null;
+                    }
+                    innerNode.count = half;
+                    // the summary of the parent is unchanged, while the halves summarize their own children
+                    SUMMARY.setRelease(innerNode, EntityTableBpTreeIndex.summarizeChildren(innerNode));
+                    newInnerNode.summary = EntityTableBpTreeIndex.summarizeChildren(newInnerNode);
+                    newNode = newInnerNode;
+                }
+                if (parent == null) {
+                    var newRoot = new InnerNode();
+                    newRoot.keys[0] = separator;
+                    newRoot.longKeys[0] = longSeparator;
+                    newRoot.children[0] = node;
+                    newRoot.children[1] = newNode;
+                    newRoot.count = 1;
+                    newRoot.summary = EntityTableBpTreeIndex.summarizeChildren(newRoot);
+                    this.root = newRoot;
+                } else {
+                    int count = parent.count;
+                    int pos = this.upperBound(parent.keys, parent.longKeys, count, separator, longSeparator);
+                    System.arraycopy(parent.keys, pos, parent.keys, pos + 1, count - pos);
+                    System.arraycopy(parent.longKeys, pos, parent.longKeys, pos + 1, count - pos);
+                    System.arraycopy(parent.children, pos + 1, parent.children, pos + 2, count - pos);
+                    parent.keys[pos] = separator;
+                    parent.longKeys[pos] = longSeparator;
+                    parent.children[pos + 1] = newNode;
+                    parent.count = count + 1;
+                }
+            } finally {
+                EntityTableBpTreeIndex.unlock(node);
+            }
+        } finally {
+            if (parent != null) {
+                EntityTableBpTreeIndex.unlock(parent);
+            }
+        }
+    }
+
+    private LeafNode findLeafNode(Entity key, long longKey) {
+        return this.findLeafNode(key, longKey, null);
+    }
+
+    // collects the inner nodes on the way to the leaf node if the path is not null
+    private LeafNode findLeafNode(Entity key, long longKey, List<InnerNode> path) {
+        start:
+        for (; ; ) {
+            if (path != null) {
+                path.clear();
+            }
+            var node = this.root;
+            var version = EntityTableBpTreeIndex.readLock(node);
+            if (node != this.root) {
+                continue;
+            }
+            InnerNode parent = null;
+            long parentVersion = 0;
+            while (node instanceof InnerNode) {
+                var innerNode = (InnerNode) node;
+                if (parent != null && !EntityTableBpTreeIndex.validate(parent, parentVersion)) {
+                    continue start;
+                }
+                int pos = this.upperBound(
+                        innerNode.keys, innerNode.longKeys, Math.min(innerNode.count, FANOUT - 1), key, longKey);
+                if (pos < 0) {
+                    continue start;
+                }
+                var child = innerNode.children[pos];
+                if (child == null || !EntityTableBpTreeIndex.validate(innerNode, version)) {
+                    continue start;
+                }
+                if (path != null) {
+                    path.add(innerNode);
+                }
+                parent = innerNode;
+                parentVersion = version;
+                node = child;
+                version = EntityTableBpTreeIndex.readLock(node);
+            }
+            if (parent != null && !EntityTableBpTreeIndex.validate(parent, parentVersion)) {
+                continue;
+            }
+            return (LeafNode) node;
+        }
+    }
+
+    private LeafNode lockLeafNode(Entity key, long longKey) {
+        var leafNode = this.findLeafNode(key, longKey);
+        for (; ; ) {
+            EntityTableBpTreeIndex.lock(leafNode);
+            // the leaf node might be split before it is locked, make sure the key is still in its range
+            var highKey = leafNode.highKey;
+            if (highKey == null || this.entityComparator.compare(key, highKey) < 0) {
+                return leafNode;
+            }
+            var next = leafNode.next;
+            EntityTableBpTreeIndex.unlock(leafNode);
+            leafNode = next;
+        }
+    }
+
+    // returns -1 if a concurrent modification is detected
+    private int lowerBound(LeafNode leafNode, int count, Entity key, long longKey) {
+        return this.lowerBound(leafNode.keys, leafNode.longKeys, count, key, longKey);
+    }
+
+    private int lowerBound(Entity[] keys, long[] longKeys, int count, Entity key, long longKey) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            var k = keys[mid];
+            if (k == null) {
+                return -1;
+            }
+            if (this.compare(k, longKeys[mid], key, longKey) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int upperBound(Entity[] keys, long[] longKeys, int count, Entity key, long longKey) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            var k = keys[mid];
+            if (k == null) {
+                return -1;
+            }
+            if (this.compare(k, longKeys[mid], key, longKey) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private long getLongKey(Entity entity) {
+        return this.longKeyExtractor == null ? 0 : this.longKeyExtractor.applyAsLong(entity);
+    }
+
+    // compares the cached long keys first, the comparator is only needed to break ties
+    private int compare(Entity entity1, long longKey1, Entity entity2, long longKey2) {
+        if (this.longKeyExtractor != null) {
+            var c = Long.compare(longKey1, longKey2);
+            if (c != 0 || this.unique) {
+                return c;
+            }
+        }
+        return this.entityComparator.compare(entity1, entity2);
+    }
+
+    private boolean isVisible(long revision, EntityNode entityNode) {
+        var entity = this.getEntitySnapshot(revision, entityNode);
+        return entity != null && !((AbstractEntity) entity).isNull();
+    }
+
+    // must be called with the leaf node locked after its entities are changed, and followed by updateSummaries after
+    // it is unlocked unless the visible entities are the same at the change revision
+    private void updateStatistics(LeafNode leafNode, long revision) {
+        var changeRevision = Math.max(leafNode.summary.changeRevision, revision);
+        int liveCount = 0;
+        long liveSum = 0;
+        long liveMin = Long.MAX_VALUE;
+        long liveMax = Long.MIN_VALUE;
+        for (int i = 0; i < leafNode.count; ++i) {
+            var entity = this.getEntitySnapshot(changeRevision, leafNode.entityNodes[i]);
+            if (entity != null && !((AbstractEntity) entity).isNull()) {
+                ++liveCount;
+                if (this.valueExtractor != null) {
+                    var value = this.valueExtractor.applyAsLong(entity);
+                    liveSum += value;
+                    liveMin = Math.min(liveMin, value);
+                    liveMax = Math.max(liveMax, value);
+                }
+            }
+        }
+        SUMMARY.setRelease(leafNode, new Summary(changeRevision, liveCount, liveSum, liveMin, liveMax));
+    }
+
+    // recomputes the summaries of the inner nodes on the path to the key bottom up
+    private void updateSummaries(Entity key, long longKey) {
+        var path = new ArrayList<InnerNode>();
+        this.findLeafNode(key, longKey, path);
+        for (int i = path.size() - 1; i >= 0; --i) {
+            EntityTableBpTreeIndex.updateSummary(path.get(i));
+        }
+    }
+
+    // a summary computed from stale children fails to replace the one of a later update, so the last update sees the
+    // latest summaries of the children
+    private static void updateSummary(InnerNode innerNode) {
+        for (; ; ) {
+            var summary = (Summary) SUMMARY.getAcquire(innerNode);
+            var version = EntityTableBpTreeIndex.readLock(innerNode);
+            var newSummary = EntityTableBpTreeIndex.summarizeChildren(innerNode);
+            if (newSummary != null && EntityTableBpTreeIndex.validate(innerNode, version)
+                    && SUMMARY.compareAndSet(innerNode, summary, newSummary)) {
+                return;
+            }
+        }
+    }
+
+    // returns null if a concurrent modification is detected
+    private static Summary summarizeChildren(InnerNode innerNode) {
+        long changeRevision = 0;
+        long count = 0;
+        long sum = 0;
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i <= Math.min(innerNode.count, FANOUT - 1); ++i) {
+            var child = innerNode.children[i];
+            if (child == null) {
+                return null;
+            }
+            var summary = (Summary) SUMMARY.getAcquire(child);
+            changeRevision = Math.max(changeRevision, summary.changeRevision);
+            count += summary.count;
+            sum += summary.sum;
+            min = Math.min(min, summary.min);
+            max = Math.max(max, summary.max);
+        }
+        return new Summary(changeRevision, count, sum, min, max);
+    }
+
+    private Entity getEntitySnapshot(long revision, EntityNode entityNode) {
+        while (entityNode != null) {
+            var entity = (AbstractEntity) entityNode.entity;
+            if (entity.getRevision() <= revision) {
+                return EntityTableIndex.getLatestRevision(this.entityComparator, entity, revision);
+            }
+            entityNode = entityNode.next;
+        }
+        return null;
+    }
+
+    private static long readLock(Node node) {
+        for (; ; ) {
+            var version = (long) VERSION.getAcquire(node);
+            if ((version & 1) == 0) {
+                return version;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    private static boolean validate(Node node, long version) {
+        VarHandle.acquireFence();
+        return (long) VERSION.getVolatile(node) == version;
+    }
+
+    private static boolean tryLock(Node node, long version) {
+        return VERSION.compareAndSet(node, version, version + 1);
+    }
+
+    private static void lock(Node node) {
+        while (!EntityTableBpTreeIndex.tryLock(node, EntityTableBpTreeIndex.readLock(node))) {
+            Thread.onSpinWait();
+        }
+    }
+
+    private static void unlock(Node node) {
+        VERSION.setRelease(node, (long) VERSION.get(node) + 1);
+    }
+
+    private static final VarHandle VERSION;
+    private static final VarHandle SUMMARY;
 
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            VERSION = lookup.findVarHandle(Node.class, "version", long.class);
+            SUMMARY = lookup.findVarHandle(Node.class, "summary", Summary.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
     }
 }
@@ -0,0 +1,496 @@
+package io.phial;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.stream.Stream;
+
+// a lock-free hash index based on split-ordered lists, the bucket table grows without moving any node
+public class EntityTableHashIndex implements EntityTableIndex {
+    private static final int INITIAL_BUCKET_COUNT = 16;
+    private static final int MAX_BUCKET_COUNT = 1 << 30;
+
+    private final boolean unique;
+    private final EntityComparator entityComparator;
+
+    private final static EntityNode ENTITY_NODE_MARKER = new EntityNode();
+    private final static Entity ENTITY_MARKER = new NullEntity();
+
+    private static class EntityNode {
+        Entity entity;
+        EntityNode next;
+    }
+
+    private static class Node {
+        // the bit-reversed hash shifted left by one bit, the lowest bit is cleared for dummy nodes
+        long sortKey;
+        EntityNode entityNode;
+        Node next;
+    }
+
+    private final Node head = new Node();
+    private Node[] buckets = new Node[INITIAL_BUCKET_COUNT];
+    private int size;
+    private volatile EntityTableIndexStatistics statistics = EntityTableIndexStatistics.EMPTY;
+
+    public EntityTableHashIndex(boolean unique, EntityComparator entityComparator) {
+        this.unique = unique;
+        this.entityComparator = entityComparator;
+        this.buckets[0] = this.head;
+    }
+
+    @Override
+    public boolean isUnique() {
+        return this.unique;
+    }
+
+    @Override
+    public EntityComparator getEntityComparator() {
+        return this.entityComparator;
+    }
+
+    @Override
+    public Entity get(long transactionId, long snapshotRevision, Entity key) {
+        VarHandle.acquireFence();
+        var hash = this.hash(key);
+        var sortKey = EntityTableHashIndex.getRegularSortKey(hash);
+        for (var node = this.getBucketNode(hash).next; node != null; node = node.next) {
+            var entityNode = node.entityNode;
+            if (entityNode == ENTITY_NODE_MARKER) {
+                continue;
+            }
+            if (node.sortKey > sortKey) {
+                return null;
+            }
+            if (node.sortKey == sortKey
+                    && entityNode != null // removed
+                    && this.entityComparator.compare(key, entityNode.entity) == 0) {
+                return this.getEntitySnapshot(snapshotRevision, entityNode);
+            }
+        }
+        return null;
+    }
+
+    // keys of non-unique indexes are hashed without ids, so the entities of a key share a sort key
+    @Override
+    public Stream<Entity> queryKey(long transactionId, long snapshotRevision, Entity from, Entity to) {
+        VarHandle.acquireFence();
+        var hash = this.hash(from);
+        var sortKey = EntityTableHashIndex.getRegularSortKey(hash);
+        var result = new ArrayList<Entity>();
+        for (var node = this.getBucketNode(hash).next; node != null; node = node.next) {
+            var entityNode = node.entityNode;
+            if (entityNode == ENTITY_NODE_MARKER) {
+                continue;
+            }
+            if (node.sortKey > sortKey) {
+                break;
+            }
+            if (node.sortKey == sortKey
+                    && entityNode != null // removed
+                    && this.entityComparator.compare(from, entityNode.entity) <= 0
+                    && this.entityComparator.compare(entityNode.entity, to) <= 0) {
+                var entity = this.getEntitySnapshot(snapshotRevision, entityNode);
+                if (entity != null) {
+                    result.add(entity);
+                }
+            }
+        }
+        return result.stream();
+    }
+
+    @Override
+    public Entity put(Entity entity, boolean linkEntity, boolean mergeEntity) {
+        var hash = this.hash(entity);
+        var sortKey = EntityTableHashIndex.getRegularSortKey(hash);
+        var bucketNode = this.getBucketNode(hash);
+        var newEntityNode = new EntityNode();
+        start:
+        for (; ; ) {
+            VarHandle.acquireFence();
+            for (var node = bucketNode; ; ) {
+                var nextNode = node.next;
+                if (nextNode != null) {
+                    var nextEntityNode = nextNode.entityNode;
+                    if (nextEntityNode == ENTITY_NODE_MARKER) {
+                        // the current node is removed and can not be appended, restart from the bucket
+                        continue start;
+                    }
+                    if (nextEntityNode == null && (nextNode.sortKey & 1) != 0) {
+                        // help unlink the node to avoid busy wait
+                        this.unlinkNode(node, nextNode);
+                        continue;
+                    }
+                    if (nextNode.sortKey < sortKey) {
+                        node = nextNode;
+                        continue;
+                    }
+                    if (nextNode.sortKey == sortKey) {
+                        var nextEntity = (AbstractEntity) nextEntityNode.entity;
+                        if (this.entityComparator.compare(entity, nextEntity) != 0) {
+                            // hash collision
+                            node = nextNode;
+                            continue;
+                        }
+                        if (EntityTableIndex.isDuplicated(this.entityComparator, entity, nextEntity)) {
+                            throw new DuplicatedKeyException(this.entityComparator.getKeyString(entity));
+                        }
+                        if (mergeEntity) {
+                            newEntityNode.entity = ((AbstractEntity) entity).merge(nextEntity);
+                        } else {
+                            newEntityNode.entity = entity;
+                        }
+                        newEntityNode.next = nextEntityNode;
+                        if (!NODE_ENTITY_NODE.compareAndSet(nextNode, nextEntityNode, newEntityNode)) {
+                            // the next node is updated or removed, retry
+                            continue;
+                        }
+                        if (linkEntity) {
+                            nextEntity.setNextRevisionEntity(entity);
+                        }
+                        return newEntityNode.entity;
+                    }
+                }
+                // try to append
+                if (mergeEntity) {
+                    newEntityNode.entity = ((AbstractEntity) entity).merge(null);
+                    if (newEntityNode.entity == null) {
+                        // the entity is for update rather than insertion, and the original one is removed.
+                        return null;
+                    }
+                } else {
+                    newEntityNode.entity = entity;
+                }
+                newEntityNode.next = null;
+                var newNode = new Node();
+                newNode.sortKey = sortKey;
+                newNode.entityNode = newEntityNode;
+                newNode.next = nextNode;
+                if (!NODE_NEXT.compareAndSet(node, nextNode, newNode)) {
+                    // another node is inserted, or the node is removed, retry
+                    continue;
+                }
+                if (this.addSize(1) > this.buckets.length) {
+                    this.tryGrow();
+                }
+                return newEntityNode.entity;
+            }
+        }
+    }
+
+    @Override
+    public void remove(Entity entity) {
+        var hash = this.hash(entity);
+        var sortKey = EntityTableHashIndex.getRegularSortKey(hash);
+        var bucketNode = this.getBucketNode(hash);
+        start:
+        for (; ; ) {
+            VarHandle.acquireFence();
+            for (var prevNode = bucketNode; ; ) {
+                var currentNode = prevNode.next;
+                if (currentNode == null) {
+                    break start;
+                }
+                var currentEntityNode = currentNode.entityNode;
+                if (currentEntityNode == ENTITY_NODE_MARKER) {
+                    // the previous node is removed, restart from the bucket
+                    continue start;
+                }
+                if (currentEntityNode == null && (currentNode.sortKey & 1) != 0) {
+                    // help unlink
+                    this.unlinkNode(prevNode, currentNode);
+                    continue;
+                }
+                if (currentNode.sortKey > sortKey) {
+                    break start;
+                }
+                if (currentNode.sortKey < sortKey
+                        || currentEntityNode == null
+                        || this.entityComparator.compare(entity, currentEntityNode.entity) != 0) {
+                    prevNode = currentNode;
+                    continue;
+                }
+                EntityNode prevEntityNode = null;
+                do {
+                    var currentEntity = currentEntityNode.entity;
+                    if (currentEntity != ENTITY_MARKER) {
+                        var rev1 = ((AbstractEntity) entity).getRevision();
+                        var rev2 = ((AbstractEntity) currentEntity).getRevision();
+                        if (rev1 == rev2) {
+                            // remove the current entity node
+                            if (prevEntityNode == null) {
+                                // it is the first entity node
+                                EntityTableHashIndex.unlinkEntityNode(currentNode, currentEntityNode);
+                                if (currentNode.entityNode == null) {
+                                    // all entity nodes are removed, remove the node
+                                    this.addSize(-1);
+                                    this.unlinkNode(prevNode, currentNode);
+                                }
+                            } else {
+                                EntityTableHashIndex.unlinkEntityNode(prevEntityNode, currentEntityNode);
+                            }
+                            return;
+                        } else if (rev1 > rev2) {
+                            break start;
+                        }
+                    }
+                    prevEntityNode = currentEntityNode;
+                    currentEntityNode = currentEntityNode.next;
+                } while (currentEntityNode != null);
+                break start;
+            }
+        }
+        throw new RuntimeException("not found, key=" + this.entityComparator.getKeyString(entity));
+    }
+
+    @Override
+    public void garbageCollection(long revision) {
+        var collector = new EntityTableIndexStatistics.Collector(this.entityComparator, 0);
+        this.garbageCollection(revision, collector);
+        this.statistics = collector.build();
+    }
+
+    @Override
+    public EntityTableIndexStatistics getStatistics() {
+        return this.statistics;
+    }
+
+    private void garbageCollection(long revision, EntityTableIndexStatistics.Collector collector) {
+        VarHandle.acquireFence();
+        for (var prevNode = this.head; ; ) {
+            var currentNode = prevNode.next;
+            if (currentNode == null) {
+                return;
+            }
+            var currentEntityNode = currentNode.entityNode;
+            if (currentEntityNode == null && (currentNode.sortKey & 1) != 0) {
+                // help unlink
+                this.unlinkNode(prevNode, currentNode);
+                continue;
+            }
+            if (currentEntityNode != null && currentEntityNode != ENTITY_NODE_MARKER) { // ignore markers and dummies
+                EntityNode prevEntityNode = null;
+                do {
+                    var entity = (AbstractEntity) currentEntityNode.entity;
+                    if (entity != ENTITY_MARKER && entity.getRevision() <= revision) {
+                        Entity latestEntity = null;
+                        if (entity.isNull() || (latestEntity =
+                                EntityTableIndex.getLatestRevision(this.entityComparator, entity, revision)) == null) {
+                            if (prevEntityNode == null) { // the node can be removed
+                                if (!NODE_ENTITY_NODE.compareAndSet(currentNode, currentEntityNode, null)) {
+                                    // new revisions inserted, retry
+                                    continue;
+                                }
+                                this.addSize(-1);
+                                this.unlinkNode(prevNode, currentNode);
+                            } else {
+                                prevEntityNode.next = null;
+                            }
+                        } else {
+                            // later revisions with the same key take over the entry
+                            currentEntityNode.entity = latestEntity;
+                            currentEntityNode.next = null;
+                        }
+                        break;
+                    }
+                    prevEntityNode = currentEntityNode;
+                    currentEntityNode = currentEntityNode.next;
+                } while (currentEntityNode != null);
+                EntityTableHashIndex.collectStatistics(collector, currentNode.entityNode);
+            }
+            prevNode = currentNode;
+        }
+    }
+
+    private static void collectStatistics(EntityTableIndexStatistics.Collector collector, EntityNode entityNode) {
+        if (entityNode == null || entityNode == ENTITY_NODE_MARKER) {
+            return;
+        }
+        Entity first = null;
+        int chainLength = 0;
+        for (; entityNode != null; entityNode = entityNode.next) {
+            var entity = entityNode.entity;
+            if (entity != null && entity != ENTITY_MARKER) {
+                if (first == null) {
+                    first = entity;
+                }
+                ++chainLength;
+            }
+        }
+        if (first != null) {
+            collector.add(first, chainLength);
+        }
+    }
+
+    private int hash(Entity entity) {
+        var h = this.entityComparator.hash(entity);
+        return h ^ (h >>> 16);
+    }
+
+    private static long getRegularSortKey(int hash) {
+        return ((Integer.reverse(hash) & 0xffffffffL) << 1) | 1;
+    }
+
+    private static long getDummySortKey(int bucket) {
+        return (Integer.reverse(bucket) & 0xffffffffL) << 1;
+    }
+
+    private Node getBucketNode(int hash) {
+        var buckets = (Node[]) BUCKETS.getAcquire(this);
+        int bucket = hash & (buckets.length - 1);
+        var node = (Node) BUCKET.getAcquire(buckets, bucket);
+        if (node != null) {
+            return node;
+        }
+        return this.initializeBucket(buckets, bucket);
+    }
+
+    private Node initializeBucket(Node[] buckets, int bucket) {
+        // the parent bucket is split into this bucket and itself when the bucket table grows
+        int parentBucket = bucket & ~Integer.highestOneBit(bucket);
+        var parentNode = (Node) BUCKET.getAcquire(buckets, parentBucket);
+        if (parentNode == null) {
+            parentNode = this.initializeBucket(buckets, parentBucket);
+        }
+        var sortKey = EntityTableHashIndex.getDummySortKey(bucket);
+        var newNode = new Node();
+        newNode.sortKey = sortKey;
+        start:
+        for (; ; ) {
+            VarHandle.acquireFence();
+            for (var node = parentNode; ; ) {
+                var nextNode = node.next;
+                if (nextNode != null) {
+                    var nextEntityNode = nextNode.entityNode;
+                    if (nextEntityNode == ENTITY_NODE_MARKER) {
+                        continue start;
+                    }
+                    if (nextEntityNode == null && (nextNode.sortKey & 1) != 0) {
+                        this.unlinkNode(node, nextNode);
+                        continue;
+                    }
+                    if (nextNode.sortKey < sortKey) {
+                        node = nextNode;
+                        continue;
+                    }
+                    if (nextNode.sortKey == sortKey) {
+                        // initialized by another thread
+                        newNode = nextNode;
+                        break start;
+                    }
+                }
+                newNode.next = nextNode;
+                if (NODE_NEXT.compareAndSet(node, nextNode, newNode)) {
+                    break start;
+                }
+            }
+        }
+        BUCKET.compareAndSet(buckets, bucket, null, newNode);
+        return newNode;
+    }
+
+    private void tryGrow() {
+        var buckets = (Node[]) BUCKETS.getAcquire(this);
+        if (buckets.length >= MAX_BUCKET_COUNT) {
+            return;
+        }
+        var newBuckets = new Node[buckets.length * 2];
+        for (int i = 0; i < buckets.length; ++i) {
+            newBuckets[i] = (Node) BUCKET.getAcquire(buckets, i);
+        }
+        BUCKETS.compareAndSet(this, buckets, newBuckets);
+    }
+
+    private int addSize(int delta) {
+        return (int) SIZE.getAndAdd(this, delta) + delta;
+    }
+
+    private void unlinkNode(Node prev, Node node) {
+        Node next;
+        for (; ; ) {
+            next = node.next;
+            if (next != null && next.entityNode == ENTITY_NODE_MARKER) {
+                next = next.next;
+                break;
+            } else {
+                var marker = new Node();
+                marker.entityNode = ENTITY_NODE_MARKER;
+                marker.next = next;
+                if (NODE_NEXT.compareAndSet(node, next, marker)) {
+                    break;
+                }
+            }
+        }
+        NODE_NEXT.compareAndSet(prev, node, next);
+    }
+
+    private static void unlinkEntityNode(Node node, EntityNode entityNode) {
+        EntityNode next;
+        for (; ; ) {
+            next = entityNode.next;
+            if (next != null && next.entity == ENTITY_MARKER) {
+                next = next.next;
+                break;
+            } else {
+                var marker = new EntityNode();
+                marker.entity = ENTITY_MARKER;
+                marker.next = next;
+                if (ENTITY_NODE_NEXT.compareAndSet(entityNode, next, marker)) {
+                    break;
+                }
+            }
+        }
+        NODE_ENTITY_NODE.compareAndSet(node, entityNode, next);
+    }
+
+    private static void unlinkEntityNode(EntityNode prev, EntityNode node) {
+        EntityNode next;
+        for (; ; ) {
+            next = node.next;
+            if (next != null && next.entity == ENTITY_MARKER) {
+                next = next.next;
+                break;
+            } else {
+                var marker = new EntityNode();
+                marker.entity = ENTITY_MARKER;
+                marker.next = next;
+                if (ENTITY_NODE_NEXT.compareAndSet(node, next, marker)) {
+                    break;
+                }
+            }
+        }
+        ENTITY_NODE_NEXT.compareAndSet(prev, node, next);
+    }
+
+    private Entity getEntitySnapshot(long revision, EntityNode entityNode) {
+        while (entityNode != null) {
+            var entity = (AbstractEntity) entityNode.entity;
+            if (entity != null && entity != ENTITY_MARKER && entity.getRevision() <= revision) {
+                return EntityTableIndex.getLatestRevision(this.entityComparator, entity, revision);
+            }
+            entityNode = entityNode.next;
+        }
+        return null;
+    }
+
+    private static final VarHandle BUCKETS;
+    private static final VarHandle BUCKET;
+    private static final VarHandle SIZE;
+    private static final VarHandle NODE_NEXT;
+    private static final VarHandle NODE_ENTITY_NODE;
+    private static final VarHandle ENTITY_NODE_NEXT;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            BUCKETS = lookup.findVarHandle(EntityTableHashIndex.class, "buckets", Node[].class);
+            BUCKET = MethodHandles.arrayElementVarHandle(Node[].class);
+            SIZE = lookup.findVarHandle(EntityTableHashIndex.class, "size", int.class);
+            NODE_NEXT = lookup.findVarHandle(Node.class, "next", Node.class);
+            NODE_ENTITY_NODE = lookup.findVarHandle(Node.class, "entityNode", EntityNode.class);
+            ENTITY_NODE_NEXT = lookup.findVarHandle(EntityNode.class, "next", EntityNode.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
@@ -0,0 +1,463 @@
+package io.phial;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+// the primary index, a radix tree addressed by the sequentially allocated ids
+public class EntityTableIdIndex implements EntityTableSortedIndex {
+    private static final int SHIFT = 10;
+    private static final int FANOUT = 1 << SHIFT;
+    private static final long MASK = FANOUT - 1;
+
+    private final EntityComparator entityComparator;
+    // stores committed versions off-heap if not null
+    private final OffHeapEntityStorage offHeapEntityStorage;
+
+    private final static Entity ENTITY_MARKER = new NullEntity();
+
+    private static class EntityNode {
+        Entity entity;
+        EntityNode next;
+    }
+
+    private static class Root {
+        final int height;
+        // children of inner levels are Object[], slots of the leaf level are EntityNode
+        final Object[] slots;
+
+        Root(int height, Object[] slots) {
+            this.height = height;
+            this.slots = slots;
+        }
+    }
+
+    private Root root = new Root(1, new Object[FANOUT]);
+    private volatile EntityTableIndexStatistics statistics = EntityTableIndexStatistics.EMPTY;
+
+    public EntityTableIdIndex(EntityComparator entityComparator) {
+        this(entityComparator, null);
+    }
+
+    public EntityTableIdIndex(EntityComparator entityComparator, OffHeapEntityStorage offHeapEntityStorage) {
+        this.entityComparator = entityComparator;
+        this.offHeapEntityStorage = offHeapEntityStorage;
+    }
+
+    @Override
+    public boolean isUnique() {
+        return true;
+    }
+
+    @Override
+    public EntityComparator getEntityComparator() {
+        return this.entityComparator;
+    }
+
+    @Override
+    public Entity get(long transactionId, long snapshotRevision, Entity key) {
+        var id = key.getId();
+        var leaf = this.getLeaf(id, false);
+        if (leaf == null) {
+            return null;
+        }
+        var entityNode = (EntityNode) SLOT.getAcquire(leaf, (int) (id & MASK));
+        return EntityTableIdIndex.getEntitySnapshot(snapshotRevision, entityNode);
+    }
+
+    @Override
+    public Stream<Entity> query(long transactionId,
+                                long revision,
+                                Entity from,
+                                boolean fromInclusive,
+                                Entity to,
+                                boolean toInclusive) {
+        return this.query(revision, from, fromInclusive, to, toInclusive, false);
+    }
+
+    @Override
+    public Stream<Entity> queryDescending(long transactionId,
+                                          long revision,
+                                          Entity from,
+                                          boolean fromInclusive,
+                                          Entity to,
+                                          boolean toInclusive) {
+        return this.query(revision, from, fromInclusive, to, toInclusive, true);
+    }
+
+    private Stream<Entity> query(long revision,
+                                 Entity from,
+                                 boolean fromInclusive,
+                                 Entity to,
+                                 boolean toInclusive,
+                                 boolean descending) {
+        long fromId = from == null ? 0 : from.getId();
+        long toId = to == null ? Long.MAX_VALUE : to.getId();
+        if (from != null && !fromInclusive) {
+            if (fromId == Long.MAX_VALUE) {
+                return Stream.empty();
+            }
+            ++fromId;
+        }
+        if (to != null && !toInclusive) {
+            if (toId <= 0) {
+                return Stream.empty();
+            }
+            --toId;
+        }
+        long startId = Math.max(fromId, 0);
+        long endId = toId;
+        var iterator = new Iterator<Entity>() {
+            long id = descending ? endId : startId;
+            long leafIndex = -1;
+            Object[] leaf;
+            Entity next = this.getNext();
+
+            Entity getNext() {
+                while (this.id >= startId && this.id <= endId) {
+                    if (this.leaf == null || this.id >>> SHIFT != this.leafIndex) {
+                        var root = (Root) ROOT.getAcquire(EntityTableIdIndex.this);
+                        if (!EntityTableIdIndex.isInRange(root, this.id)) {
+                            if (!descending) {
+                                return null;
+                            }
+                            this.id = (1L << (SHIFT * root.height)) - 1;
+                            continue;
+                        }
+                        // descend to the leaf, skip the whole subtree if it is not allocated
+                        var slots = root.slots;
+                        int level = root.height - 1;
+                        for (; level > 0; --level) {
+                            int index = (int) ((this.id >>> (SHIFT * level)) & MASK);
+                            var child = (Object[]) SLOT.getAcquire(slots, index);
+                            if (child == null) {
+                                break;
+                            }
+                            slots = child;
+                        }
+                        if (level > 0) {
+                            this.leaf = null;
+                            this.id = descending
+                                    ? ((this.id >>> (SHIFT * level)) << (SHIFT * level)) - 1
+                                    : ((this.id >>> (SHIFT * level)) + 1) << (SHIFT * level);
+                            continue;
+                        }
+                        this.leaf = slots;
+                        this.leafIndex = this.id >>> SHIFT;
+                    }
+                    var entityNode = (EntityNode) SLOT.getAcquire(this.leaf, (int) (this.id & MASK));
+                    this.id += descending ? -1 : 1;
+                    var entity = EntityTableIdIndex.getEntitySnapshot(revision, entityNode);
+                    if (entity != null) {
+                        return entity;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return this.next != null;
+            }
+
+            @Override
+            public Entity next() {
+                var result = this.next;
+                this.next = this.getNext();
+                return result;
+            }
+        };
+        var spliterator = Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED);
+        return StreamSupport.stream(spliterator, false);
+    }
+
+    @Override
+    public Entity put(Entity entity, boolean linkEntity, boolean mergeEntity) {
+        var id = entity.getId();
+        var leaf = this.getLeaf(id, true);
+        int index = (int) (id & MASK);
+        var newEntityNode = new EntityNode();
+        for (; ; ) {
+            var nextEntityNode = (EntityNode) SLOT.getAcquire(leaf, index);
+            Entity result;
+            if (nextEntityNode != null) {
+                var nextEntity = (AbstractEntity) nextEntityNode.entity;
+                if (mergeEntity) {
+                    var base = this.offHeapEntityStorage == null ? nextEntity
+                            : this.offHeapEntityStorage.load(nextEntity);
+                    if (base == null) {
+                        // freed by garbage collection, the slot must be changed
+                        continue;
+                    }
+                    result = ((AbstractEntity) entity).merge(base);
+                } else {
+                    result = entity;
+                }
+            } else if (mergeEntity) {
+                result = ((AbstractEntity) entity).merge(null);
+                if (result == null) {
+                    // the entity is for update rather than insertion, and the original one is removed.
+                    return null;
+                }
+            } else {
+                result = entity;
+            }
+            newEntityNode.entity = this.offHeapEntityStorage == null ? result
+                    : this.offHeapEntityStorage.store(result);
+            newEntityNode.next = nextEntityNode;
+            if (!SLOT.compareAndSet(leaf, index, nextEntityNode, newEntityNode)) {
+                // the slot is updated or cleared, retry
+                this.freeEntity(newEntityNode.entity);
+                continue;
+            }
+            if (linkEntity && nextEntityNode != null) {
+                // off-heap versions are linked to each other, a heap copy is only kept while it is used
+                ((AbstractEntity) nextEntityNode.entity).setNextRevisionEntity(newEntityNode.entity);
+            }
+            return result;
+        }
+    }
+
+    @Override
+    public void remove(Entity entity) {
+        var id = entity.getId();
+        var leaf = this.getLeaf(id, false);
+        if (leaf != null) {
+            int index = (int) (id & MASK);
+            EntityNode prevEntityNode = null;
+            var rev1 = ((AbstractEntity) entity).getRevision();
+            for (var entityNode = (EntityNode) SLOT.getAcquire(leaf, index);
+                 entityNode != null;
+                 entityNode = entityNode.next) {
+                var currentEntity = entityNode.entity;
+                if (currentEntity != ENTITY_MARKER) {
+                    var rev2 = ((AbstractEntity) currentEntity).getRevision();
+                    if (rev1 == rev2) {
+                        if (prevEntityNode == null) {
+                            EntityTableIdIndex.unlinkEntityNode(leaf, index, entityNode);
+                        } else {
+                            EntityTableIdIndex.unlinkEntityNode(prevEntityNode, entityNode);
+                        }
+                        this.freeEntity(currentEntity);
+                        return;
+                    } else if (rev1 > rev2) {
+                        break;
+                    }
+                }
+                prevEntityNode = entityNode;
+            }
+        }
+        throw new RuntimeException("not found, key=" + this.entityComparator.getKeyString(entity));
+    }
+
+    @Override
+    public void garbageCollection(long revision) {
+        var root = (Root) ROOT.getAcquire(this);
+        var collector = new EntityTableIndexStatistics.Collector(this.entityComparator, 0);
+        this.garbageCollection(root.slots, root.height - 1, revision, collector);
+        this.statistics = collector.build();
+    }
+
+    @Override
+    public EntityTableIndexStatistics getStatistics() {
+        return this.statistics;
+    }
+
+    private void garbageCollection(Object[] slots,
+                                   int level,
+                                   long revision,
+                                   EntityTableIndexStatistics.Collector collector) {
+        for (int i = 0; i < FANOUT; ++i) {
+            var slot = SLOT.getAcquire(slots, i);
+            if (slot == null) {
+                continue;
+            }
+            if (level > 0) {
+                this.garbageCollection((Object[]) slot, level - 1, revision, collector);
+                continue;
+            }
+            int slotIndex = i;
+            var currentEntityNode = (EntityNode) slot;
+            EntityNode prevEntityNode = null;
+            do {
+                var entity = (AbstractEntity) currentEntityNode.entity;
+                if (entity != ENTITY_MARKER && entity.getRevision() <= revision) {
+                    AbstractEntity nextRevisionEntity;
+                    if (entity.isNull()
+                            || (nextRevisionEntity = (AbstractEntity) entity.getNextRevisionEntity()) != null
+                            && nextRevisionEntity.getRevision() <= revision) {
+                        if (prevEntityNode == null) { // the slot can be cleared
+                            if (!SLOT.compareAndSet(slots, i, currentEntityNode, null)) {
+                                // new revisions inserted, retry
+                                --i;
+                                break;
+                            }
+                        } else {
+                            prevEntityNode.next = null;
+                        }
+                        this.freeEntityNodes(currentEntityNode);
+                    } else {
+                        var garbage = currentEntityNode.next;
+                        currentEntityNode.next = null;
+                        this.freeEntityNodes(garbage);
+                    }
+                    break;
+                }
+                prevEntityNode = currentEntityNode;
+                currentEntityNode = currentEntityNode.next;
+            } while (currentEntityNode != null);
+            if (i == slotIndex) { // not retried
+                EntityTableIdIndex.collectStatistics(collector, (EntityNode) SLOT.getAcquire(slots, i));
+            }
+        }
+    }
+
+    private static void collectStatistics(EntityTableIndexStatistics.Collector collector, EntityNode entityNode) {
+        Entity first = null;
+        int chainLength = 0;
+        for (; entityNode != null; entityNode = entityNode.next) {
+            var entity = entityNode.entity;
+            if (entity != ENTITY_MARKER) {
+                if (first == null) {
+                    first = entity;
+                }
+                ++chainLength;
+            }
+        }
+        if (first != null) {
+            collector.add(first, chainLength);
+        }
+    }
+
+    private void freeEntity(Entity entity) {
+        if (this.offHeapEntityStorage != null) {
+            this.offHeapEntityStorage.free(entity);
+        }
+    }
+
+    private void freeEntityNodes(EntityNode entityNode) {
+        if (this.offHeapEntityStorage != null) {
+            for (; entityNode != null; entityNode = entityNode.next) {
+                if (entityNode.entity != ENTITY_MARKER) {
+                    this.offHeapEntityStorage.free(entityNode.entity);
+                }
+            }
+        }
+    }
+
+    private static boolean isInRange(Root root, long id) {
+        return SHIFT * root.height >= Long.SIZE - 1 || id >>> (SHIFT * root.height) == 0;
+    }
+
+    private Object[] getLeaf(long id, boolean createIfAbsent) {
+        if (id < 0) {
+            if (createIfAbsent) {
+                throw new IllegalArgumentException("invalid id " + id);
+            }
+            return null;
+        }
+        var root = (Root) ROOT.getAcquire(this);
+        while (!EntityTableIdIndex.isInRange(root, id)) {
+            if (!createIfAbsent) {
+                return null;
+            }
+            // ids in the current tree always start with zeros in the new level
+            var slots = new Object[FANOUT];
+            slots[0] = root.slots;
+            var newRoot = new Root(root.height + 1, slots);
+            if (ROOT.compareAndSet(this, root, newRoot)) {
+                root = newRoot;
+            } else {
+                root = (Root) ROOT.getAcquire(this);
+            }
+        }
+        var slots = root.slots;
+        for (int level = root.height - 1; level > 0; --level) {
+            int index = (int) ((id >>> (SHIFT * level)) & MASK);
+            var child = (Object[]) SLOT.getAcquire(slots, index);
+            if (child == null) {
+                if (!createIfAbsent) {
+                    return null;
+                }
+                child = new Object[FANOUT];
+                if (!SLOT.compareAndSet(slots, index, null, child)) {
+                    child = (Object[]) SLOT.getAcquire(slots, index);
+                }
+            }
+            slots = child;
+        }
+        return slots;
+    }
+
+    private static void unlinkEntityNode(Object[] leaf, int index, EntityNode entityNode) {
+        EntityNode next;
+        for (; ; ) {
+            next = entityNode.next;
+            if (next != null && next.entity == ENTITY_MARKER) {
+                next = next.next;
+                break;
+            } else {
+                var marker = new EntityNode();
+                marker.entity = ENTITY_MARKER;
+                marker.next = next;
+                if (ENTITY_NODE_NEXT.compareAndSet(entityNode, next, marker)) {
+                    break;
+                }
+            }
+        }
+        SLOT.compareAndSet(leaf, index, entityNode, next);
+    }
+
+    private static void unlinkEntityNode(EntityNode prev, EntityNode node) {
+        EntityNode next;
+        for (; ; ) {
+            next = node.next;
+            if (next != null && next.entity == ENTITY_MARKER) {
+                next = next.next;
+                break;
+            } else {
+                var marker = new EntityNode();
+                marker.entity = ENTITY_MARKER;
+                marker.next = next;
+                if (ENTITY_NODE_NEXT.compareAndSet(node, next, marker)) {
+                    break;
+                }
+            }
+        }
+        ENTITY_NODE_NEXT.compareAndSet(prev, node, next);
+    }
+
+    private static Entity getEntitySnapshot(long revision, EntityNode entityNode) {
+        while (entityNode != null) {
+            var entity = (AbstractEntity) entityNode.entity;
+            if (entity != null && entity != ENTITY_MARKER && entity.getRevision() <= revision) {
+                var nextRevisionEntity = (AbstractEntity) entity.getNextRevisionEntity();
+                if (nextRevisionEntity != null && nextRevisionEntity.getRevision() <= revision) {
+                    return null;
+                }
+                return entity;
+            }
+            entityNode = entityNode.next;
+        }
+        return null;
+    }
+
+    private static final VarHandle ROOT;
+    private static final VarHandle SLOT;
+    private static final VarHandle ENTITY_NODE_NEXT;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            ROOT = lookup.findVarHandle(EntityTableIdIndex.class, "root", Root.class);
+            SLOT = MethodHandles.arrayElementVarHandle(Object[].class);
+            ENTITY_NODE_NEXT = lookup.findVarHandle(EntityNode.class, "next", EntityNode.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
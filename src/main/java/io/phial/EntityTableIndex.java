@@ -1,13 +1,56 @@
 package io.phial;
 
+import java.util.List;
+import java.util.stream.Stream;
+
 public interface EntityTableIndex {
     boolean isUnique();
 
+    EntityComparator getEntityComparator();
+
     Entity get(long transactionId, long snapshotRevision, Entity key);
 
+    // the entities from one bound to the other of a single key, in no particular order
+    default Stream<Entity> queryKey(long transactionId, long snapshotRevision, Entity from, Entity to) {
+        throw new IllegalArgumentException("keys are not queried by the index");
+    }
+
     Entity put(Entity entity, boolean linkEntity, boolean mergeEntity);
 
+    // sorted indexes expect the entities in the order of keys, stops at the first failure
+    default void putAll(List<Entity> entities) {
+        for (var entity : entities) {
+            this.put(entity, false, false);
+        }
+    }
+
     void remove(Entity entity);
 
     void garbageCollection(long revision);
+
+    default EntityTableIndexStatistics getStatistics() {
+        return EntityTableIndexStatistics.EMPTY;
+    }
+
+    // the key of an entity moved or removed at the revision of the new one is free
+    static boolean isDuplicated(EntityComparator comparator, Entity entity, Entity existingEntity) {
+        return entity.getId() != existingEntity.getId()
+                && getLatestRevision(comparator, existingEntity, ((AbstractEntity) entity).getRevision()) != null;
+    }
+
+    // secondary indexes keep a single entry for consecutive revisions of an entity with the same key. returns null if
+    // the entity is removed or moved to another key before the snapshot
+    static Entity getLatestRevision(EntityComparator comparator, Entity entity, long revision) {
+        var result = (AbstractEntity) entity;
+        for (; ; ) {
+            var nextRevisionEntity = (AbstractEntity) result.getNextRevisionEntity();
+            if (nextRevisionEntity == null || nextRevisionEntity.getRevision() > revision) {
+                return result;
+            }
+            if (nextRevisionEntity.isNull() || comparator.compare(nextRevisionEntity, entity) != 0) {
+                return null;
+            }
+            result = nextRevisionEntity;
+        }
+    }
 }
@@ -0,0 +1,141 @@
+package io.phial;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// statistics of an index collected by its last garbage collection
+public class EntityTableIndexStatistics {
+    static final int HISTOGRAM_BUCKETS = 32;
+    // a HyperLogLog sketch with 2^12 registers, the standard error is about 1.6%
+    private static final int PRECISION = 12;
+
+    static final EntityTableIndexStatistics EMPTY = new EntityTableIndexStatistics(0, 0, 0, 0, List.of());
+
+    private final long keyCount;
+    private final long versionCount;
+    private final long tombstoneCount;
+    private final long distinctKeyCount;
+    private final List<Entity> histogram;
+
+    private EntityTableIndexStatistics(long keyCount,
+                                       long versionCount,
+                                       long tombstoneCount,
+                                       long distinctKeyCount,
+                                       List<Entity> histogram) {
+        this.keyCount = keyCount;
+        this.versionCount = versionCount;
+        this.tombstoneCount = tombstoneCount;
+        this.distinctKeyCount = distinctKeyCount;
+        this.histogram = histogram;
+    }
+
+    public long getKeyCount() {
+        return this.keyCount;
+    }
+
+    public long getVersionCount() {
+        return this.versionCount;
+    }
+
+    public long getTombstoneCount() {
+        return this.tombstoneCount;
+    }
+
+    // estimated, ids are not counted for non-unique indexes
+    public long getDistinctKeyCount() {
+        return this.distinctKeyCount;
+    }
+
+    public double getAverageChainLength() {
+        return this.keyCount == 0 ? 0 : (double) this.versionCount / this.keyCount;
+    }
+
+    public double getTombstoneRatio() {
+        return this.keyCount == 0 ? 0 : (double) this.tombstoneCount / this.keyCount;
+    }
+
+    // the least keys of buckets with about the same number of keys in ascending order, empty for unsorted indexes
+    public List<Entity> getHistogram() {
+        return this.histogram;
+    }
+
+    static class Collector {
+        private final EntityComparator entityComparator;
+        private final byte[] registers = new byte[1 << PRECISION];
+        // the stride is doubled whenever there are too many samples
+        private long histogramStride;
+        private final List<Entity> histogram = new ArrayList<>();
+        private long keyCount;
+        private long versionCount;
+        private long tombstoneCount;
+
+        Collector(EntityComparator entityComparator, long histogramStride) {
+            this.entityComparator = entityComparator;
+            this.histogramStride = histogramStride;
+        }
+
+        static long getHistogramStride(EntityTableIndexStatistics last) {
+            return Math.max(1, last.keyCount / HISTOGRAM_BUCKETS);
+        }
+
+        void add(Entity entity, int chainLength) {
+            if (this.histogramStride > 0 && this.keyCount % this.histogramStride == 0) {
+                if (this.histogram.size() == HISTOGRAM_BUCKETS * 2) {
+                    for (int i = 0; i < HISTOGRAM_BUCKETS; ++i) {
+                        this.histogram.set(i, this.histogram.get(i * 2));
+                    }
+                    this.histogram.subList(HISTOGRAM_BUCKETS, HISTOGRAM_BUCKETS * 2).clear();
+                    this.histogramStride *= 2;
+                }
+                if (this.keyCount % this.histogramStride == 0) {
+                    this.histogram.add(entity);
+                }
+            }
+            ++this.keyCount;
+            this.versionCount += chainLength;
+            if (((AbstractEntity) entity).isNull() || ((AbstractEntity) entity).getNextRevisionEntity() != null) {
+                ++this.tombstoneCount;
+            }
+            // mix the bits as the hash of keys may be poorly distributed, e.g. ids
+            long hash = this.entityComparator.hash(entity) * 0x9E3779B97F4A7C15L;
+            hash ^= hash >>> 32;
+            hash *= 0xC2B2AE3D27D4EB4FL;
+            hash ^= hash >>> 29;
+            int register = (int) (hash >>> (Long.SIZE - PRECISION));
+            var rank = (byte) (Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1);
+            if (this.registers[register] < rank) {
+                this.registers[register] = rank;
+            }
+        }
+
+        EntityTableIndexStatistics build() {
+            return this.build(this.histogram);
+        }
+
+        EntityTableIndexStatistics build(List<Entity> histogram) {
+            int m = this.registers.length;
+            double sum = 0;
+            int zeros = 0;
+            for (var register : this.registers) {
+                sum += 1.0 / (1L << register);
+                if (register == 0) {
+                    ++zeros;
+                }
+            }
+            double estimate = 0.7213 / (1 + 1.079 / m) * m * m / sum;
+            if (estimate <= 2.5 * m && zeros > 0) {
+                // linear counting is more accurate for small cardinalities
+                estimate = m * Math.log((double) m / zeros);
+            }
+            var distinctKeyCount = Math.min(Math.round(estimate), this.keyCount);
+            // keep evenly spaced samples as bucket bounds
+            var buckets = new ArrayList<Entity>();
+            int bucketCount = Math.min(histogram.size(), HISTOGRAM_BUCKETS);
+            for (int i = 0; i < bucketCount; ++i) {
+                buckets.add(histogram.get(i * histogram.size() / bucketCount));
+            }
+            return new EntityTableIndexStatistics(
+                    this.keyCount, this.versionCount, this.tombstoneCount, distinctKeyCount, List.copyOf(buckets));
+        }
+    }
+}
@@ -0,0 +1,1095 @@
+package io.phial;
+
+import io.phial.memory.FreedMemoryGcManager;
+import io.phial.memory.MemoryArena;
+import io.phial.memory.SlabAllocator;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+// the same algorithm as EntityTableSkipListIndex, but base nodes and index nodes are allocated from slabs.
+// removed nodes are freed by the freed memory gc manager after all operations seeing them are done
+public class EntityTableOffHeapSkipListIndex implements EntityTableSortedIndex {
+    private static final int NODE_SIZE = 32;
+
+    // base node layout
+    private static final int BASE_NODE_HANDLE = 0;
+    private static final int BASE_NODE_NEXT = 8;
+    private static final int BASE_NODE_STATE = 16;
+    // the top index node allocated for the base node, all index nodes below it are freed with the base node
+    private static final int BASE_NODE_TOWER = 24;
+
+    // index node layout
+    private static final int INDEX_NODE_BASE_NODE = 0;
+    private static final int INDEX_NODE_DOWN = 8;
+    private static final int INDEX_NODE_RIGHT = 16;
+
+    private static final long STATE_UNLINKED = 1;
+    private static final long STATE_RETIRED = 2;
+    private static final long STATE_REFERENCE = 4;
+
+    // set on the right pointer of an index node whose base node is removed, so nothing can be linked after it
+    private static final long DELETED = 1;
+
+    private static final long MARKER_HANDLE = -1;
+    private static final int HEAD_HANDLE = 0;
+    private static final int HANDLE_SEGMENT_SHIFT = 12;
+    private static final int HANDLE_SEGMENT_SIZE = 1 << HANDLE_SEGMENT_SHIFT;
+
+    // entities are copied out in batches, so no epoch is held between two calls of the iterator
+    private static final int QUERY_BATCH_SIZE = 64;
+
+    private final boolean unique;
+    private final EntityComparator entityComparator;
+    private final FreedMemoryGcManager freedMemoryGcManager;
+    private final SlabAllocator slabAllocator;
+    private final SlabAllocator baseNodeAllocator;
+
+    private final static EntityNode ENTITY_NODE_MARKER = new EntityNode();
+    private final static Entity ENTITY_MARKER = new NullEntity();
+
+    private static class EntityNode {
+        Entity entity;
+        EntityNode next;
+    }
+
+    private long headIndexNode;
+    private volatile EntityTableIndexStatistics statistics = EntityTableIndexStatistics.EMPTY;
+
+    private volatile EntityNode[][] handleSegments = new EntityNode[16][];
+    private int handleCount = HEAD_HANDLE + 1;
+    private final Queue<Integer> freeHandles = new ConcurrentLinkedQueue<>();
+
+    public EntityTableOffHeapSkipListIndex(boolean unique,
+                                           EntityComparator entityComparator,
+                                           MemoryArena memoryArena,
+                                           FreedMemoryGcManager freedMemoryGcManager) {
+        this.unique = unique;
+        this.entityComparator = entityComparator;
+        this.freedMemoryGcManager = freedMemoryGcManager;
+        this.slabAllocator = memoryArena.getSlabAllocator(NODE_SIZE);
+        this.baseNodeAllocator = new SlabAllocator() {
+            @Override
+            public long allocate() {
+                return EntityTableOffHeapSkipListIndex.this.slabAllocator.allocate();
+            }
+
+            @Override
+            public void free(long address) {
+                var handle = getLong(address, BASE_NODE_HANDLE);
+                if (handle != MARKER_HANDLE) {
+                    EntityTableOffHeapSkipListIndex.this.freeHandles.add((int) handle);
+                }
+                EntityTableOffHeapSkipListIndex.this.slabAllocator.free(address);
+            }
+
+            @Override
+            public long getSlabSize() {
+                return NODE_SIZE;
+            }
+        };
+        this.ensureHandleSegment(HEAD_HANDLE);
+    }
+
+    @Override
+    public boolean isUnique() {
+        return this.unique;
+    }
+
+    @Override
+    public EntityComparator getEntityComparator() {
+        return this.entityComparator;
+    }
+
+    @Override
+    public Entity get(long transactionId, long snapshotRevision, Entity key) {
+        var epoch = this.freedMemoryGcManager.joinEpoch();
+        try {
+            return this.getEntitySnapshot(snapshotRevision, this.getFirstEntityNode(key));
+        } finally {
+            this.freedMemoryGcManager.leaveEpoch(epoch);
+        }
+    }
+
+    @Override
+    public Stream<Entity> query(long transactionId,
+                                long revision,
+                                Entity from,
+                                boolean fromInclusive,
+                                Entity to,
+                                boolean toInclusive) {
+        var iterator = new Iterator<Entity>() {
+            final ArrayDeque<Entity> buffer = new ArrayDeque<>();
+            // the key of the last visited base node, the next batch starts after it
+            Entity lastKey;
+            boolean finished;
+
+            {
+                this.fill();
+            }
+
+            void fill() {
+                var index = EntityTableOffHeapSkipListIndex.this;
+                var epoch = index.freedMemoryGcManager.joinEpoch();
+                try {
+                    long baseNode = this.lastKey == null
+                            ? index.findNearestBaseNode(from, fromInclusive ? EQUAL : 0)
+                            : index.findNearestBaseNode(this.lastKey, 0);
+                    int visited = 0;
+                    while (baseNode != 0 && visited < QUERY_BATCH_SIZE) {
+                        var entityNode = index.getEntityNode(baseNode);
+                        baseNode = getLong(baseNode, BASE_NODE_NEXT);
+                        if (entityNode != null && entityNode != ENTITY_NODE_MARKER) {
+                            ++visited;
+                            this.lastKey = entityNode.entity;
+                            var c = to == null ? -1 : index.entityComparator.compare(entityNode.entity, to);
+                            if (c > 0 || c == 0 && !toInclusive) {
+                                this.finished = true;
+                                return;
+                            }
+                            var entity = index.getEntitySnapshot(revision, entityNode);
+                            if (entity != null) {
+                                this.buffer.add(entity);
+                            }
+                        }
+                    }
+                    if (baseNode == 0) {
+                        this.finished = true;
+                    }
+                } finally {
+                    index.freedMemoryGcManager.leaveEpoch(epoch);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                while (this.buffer.isEmpty() && !this.finished) {
+                    this.fill();
+                }
+                return !this.buffer.isEmpty();
+            }
+
+            @Override
+            public Entity next() {
+                this.hasNext();
+                return this.buffer.poll();
+            }
+        };
+        var spliterator = Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED);
+        return StreamSupport.stream(spliterator, false);
+    }
+
+    @Override
+    public Stream<Entity> queryDescending(long transactionId,
+                                          long revision,
+                                          Entity from,
+                                          boolean fromInclusive,
+                                          Entity to,
+                                          boolean toInclusive) {
+        var iterator = new Iterator<Entity>() {
+            final ArrayDeque<Entity> buffer = new ArrayDeque<>();
+            Entity bound = to;
+            boolean boundInclusive = toInclusive;
+            boolean finished;
+
+            {
+                this.fill();
+            }
+
+            void fill() {
+                var index = EntityTableOffHeapSkipListIndex.this;
+                var epoch = index.freedMemoryGcManager.joinEpoch();
+                try {
+                    for (int visited = 0; visited < QUERY_BATCH_SIZE; ) {
+                        long baseNode = this.bound == null ? index.findLastBaseNode()
+                                : index.findNearestBaseNode(this.bound, LESS_THAN | (this.boundInclusive ? EQUAL : 0));
+                        if (baseNode == 0 || baseNode == index.getFirstBaseNode()) {
+                            this.finished = true;
+                            return;
+                        }
+                        var entityNode = index.getEntityNode(baseNode);
+                        if (entityNode == null || entityNode == ENTITY_NODE_MARKER) {
+                            // removed concurrently, search again
+                            continue;
+                        }
+                        ++visited;
+                        if (from != null) {
+                            var c = index.entityComparator.compare(entityNode.entity, from);
+                            if (c < 0 || c == 0 && !fromInclusive) {
+                                this.finished = true;
+                                return;
+                            }
+                        }
+                        this.bound = entityNode.entity;
+                        this.boundInclusive = false;
+                        var entity = index.getEntitySnapshot(revision, entityNode);
+                        if (entity != null) {
+                            this.buffer.add(entity);
+                        }
+                    }
+                } finally {
+                    index.freedMemoryGcManager.leaveEpoch(epoch);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                while (this.buffer.isEmpty() && !this.finished) {
+                    this.fill();
+                }
+                return !this.buffer.isEmpty();
+            }
+
+            @Override
+            public Entity next() {
+                this.hasNext();
+                return this.buffer.poll();
+            }
+        };
+        var spliterator = Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED);
+        return StreamSupport.stream(spliterator, false);
+    }
+
+    @Override
+    public Entity put(Entity entity, boolean linkEntity, boolean mergeEntity) {
+        var epoch = this.freedMemoryGcManager.joinEpoch();
+        try {
+            return this.doPut(entity, linkEntity, mergeEntity);
+        } finally {
+            this.freedMemoryGcManager.leaveEpoch(epoch);
+        }
+    }
+
+    @Override
+    public void remove(Entity entity) {
+        var epoch = this.freedMemoryGcManager.joinEpoch();
+        try {
+            this.doRemove(entity);
+        } finally {
+            this.freedMemoryGcManager.leaveEpoch(epoch);
+        }
+    }
+
+    @Override
+    public void garbageCollection(long revision) {
+        var epoch = this.freedMemoryGcManager.joinEpoch();
+        try {
+            this.statistics = this.doGarbageCollection(revision);
+        } finally {
+            this.freedMemoryGcManager.leaveEpoch(epoch);
+        }
+    }
+
+    @Override
+    public EntityTableIndexStatistics getStatistics() {
+        return this.statistics;
+    }
+
+    private Entity doPut(Entity entity, boolean linkEntity, boolean mergeEntity) {
+        var newEntityNode = new EntityNode();
+        start:
+        for (; ; ) {
+            long firstIndexNode = this.getFirstIndexNode();
+            // search the index for the first possible insertion point
+            int levels = 0; // how many levels goes down when searching the index
+            long firstBaseNode;
+            for (long indexNode = firstIndexNode; ; ) {
+                for (; ; ) {
+                    long rightIndexNode = getLong(indexNode, INDEX_NODE_RIGHT);
+                    if ((rightIndexNode & DELETED) != 0) {
+                        // the index node is removed, restart from the very beginning
+                        continue start;
+                    }
+                    if (rightIndexNode == 0) {
+                        break;
+                    }
+                    var rightEntityNode = this.getEntityNode(getLong(rightIndexNode, INDEX_NODE_BASE_NODE));
+                    if (rightEntityNode == null) {
+                        this.unlinkIndexNode(indexNode, rightIndexNode);
+                    } else if (this.entityComparator.compare(entity, rightEntityNode.entity) > 0) {
+                        indexNode = rightIndexNode;
+                    } else {
+                        break;
+                    }
+                }
+                long downIndexNode = getLong(indexNode, INDEX_NODE_DOWN);
+                if (downIndexNode == 0) {
+                    firstBaseNode = getLong(indexNode, INDEX_NODE_BASE_NODE);
+                    break;
+                }
+                indexNode = downIndexNode;
+                ++levels;
+            }
+
+            // iterate over the base node list, update the base node if a matching entity is found, or insert a new one
+            for (long baseNode = firstBaseNode; ; ) {
+                long nextBaseNode = getLong(baseNode, BASE_NODE_NEXT);
+                if (nextBaseNode != 0) {
+                    var nextEntityNode = this.getEntityNode(nextBaseNode);
+                    if (nextEntityNode == ENTITY_NODE_MARKER) {
+                        // the current base node is removed, restart from the very beginning
+                        continue start;
+                    }
+                    if (nextEntityNode == null) {
+                        // help unlink the base node to avoid busy wait
+                        this.unlinkBaseNode(baseNode, nextBaseNode);
+                        continue;
+                    }
+                    var nextEntity = (AbstractEntity) nextEntityNode.entity;
+                    var c = this.entityComparator.compare(entity, nextEntity);
+                    if (c > 0) {
+                        baseNode = nextBaseNode;
+                        continue;
+                    }
+                    if (c == 0) {
+                        if (EntityTableIndex.isDuplicated(this.entityComparator, entity, nextEntity)) {
+                            throw new DuplicatedKeyException(this.entityComparator.getKeyString(entity));
+                        }
+                        if (mergeEntity) {
+                            newEntityNode.entity = ((AbstractEntity) entity).merge(nextEntity);
+                        } else {
+                            newEntityNode.entity = entity;
+                        }
+                        newEntityNode.next = nextEntityNode;
+                        if (!this.casEntityNode(nextBaseNode, nextEntityNode, newEntityNode)) {
+                            // the next base node is updated or removed, retry
+                            continue;
+                        }
+                        if (linkEntity) {
+                            nextEntity.setNextRevisionEntity(entity);
+                        }
+                        // no need to update the index
+                        return newEntityNode.entity;
+                    }
+                }
+                // try to append
+                if (mergeEntity) {
+                    newEntityNode.entity = ((AbstractEntity) entity).merge(null);
+                    if (newEntityNode.entity == null) {
+                        // the entity is for update rather than insertion, and the original one is removed.
+                        return null;
+                    }
+                } else {
+                    newEntityNode.entity = entity;
+                }
+                newEntityNode.next = null;
+                int handle = this.allocateHandle();
+                this.setEntityNode(handle, newEntityNode);
+                long newBaseNode = this.allocateBaseNode(handle, nextBaseNode);
+                if (!casLong(baseNode, BASE_NODE_NEXT, nextBaseNode, newBaseNode)) {
+                    // the new base node is never published, free it directly and retry
+                    this.setEntityNode(handle, null);
+                    this.freeHandles.add(handle);
+                    this.slabAllocator.free(newBaseNode);
+                    continue;
+                }
+                this.updateIndex(newBaseNode, firstIndexNode, levels);
+                return newEntityNode.entity;
+            }
+        }
+    }
+
+    private void doRemove(Entity entity) {
+        start:
+        for (; ; ) {
+            long prevBaseNode = this.findNearestBaseNode(entity, LESS_THAN);
+            if (prevBaseNode == 0) {
+                // empty index
+                throw new RuntimeException(
+                        "not found, key=" + this.entityComparator.getKeyString(entity));
+            }
+            for (; ; ) {
+                long currentBaseNode = getLong(prevBaseNode, BASE_NODE_NEXT);
+                if (currentBaseNode == 0) {
+                    // not found
+                    throw new RuntimeException(
+                            "not found, key=" + this.entityComparator.getKeyString(entity));
+                }
+                var currentEntityNode = this.getEntityNode(currentBaseNode);
+                if (currentEntityNode == null) {
+                    // help unlink
+                    this.unlinkBaseNode(prevBaseNode, currentBaseNode);
+                    continue;
+                }
+                if (currentEntityNode == ENTITY_NODE_MARKER) {
+                    // the previous base node is removed, restart from the very beginning
+                    continue start;
+                }
+                var c = this.entityComparator.compare(entity, currentEntityNode.entity);
+                if (c == 0) {
+                    EntityNode prevEntityNode = null;
+                    do {
+                        var currentEntity = currentEntityNode.entity;
+                        if (currentEntity != ENTITY_MARKER) {
+                            var rev1 = ((AbstractEntity) entity).getRevision();
+                            var rev2 = ((AbstractEntity) currentEntity).getRevision();
+                            if (rev1 == rev2) {
+                                // remove the current entity node
+                                if (prevEntityNode == null) {
+                                    // it is the first entity node
+                                    this.unlinkEntityNode(currentBaseNode, currentEntityNode);
+                                    if (this.getEntityNode(currentBaseNode) == null) {
+                                        // all entity nodes are removed, remove the base node
+                                        this.unlinkBaseNode(prevBaseNode, currentBaseNode);
+                                        // traverse index to clean up unnecessary index nodes
+                                        this.findPredecessorByIndex(entity);
+                                        this.tryReduceIndexLevel();
+                                    }
+                                } else {
+                                    EntityTableOffHeapSkipListIndex.unlinkEntityNode(prevEntityNode,
+                                            currentEntityNode);
+                                }
+                                return;
+                            } else if (rev1 > rev2) {
+                                // not found
+                                throw new RuntimeException(
+                                        "not found, key=" + this.entityComparator.getKeyString(entity));
+                            }
+                        }
+                        prevEntityNode = currentEntityNode;
+                        currentEntityNode = currentEntityNode.next;
+                    } while (currentEntityNode != null);
+                    // not found
+                    throw new RuntimeException(
+                            "not found, key=" + this.entityComparator.getKeyString(entity));
+                }
+                if (c < 0) {
+                    // not found
+                    throw new RuntimeException(
+                            "not found, key=" + this.entityComparator.getKeyString(entity));
+                }
+                prevBaseNode = currentBaseNode;
+            }
+        }
+    }
+
+    private EntityTableIndexStatistics doGarbageCollection(long revision) {
+        start:
+        for (; ; ) {
+            // statistics are collected again from the beginning on restarts
+            var collector = new EntityTableIndexStatistics.Collector(
+                    this.entityComparator, EntityTableIndexStatistics.Collector.getHistogramStride(this.statistics));
+            long prevBaseNode = this.getFirstBaseNode();
+            if (prevBaseNode == 0) {
+                // empty index
+                return collector.build();
+            }
+            for (; ; ) {
+                long currentBaseNode = getLong(prevBaseNode, BASE_NODE_NEXT);
+                if (currentBaseNode == 0) {
+                    return collector.build();
+                }
+                var currentEntityNode = this.getEntityNode(currentBaseNode);
+                if (currentEntityNode == null) {
+                    // help unlink
+                    this.unlinkBaseNode(prevBaseNode, currentBaseNode);
+                    continue;
+                }
+                if (currentEntityNode == ENTITY_NODE_MARKER) {
+                    // the previous base node is removed by others, a marker must never be used as a predecessor
+                    continue start;
+                }
+                EntityNode prevEntityNode = null;
+                do {
+                    var entity = (AbstractEntity) currentEntityNode.entity;
+                    if (entity != ENTITY_MARKER && entity.getRevision() <= revision) {
+                        Entity latestEntity = null;
+                        if (entity.isNull() || (latestEntity =
+                                EntityTableIndex.getLatestRevision(this.entityComparator, entity, revision)) == null) {
+                            if (prevEntityNode == null) { // the base node can be removed
+                                if (!this.casEntityNode(currentBaseNode, currentEntityNode, null)) {
+                                    // new revisions inserted, retry
+                                    continue;
+                                }
+                                this.unlinkBaseNode(prevBaseNode, currentBaseNode);
+                                // traverse index to clean up unnecessary index nodes
+                                this.findPredecessorByIndex(entity);
+                                this.tryReduceIndexLevel();
+                                // stay at the previous base node
+                                currentBaseNode = prevBaseNode;
+                            } else {
+                                prevEntityNode.next = null;
+                            }
+                        } else {
+                            // later revisions with the same key take over the entry
+                            currentEntityNode.entity = latestEntity;
+                            currentEntityNode.next = null;
+                        }
+                        break;
+                    }
+                    prevEntityNode = currentEntityNode;
+                    currentEntityNode = currentEntityNode.next;
+                } while (currentEntityNode != null);
+                if (currentBaseNode != prevBaseNode) { // not removed
+                    EntityTableOffHeapSkipListIndex.collectStatistics(collector, this.getEntityNode(currentBaseNode));
+                }
+                prevBaseNode = currentBaseNode;
+            }
+        }
+    }
+
+    private static void collectStatistics(EntityTableIndexStatistics.Collector collector, EntityNode entityNode) {
+        if (entityNode == null || entityNode == ENTITY_NODE_MARKER) {
+            return;
+        }
+        Entity first = null;
+        int chainLength = 0;
+        for (; entityNode != null; entityNode = entityNode.next) {
+            var entity = entityNode.entity;
+            if (entity != null && entity != ENTITY_MARKER) {
+                if (first == null) {
+                    first = entity;
+                }
+                ++chainLength;
+            }
+        }
+        if (first != null) {
+            collector.add(first, chainLength);
+        }
+    }
+
+    private EntityNode getFirstEntityNode(Entity key) {
+        start:
+        for (; ; ) {
+            long indexNode = (long) HEAD.getVolatile(this);
+            if (indexNode == 0) {
+                return null;
+            }
+            for (; ; ) {
+                for (; ; ) {
+                    long right = getLong(indexNode, INDEX_NODE_RIGHT);
+                    if ((right & DELETED) != 0) {
+                        continue start;
+                    }
+                    if (right == 0) {
+                        break;
+                    }
+                    var entityNode = this.getEntityNode(getLong(right, INDEX_NODE_BASE_NODE));
+                    if (entityNode == null) {
+                        this.unlinkIndexNode(indexNode, right);
+                    } else {
+                        var c = this.entityComparator.compare(key, entityNode.entity);
+                        if (c > 0) {
+                            indexNode = right;
+                        } else if (c == 0) {
+                            return entityNode;
+                        } else {
+                            break;
+                        }
+                    }
+                }
+                long down = getLong(indexNode, INDEX_NODE_DOWN);
+                if (down != 0) {
+                    indexNode = down;
+                } else {
+                    long baseNode = getLong(indexNode, INDEX_NODE_BASE_NODE);
+                    for (; ; ) {
+                        long nextBaseNode = getLong(baseNode, BASE_NODE_NEXT);
+                        if (nextBaseNode == 0) {
+                            return null;
+                        }
+                        var nextEntityNode = this.getEntityNode(nextBaseNode);
+                        if (nextEntityNode != null && nextEntityNode != ENTITY_NODE_MARKER) {
+                            var c = this.entityComparator.compare(key, nextEntityNode.entity);
+                            if (c == 0) {
+                                return nextEntityNode;
+                            } else if (c < 0) {
+                                return null;
+                            }
+                        }
+                        baseNode = nextBaseNode;
+                    }
+                }
+            }
+        }
+    }
+
+    private Entity getEntitySnapshot(long revision, EntityNode entityNode) {
+        while (entityNode != null) {
+            var entity = (AbstractEntity) entityNode.entity;
+            if (entity != null && entity != ENTITY_MARKER && entity.getRevision() <= revision) {
+                return EntityTableIndex.getLatestRevision(this.entityComparator, entity, revision);
+            }
+            entityNode = entityNode.next;
+        }
+        return null;
+    }
+
+    private long getFirstIndexNode() {
+        for (; ; ) {
+            long indexNode = (long) HEAD.getVolatile(this);
+            if (indexNode == 0) {
+                long baseNode = this.allocateBaseNode(HEAD_HANDLE, 0);
+                indexNode = this.allocateIndexNode(baseNode, 0, 0);
+                if (!HEAD.compareAndSet(this, 0L, indexNode)) {
+                    this.slabAllocator.free(indexNode);
+                    this.slabAllocator.free(baseNode);
+                    continue;
+                }
+            }
+            return indexNode;
+        }
+    }
+
+    private void updateIndex(long baseNode, long firstIndexNode, int maxLevels) {
+        var random = ThreadLocalRandom.current();
+        int lowRand = random.nextInt();
+        if ((lowRand & 0x3) == 0) { // insert indexes for quarter of the base nodes
+            if (!this.acquireBaseNode(baseNode)) {
+                // removed already
+                return;
+            }
+            try {
+                int highRand = random.nextInt();
+                long rand = ((long) highRand << 32) | ((long) lowRand & 0xffffffffL);
+                int skips = maxLevels;
+                long topIndexNodeToInsert = 0;
+                for (; ; ) {
+                    topIndexNodeToInsert = this.allocateIndexNode(baseNode, topIndexNodeToInsert, 0);
+                    if (rand >= 0L || --skips < 0) {
+                        break;
+                    } else {
+                        rand <<= 1;
+                    }
+                }
+                putLong(baseNode, BASE_NODE_TOWER, topIndexNodeToInsert);
+                if (this.addIndexes(firstIndexNode, skips, topIndexNodeToInsert)
+                        && skips < 0
+                        && (long) HEAD.getVolatile(this) == firstIndexNode) {
+                    // try to add new level
+                    long newIndexNode = this.allocateIndexNode(baseNode, topIndexNodeToInsert, 0);
+                    long newHeadIndexNode = this.allocateIndexNode(
+                            getLong(firstIndexNode, INDEX_NODE_BASE_NODE), firstIndexNode, newIndexNode);
+                    if (this.acquireBaseNode(baseNode)) {
+                        putLong(baseNode, BASE_NODE_TOWER, newIndexNode);
+                        if (HEAD.compareAndSet(this, firstIndexNode, newHeadIndexNode)) {
+                            return;
+                        }
+                        putLong(baseNode, BASE_NODE_TOWER, topIndexNodeToInsert);
+                        this.releaseBaseNode(baseNode);
+                    }
+                    this.slabAllocator.free(newIndexNode);
+                    this.slabAllocator.free(newHeadIndexNode);
+                }
+            } finally {
+                this.releaseBaseNode(baseNode);
+            }
+        }
+    }
+
+    private boolean addIndexes(long indexNode, int skips, long indexNodeToInsert) {
+        long baseNodeToInsert = getLong(indexNodeToInsert, INDEX_NODE_BASE_NODE);
+        var entityNodeToInsert = this.getEntityNode(baseNodeToInsert);
+        if (entityNodeToInsert == null) {
+            return false;
+        }
+        var entityToInsert = entityNodeToInsert.entity;
+        boolean downInserted = getLong(indexNodeToInsert, INDEX_NODE_DOWN) == 0;
+        for (; ; ) {
+            long rightIndexNode = getLong(indexNode, INDEX_NODE_RIGHT);
+            if ((rightIndexNode & DELETED) != 0) {
+                // the index node is removed, give up
+                return false;
+            }
+            if (rightIndexNode != 0) {
+                var rightEntityNode = this.getEntityNode(getLong(rightIndexNode, INDEX_NODE_BASE_NODE));
+                if (rightEntityNode == null) {
+                    this.unlinkIndexNode(indexNode, rightIndexNode);
+                    continue;
+                }
+                var c = this.entityComparator.compare(entityToInsert, rightEntityNode.entity);
+                if (c > 0) {
+                    indexNode = rightIndexNode;
+                    continue;
+                }
+                if (c == 0) {
+                    return false;
+                }
+            }
+            long downIndexNode = getLong(indexNode, INDEX_NODE_DOWN);
+            if (downIndexNode != 0) {
+                if (skips > 0) {
+                    --skips;
+                    indexNode = downIndexNode;
+                    continue;
+                }
+                if (!downInserted) {
+                    if (!this.addIndexes(downIndexNode, 0, getLong(indexNodeToInsert, INDEX_NODE_DOWN))) {
+                        return false;
+                    }
+                    downInserted = true;
+                }
+            }
+            putLong(indexNodeToInsert, INDEX_NODE_RIGHT, rightIndexNode);
+            if (!this.acquireBaseNode(baseNodeToInsert)) {
+                return false;
+            }
+            if (casLong(indexNode, INDEX_NODE_RIGHT, rightIndexNode, indexNodeToInsert)) {
+                return true;
+            }
+            // indexNode is updated by another thread, retry
+            this.releaseBaseNode(baseNodeToInsert);
+        }
+    }
+
+    // the algorithm of java.util.ConcurrentSkipListMap.tryReduceLevel, the dropped head index node is not freed
+    private void tryReduceIndexLevel() {
+        long head, down, down2;
+        if ((head = (long) HEAD.getVolatile(this)) != 0 && getLong(head, INDEX_NODE_RIGHT) == 0 &&
+                (down = getLong(head, INDEX_NODE_DOWN)) != 0 && getLong(down, INDEX_NODE_RIGHT) == 0 &&
+                (down2 = getLong(down, INDEX_NODE_DOWN)) != 0 && getLong(down2, INDEX_NODE_RIGHT) == 0 &&
+                HEAD.compareAndSet(this, head, down) &&
+                getLong(head, INDEX_NODE_RIGHT) != 0) {
+            HEAD.compareAndSet(this, down, head);
+        }
+    }
+
+    private long findLastBaseNode() {
+        start:
+        for (; ; ) {
+            long indexNode = (long) HEAD.getVolatile(this);
+            if (indexNode == 0) {
+                return 0;
+            }
+            for (; ; ) {
+                long rightIndexNode = getLong(indexNode, INDEX_NODE_RIGHT);
+                if ((rightIndexNode & DELETED) != 0) {
+                    continue start;
+                }
+                if (rightIndexNode != 0) {
+                    if (this.getEntityNode(getLong(rightIndexNode, INDEX_NODE_BASE_NODE)) == null) {
+                        this.unlinkIndexNode(indexNode, rightIndexNode);
+                    } else {
+                        indexNode = rightIndexNode;
+                    }
+                    continue;
+                }
+                long downIndexNode = getLong(indexNode, INDEX_NODE_DOWN);
+                if (downIndexNode == 0) {
+                    break;
+                }
+                indexNode = downIndexNode;
+            }
+            for (long baseNode = getLong(indexNode, INDEX_NODE_BASE_NODE); ; ) {
+                long nextBaseNode = getLong(baseNode, BASE_NODE_NEXT);
+                if (nextBaseNode == 0) {
+                    if (this.getEntityNode(baseNode) == ENTITY_NODE_MARKER) {
+                        continue start;
+                    }
+                    return baseNode;
+                }
+                var nextEntityNode = this.getEntityNode(nextBaseNode);
+                if (nextEntityNode == ENTITY_NODE_MARKER) {
+                    // the current base node is removed, restart from the very beginning
+                    continue start;
+                }
+                if (nextEntityNode == null) {
+                    this.unlinkBaseNode(baseNode, nextBaseNode);
+                    continue;
+                }
+                baseNode = nextBaseNode;
+            }
+        }
+    }
+
+    private long getFirstBaseNode() {
+        long head = (long) HEAD.getVolatile(this);
+        return head == 0 ? 0 : getLong(head, INDEX_NODE_BASE_NODE);
+    }
+
+    private void unlinkBaseNode(long prev, long node) {
+        long marker;
+        long next;
+        for (; ; ) {
+            next = getLong(node, BASE_NODE_NEXT);
+            if (next != 0 && getLong(next, BASE_NODE_HANDLE) == MARKER_HANDLE) {
+                marker = next;
+                next = getLong(marker, BASE_NODE_NEXT);
+                break;
+            } else {
+                marker = this.allocateBaseNode(MARKER_HANDLE, next);
+                if (casLong(node, BASE_NODE_NEXT, next, marker)) {
+                    break;
+                }
+                this.slabAllocator.free(marker);
+            }
+        }
+        if (casLong(prev, BASE_NODE_NEXT, node, next)) {
+            // only one thread can unlink the node from its live predecessor
+            this.freedMemoryGcManager.putGarbage(this.baseNodeAllocator, marker);
+            long state = Phial.UNSAFE.getAndAddLong(null, node + BASE_NODE_STATE, STATE_UNLINKED) + STATE_UNLINKED;
+            if (state == STATE_UNLINKED) {
+                this.tryRetireBaseNode(node);
+            }
+        }
+    }
+
+    private void unlinkIndexNode(long prev, long node) {
+        long next;
+        for (; ; ) {
+            next = getLong(node, INDEX_NODE_RIGHT);
+            if ((next & DELETED) != 0) {
+                next &= ~DELETED;
+                break;
+            }
+            if (casLong(node, INDEX_NODE_RIGHT, next, next | DELETED)) {
+                break;
+            }
+        }
+        if (casLong(prev, INDEX_NODE_RIGHT, node, next)) {
+            this.releaseBaseNode(getLong(node, INDEX_NODE_BASE_NODE));
+        }
+    }
+
+    // pins the base node before linking an index node to it, fails if it is unlinked from the base list
+    private boolean acquireBaseNode(long baseNode) {
+        long state = Phial.UNSAFE.getAndAddLong(null, baseNode + BASE_NODE_STATE, STATE_REFERENCE);
+        if ((state & STATE_UNLINKED) != 0) {
+            this.releaseBaseNode(baseNode);
+            return false;
+        }
+        return true;
+    }
+
+    private void releaseBaseNode(long baseNode) {
+        long state = Phial.UNSAFE.getAndAddLong(null, baseNode + BASE_NODE_STATE, -STATE_REFERENCE)
+                - STATE_REFERENCE;
+        if (state == STATE_UNLINKED) {
+            this.tryRetireBaseNode(baseNode);
+        }
+    }
+
+    private void tryRetireBaseNode(long baseNode) {
+        if (casLong(baseNode, BASE_NODE_STATE, STATE_UNLINKED, STATE_UNLINKED | STATE_RETIRED)) {
+            for (long indexNode = getLong(baseNode, BASE_NODE_TOWER);
+                 indexNode != 0;
+                 indexNode = getLong(indexNode, INDEX_NODE_DOWN)) {
+                this.freedMemoryGcManager.putGarbage(this.slabAllocator, indexNode);
+            }
+            this.freedMemoryGcManager.putGarbage(this.baseNodeAllocator, baseNode);
+        }
+    }
+
+    private void unlinkEntityNode(long baseNode, EntityNode entityNode) {
+        EntityNode next;
+        for (; ; ) {
+            next = entityNode.next;
+            if (next != null && next.entity == ENTITY_MARKER) {
+                next = next.next;
+                break;
+            } else {
+                var marker = new EntityNode();
+                marker.entity = ENTITY_MARKER;
+                marker.next = next;
+                if (ENTITY_NODE_NEXT.compareAndSet(entityNode, next, marker)) {
+                    break;
+                }
+            }
+        }
+        this.casEntityNode(baseNode, entityNode, next);
+    }
+
+    private static void unlinkEntityNode(EntityNode prev, EntityNode node) {
+        EntityNode next;
+        for (; ; ) {
+            next = node.next;
+            if (next != null && next.entity == ENTITY_MARKER) {
+                next = next.next;
+                break;
+            } else {
+                var marker = new EntityNode();
+                marker.entity = ENTITY_MARKER;
+                marker.next = next;
+                if (ENTITY_NODE_NEXT.compareAndSet(node, next, marker)) {
+                    break;
+                }
+            }
+        }
+        ENTITY_NODE_NEXT.compareAndSet(prev, node, next);
+    }
+
+    private long findPredecessorByIndex(Entity key) {
+        start:
+        for (; ; ) {
+            long indexNode = (long) HEAD.getVolatile(this);
+            if (indexNode == 0) {
+                return 0;
+            }
+            for (; ; ) {
+                for (; ; ) {
+                    long rightIndexNode = getLong(indexNode, INDEX_NODE_RIGHT);
+                    if ((rightIndexNode & DELETED) != 0) {
+                        continue start;
+                    }
+                    if (rightIndexNode == 0) {
+                        break;
+                    }
+                    var rightEntityNode = this.getEntityNode(getLong(rightIndexNode, INDEX_NODE_BASE_NODE));
+                    if (rightEntityNode == null) {
+                        this.unlinkIndexNode(indexNode, rightIndexNode);
+                    } else if (this.entityComparator.compare(key, rightEntityNode.entity) > 0) {
+                        indexNode = rightIndexNode;
+                    } else {
+                        break;
+                    }
+                }
+                long downIndexNode = getLong(indexNode, INDEX_NODE_DOWN);
+                if (downIndexNode != 0) {
+                    indexNode = downIndexNode;
+                } else {
+                    return getLong(indexNode, INDEX_NODE_BASE_NODE);
+                }
+            }
+        }
+    }
+
+    private static final int EQUAL = 1;
+    private static final int LESS_THAN = 2;
+
+    private long findNearestBaseNode(Entity key, int op) {
+        if (key == null) {
+            long result = this.getFirstBaseNode();
+            if (result == 0) {
+                return 0;
+            }
+            return getLong(result, BASE_NODE_NEXT);
+        }
+        start:
+        for (; ; ) {
+            long baseNode = this.findPredecessorByIndex(key);
+            if (baseNode == 0) {
+                return 0;
+            }
+            for (; ; ) {
+                long nextBaseNode = getLong(baseNode, BASE_NODE_NEXT);
+                if (nextBaseNode == 0) {
+                    return ((op & LESS_THAN) != 0 && this.getEntityNode(baseNode) != ENTITY_NODE_MARKER)
+                            ? baseNode : 0;
+                }
+                var nextEntityNode = this.getEntityNode(nextBaseNode);
+                if (nextEntityNode == ENTITY_NODE_MARKER) {
+                    // the current base node is removed, restart from the very beginning
+                    continue start;
+                }
+                if (nextEntityNode == null) {
+                    // help unlink the base node to avoid busy wait
+                    this.unlinkBaseNode(baseNode, nextBaseNode);
+                    continue;
+                }
+                var c = this.entityComparator.compare(key, nextEntityNode.entity);
+                if (c == 0 && (op & EQUAL) != 0 || (c < 0) && (op & LESS_THAN) == 0) {
+                    return nextBaseNode;
+                } else if (c <= 0 && (op & LESS_THAN) != 0) {
+                    return (this.getEntityNode(baseNode) != ENTITY_NODE_MARKER) ? baseNode : 0;
+                }
+                baseNode = nextBaseNode;
+            }
+        }
+    }
+
+    private long allocateBaseNode(long handle, long next) {
+        long baseNode = this.slabAllocator.allocate();
+        putLong(baseNode, BASE_NODE_HANDLE, handle);
+        putLong(baseNode, BASE_NODE_NEXT, next);
+        putLong(baseNode, BASE_NODE_STATE, 0);
+        putLong(baseNode, BASE_NODE_TOWER, 0);
+        return baseNode;
+    }
+
+    private long allocateIndexNode(long baseNode, long down, long right) {
+        long indexNode = this.slabAllocator.allocate();
+        putLong(indexNode, INDEX_NODE_BASE_NODE, baseNode);
+        putLong(indexNode, INDEX_NODE_DOWN, down);
+        putLong(indexNode, INDEX_NODE_RIGHT, right);
+        return indexNode;
+    }
+
+    private int allocateHandle() {
+        var handle = this.freeHandles.poll();
+        if (handle != null) {
+            return handle;
+        }
+        int newHandle = (int) HANDLE_COUNT.getAndAdd(this, 1);
+        this.ensureHandleSegment(newHandle);
+        return newHandle;
+    }
+
+    private void ensureHandleSegment(int handle) {
+        int segment = handle >>> HANDLE_SEGMENT_SHIFT;
+        var segments = this.handleSegments;
+        if (segment < segments.length && segments[segment] != null) {
+            return;
+        }
+        synchronized (this) {
+            segments = this.handleSegments;
+            if (segment >= segments.length) {
+                var newSegments = new EntityNode[Math.max(segments.length * 2, segment + 1)][];
+                System.arraycopy(segments, 0, newSegments, 0, segments.length);
+                segments = newSegments;
+            }
+            if (segments[segment] == null) {
+                segments[segment] = new EntityNode[HANDLE_SEGMENT_SIZE];
+            }
+            this.handleSegments = segments;
+        }
+    }
+
+    // returns ENTITY_NODE_MARKER for markers, or null if the base node is removed
+    private EntityNode getEntityNode(long baseNode) {
+        long handle = getLong(baseNode, BASE_NODE_HANDLE);
+        if (handle == MARKER_HANDLE) {
+            return ENTITY_NODE_MARKER;
+        }
+        var segment = this.handleSegments[(int) handle >>> HANDLE_SEGMENT_SHIFT];
+        return (EntityNode) SLOT.getAcquire(segment, (int) handle & (HANDLE_SEGMENT_SIZE - 1));
+    }
+
+    private void setEntityNode(int handle, EntityNode entityNode) {
+        var segment = this.handleSegments[handle >>> HANDLE_SEGMENT_SHIFT];
+        SLOT.setRelease(segment, handle & (HANDLE_SEGMENT_SIZE - 1), entityNode);
+    }
+
+    private boolean casEntityNode(long baseNode, EntityNode expected, EntityNode entityNode) {
+        int handle = (int) getLong(baseNode, BASE_NODE_HANDLE);
+        var segment = this.handleSegments[handle >>> HANDLE_SEGMENT_SHIFT];
+        return SLOT.compareAndSet(segment, handle & (HANDLE_SEGMENT_SIZE - 1), expected, entityNode);
+    }
+
+    private static long getLong(long address, int offset) {
+        return Phial.UNSAFE.getLongVolatile(null, address + offset);
+    }
+
+    private static void putLong(long address, int offset, long value) {
+        Phial.UNSAFE.putLongVolatile(null, address + offset, value);
+    }
+
+    private static boolean casLong(long address, int offset, long expected, long value) {
+        return Phial.UNSAFE.compareAndSwapLong(null, address + offset, expected, value);
+    }
+
+    private static final VarHandle HEAD;
+    private static final VarHandle HANDLE_COUNT;
+    private static final VarHandle SLOT;
+    private static final VarHandle ENTITY_NODE_NEXT;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            HEAD = lookup.findVarHandle(EntityTableOffHeapSkipListIndex.class, "headIndexNode", long.class);
+            HANDLE_COUNT = lookup.findVarHandle(EntityTableOffHeapSkipListIndex.class, "handleCount", int.class);
+            SLOT = MethodHandles.arrayElementVarHandle(EntityNode[].class);
+            ENTITY_NODE_NEXT = lookup.findVarHandle(EntityNode.class, "next", EntityNode.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package io.phial;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+// the patch of an index in a transaction, kept in a small array until it is full
+public class EntityTablePatchIndex implements EntityTableSortedIndex {
+    private static final int ARRAY_CAPACITY = 16;
+
+    private final boolean unique;
+    private final EntityComparator entityComparator;
+    private final boolean sorted;
+    private Entity[] entities;
+    private int size;
+    private EntityTableIndex index;
+
+    public EntityTablePatchIndex(boolean unique, EntityComparator entityComparator, boolean sorted) {
+        this.unique = unique;
+        this.entityComparator = entityComparator;
+        this.sorted = sorted;
+    }
+
+    @Override
+    public boolean isUnique() {
+        return this.unique;
+    }
+
+    @Override
+    public EntityComparator getEntityComparator() {
+        return this.entityComparator;
+    }
+
+    @Override
+    public Entity get(long transactionId, long snapshotRevision, Entity key) {
+        if (this.index != null) {
+            return this.index.get(transactionId, snapshotRevision, key);
+        }
+        int pos = this.find(key);
+        return pos < 0 ? null : this.getEntitySnapshot(snapshotRevision, this.entities[pos]);
+    }
+
+    @Override
+    public Stream<Entity> query(long transactionId,
+                                long revision,
+                                Entity from,
+                                boolean fromInclusive,
+                                Entity to,
+                                boolean toInclusive) {
+        if (this.index != null) {
+            return this.getSortedIndex().query(transactionId, revision, from, fromInclusive, to, toInclusive);
+        }
+        return this.query(revision, from, fromInclusive, to, toInclusive, false);
+    }
+
+    @Override
+    public Stream<Entity> queryDescending(long transactionId,
+                                          long revision,
+                                          Entity from,
+                                          boolean fromInclusive,
+                                          Entity to,
+                                          boolean toInclusive) {
+        if (this.index != null) {
+            return this.getSortedIndex()
+                    .queryDescending(transactionId, revision, from, fromInclusive, to, toInclusive);
+        }
+        return this.query(revision, from, fromInclusive, to, toInclusive, true);
+    }
+
+    @Override
+    public Stream<Entity> queryKey(long transactionId, long snapshotRevision, Entity from, Entity to) {
+        if (this.sorted) {
+            return this.query(transactionId, snapshotRevision, from, true, to, true);
+        }
+        if (this.index != null) {
+            return this.index.queryKey(transactionId, snapshotRevision, from, to);
+        }
+        var result = new ArrayList<Entity>();
+        for (int i = 0; i < this.size; ++i) {
+            if (this.entityComparator.compare(from, this.entities[i]) <= 0
+                    && this.entityComparator.compare(this.entities[i], to) <= 0) {
+                var entity = this.getEntitySnapshot(snapshotRevision, this.entities[i]);
+                if (entity != null) {
+                    result.add(entity);
+                }
+            }
+        }
+        return result.stream();
+    }
+
+    private Stream<Entity> query(long revision,
+                                 Entity from,
+                                 boolean fromInclusive,
+                                 Entity to,
+                                 boolean toInclusive,
+                                 boolean descending) {
+        if (!this.sorted) {
+            throw new IllegalStateException("the patch is not sorted");
+        }
+        int start = from == null ? 0 : this.bound(from, !fromInclusive);
+        int end = to == null ? this.size : this.bound(to, toInclusive);
+        var result = new ArrayList<Entity>(Math.max(end - start, 0));
+        for (int i = start; i < end; ++i) {
+            var entity = this.getEntitySnapshot(revision, this.entities[descending ? end - 1 - (i - start) : i]);
+            if (entity != null) {
+                result.add(entity);
+            }
+        }
+        return result.stream();
+    }
+
+    @Override
+    public Entity put(Entity entity, boolean linkEntity, boolean mergeEntity) {
+        if (this.index != null) {
+            return this.index.put(entity, linkEntity, mergeEntity);
+        }
+        int pos = this.find(entity);
+        if (pos >= 0) {
+            var nextEntity = (AbstractEntity) this.entities[pos];
+            if (EntityTableIndex.isDuplicated(this.entityComparator, entity, nextEntity)) {
+                throw new DuplicatedKeyException(this.entityComparator.getKeyString(entity));
+            }
+            if (linkEntity) {
+                nextEntity.setNextRevisionEntity(entity);
+            }
+            var result = mergeEntity ? ((AbstractEntity) entity).merge(nextEntity) : entity;
+            this.entities[pos] = result;
+            return result;
+        }
+        if (this.size == ARRAY_CAPACITY) {
+            this.index = this.sorted
+                    ? new EntityTableSkipListIndex(this.unique, this.entityComparator)
+                    : new EntityTableHashIndex(this.unique, this.entityComparator);
+            this.index.putAll(Arrays.asList(this.entities).subList(0, this.size));
+            this.entities = null;
+            return this.index.put(entity, linkEntity, mergeEntity);
+        }
+        var result = mergeEntity ? ((AbstractEntity) entity).merge(null) : entity;
+        if (result == null) {
+            // the entity is for update rather than insertion, and the original one is removed.
+            return null;
+        }
+        if (this.entities == null) {
+            this.entities = new Entity[4];
+        } else if (this.size == this.entities.length) {
+            this.entities = Arrays.copyOf(this.entities, Math.min(this.size * 2, ARRAY_CAPACITY));
+        }
+        pos = this.sorted ? -pos - 1 : this.size;
+        System.arraycopy(this.entities, pos, this.entities, pos + 1, this.size - pos);
+        this.entities[pos] = result;
+        ++this.size;
+        return result;
+    }
+
+    @Override
+    public void remove(Entity entity) {
+        // meaningless for this class, do nothing
+    }
+
+    @Override
+    public void garbageCollection(long revision) {
+        // meaningless for this class, do nothing
+    }
+
+    private EntityTableSortedIndex getSortedIndex() {
+        if (!this.sorted) {
+            throw new IllegalStateException("the patch is not sorted");
+        }
+        return (EntityTableSortedIndex) this.index;
+    }
+
+    private int find(Entity key) {
+        if (!this.sorted) {
+            for (int i = 0; i < this.size; ++i) {
+                if (this.entityComparator.compare(key, this.entities[i]) == 0) {
+                    return i;
+                }
+            }
+            return -this.size - 1;
+        }
+        int low = 0;
+        int high = this.size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int c = this.entityComparator.compare(this.entities[mid], key);
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -low - 1;
+    }
+
+    // returns the position of the first key greater than the given key if inclusive, or not less than it otherwise
+    private int bound(Entity key, boolean inclusive) {
+        int pos = this.find(key);
+        if (pos < 0) {
+            return -pos - 1;
+        }
+        return inclusive ? pos + 1 : pos;
+    }
+
+    private Entity getEntitySnapshot(long revision, Entity entity) {
+        if (((AbstractEntity) entity).getRevision() > revision) {
+            return null;
+        }
+        return EntityTableIndex.getLatestRevision(this.entityComparator, entity, revision);
+    }
+}
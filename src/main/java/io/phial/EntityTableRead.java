@@ -0,0 +1,114 @@
+package io.phial;
+
+import java.util.Arrays;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+// an index read of a serializable transaction, a range read only covers the entities consumed from its stream
+class EntityTableRead {
+    final int indexId;
+    // the key of a point read, null for a range read
+    final Entity key;
+    final Entity from;
+    final boolean fromInclusive;
+    final Entity to;
+    final boolean toInclusive;
+    final boolean descending;
+    // the number of committed entities in the range of a read counted by the index, -1 for other reads
+    final long committedCount;
+    // ids of the committed entities read, entities in the patch of the transaction are not recorded
+    private long[] ids;
+    private int count;
+    // the last entity consumed from the stream, or the entity found by a point read
+    Entity last;
+    boolean exhausted;
+
+    EntityTableRead(int indexId, Entity key, Entity entity) {
+        this(indexId, key, null, false, null, false, false, -1);
+        this.last = entity;
+        this.exhausted = true;
+    }
+
+    EntityTableRead(int indexId,
+                    Entity from,
+                    boolean fromInclusive,
+                    Entity to,
+                    boolean toInclusive,
+                    boolean descending) {
+        this(indexId, null, from, fromInclusive, to, toInclusive, descending, -1);
+    }
+
+    // a range counted by the index rather than read entity by entity, such as a count or an aggregate
+    EntityTableRead(int indexId,
+                    Entity from,
+                    boolean fromInclusive,
+                    Entity to,
+                    boolean toInclusive,
+                    long committedCount) {
+        this(indexId, null, from, fromInclusive, to, toInclusive, false, committedCount);
+        this.exhausted = true;
+    }
+
+    private EntityTableRead(int indexId,
+                            Entity key,
+                            Entity from,
+                            boolean fromInclusive,
+                            Entity to,
+                            boolean toInclusive,
+                            boolean descending,
+                            long committedCount) {
+        this.indexId = indexId;
+        this.key = key;
+        this.from = from;
+        this.fromInclusive = fromInclusive;
+        this.to = to;
+        this.toInclusive = toInclusive;
+        this.descending = descending;
+        this.committedCount = committedCount;
+    }
+
+    Stream<Entity> record(Stream<Entity> stream) {
+        var spliterator = stream.spliterator();
+        return StreamSupport.stream(new Spliterators.AbstractSpliterator<Entity>(
+                Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+            @Override
+            public boolean tryAdvance(Consumer<? super Entity> action) {
+                var advanced = spliterator.tryAdvance(entity -> {
+                    EntityTableRead.this.add(entity);
+                    action.accept(entity);
+                });
+                if (!advanced) {
+                    EntityTableRead.this.exhausted = true;
+                }
+                return advanced;
+            }
+        }, false).onClose(stream::close);
+    }
+
+    // the number of committed entities read and not modified by the transaction since
+    long countUnmodified(EntityIdSet modifiedIds) {
+        long result = 0;
+        for (int i = 0; i < this.count; ++i) {
+            if (!modifiedIds.contains(this.ids[i])) {
+                ++result;
+            }
+        }
+        return result;
+    }
+
+    private void add(Entity entity) {
+        this.last = entity;
+        if (((AbstractEntity) entity).getRevision() == 0) {
+            return;
+        }
+        if (this.ids == null) {
+            this.ids = new long[8];
+        } else if (this.count == this.ids.length) {
+            this.ids = Arrays.copyOf(this.ids, this.count * 2);
+        }
+        this.ids[this.count++] = entity.getId();
+    }
+}
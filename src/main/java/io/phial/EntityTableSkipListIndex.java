@@ -2,16 +2,23 @@ package io.phial;
 
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Spliterator;
 import java.util.Spliterators;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
 public class EntityTableSkipListIndex implements EntityTableSortedIndex {
     private final boolean unique;
     private final EntityComparator entityComparator;
+    private final ToLongFunction<Entity> longKeyExtractor;
+    private final EntityKeyEncoder keyEncoder;
 
     private final static EntityNode ENTITY_NODE_MARKER = new EntityNode();
     private final static Entity ENTITY_MARKER = new NullEntity();
@@ -30,13 +37,33 @@ public class EntityTableSkipListIndex implements EntityTableSortedIndex {
     private static class BaseNode {
         EntityNode entityNode;
         BaseNode next;
+        // the extracted long key shared by all entities in the node, valid if the index has a long key extractor
+        long key;
+        // the encoded key shared by all entities in the node, valid if the index has a key encoder
+        byte[] binaryKey;
     }
 
     private IndexNode headIndexNode;
+    private volatile EntityTableIndexStatistics statistics = EntityTableIndexStatistics.EMPTY;
 
     public EntityTableSkipListIndex(boolean unique, EntityComparator entityComparator) {
+        this(unique, entityComparator, null);
+    }
+
+    public EntityTableSkipListIndex(boolean unique,
+                                    EntityComparator entityComparator,
+                                    ToLongFunction<Entity> longKeyExtractor) {
+        this(unique, entityComparator, longKeyExtractor, null);
+    }
+
+    public EntityTableSkipListIndex(boolean unique,
+                                    EntityComparator entityComparator,
+                                    ToLongFunction<Entity> longKeyExtractor,
+                                    EntityKeyEncoder keyEncoder) {
         this.unique = unique;
         this.entityComparator = entityComparator;
+        this.longKeyExtractor = longKeyExtractor;
+        this.keyEncoder = keyEncoder;
     }
 
     @Override
@@ -62,26 +89,63 @@ public class EntityTableSkipListIndex implements EntityTableSortedIndex {
                                 Entity to,
                                 boolean toInclusive) {
         VarHandle.acquireFence();
+        var spliterator = new RangeSpliterator(revision,
+                this.headIndexNode,
+                this.findNearestBaseNode(from, fromInclusive ? EQUAL : 0),
+                from,
+                fromInclusive,
+                to,
+                toInclusive);
+        return StreamSupport.stream(spliterator, false);
+    }
+
+    @Override
+    public Stream<Entity> queryDescending(long transactionId,
+                                          long revision,
+                                          Entity from,
+                                          boolean fromInclusive,
+                                          Entity to,
+                                          boolean toInclusive) {
+        // like the descending iterator of java.util.ConcurrentSkipListMap, base nodes need no back links
         var iterator = new Iterator<Entity>() {
-            BaseNode baseNode = EntityTableSkipListIndex.this.findNearestBaseNode(from, fromInclusive ? EQUAL : 0);
+            Entity bound = to;
+            boolean boundInclusive = toInclusive;
+            boolean finished;
             Entity next = this.getNext();
 
             Entity getNext() {
-                while (this.baseNode != null) {
-                    var entityNode = baseNode.entityNode;
-                    this.baseNode = this.baseNode.next;
-                    if (entityNode != null && entityNode != ENTITY_NODE_MARKER) {
-                        var entity = EntityTableSkipListIndex.this.getEntitySnapshot(revision, entityNode);
-                        if (entity != null) {
-                            var c = to == null ? -1 :
-                                    EntityTableSkipListIndex.this.entityComparator.compare(entity, to);
-                            if (c < 0 || c == 0 && toInclusive) {
-                                return entity;
-                            }
-                            return null;
+                var index = EntityTableSkipListIndex.this;
+                while (!this.finished) {
+                    VarHandle.acquireFence();
+                    BaseNode baseNode;
+                    if (this.bound == null) {
+                        baseNode = index.findLastBaseNode();
+                    } else {
+                        baseNode = index.findNearestBaseNode(
+                                this.bound, this.boundInclusive ? LESS_THAN | EQUAL : LESS_THAN);
+                    }
+                    if (baseNode == null || baseNode == index.getFirstBaseNode()) {
+                        break;
+                    }
+                    var key = EntityTableSkipListIndex.getKey(baseNode);
+                    if (key == null) {
+                        // removed concurrently, search again
+                        continue;
+                    }
+                    if (from != null) {
+                        var c = index.entityComparator.compare(key, from);
+                        if (c < 0 || c == 0 && !fromInclusive) {
+                            break;
                         }
                     }
+                    this.bound = key;
+                    this.boundInclusive = false;
+                    var entity = index.getEntitySnapshot(revision, baseNode.entityNode);
+                    if (entity != null) {
+                        return entity;
+                    }
                 }
+                this.finished = true;
                 return null;
             }
 
@@ -97,13 +161,187 @@ public class EntityTableSkipListIndex implements EntityTableSortedIndex {
                 return result;
             }
         };
-        var spliterator = Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED);
+        var spliterator = Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL);
         return StreamSupport.stream(spliterator, false);
     }
 
+    // splits the range by the upper index levels like java.util.ConcurrentSkipListMap.KeySpliterator
+    class RangeSpliterator implements Spliterator<Entity> {
+        private final long revision;
+        private IndexNode row;
+        private BaseNode current;
+        private final Entity fence;
+        private final boolean fenceInclusive;
+        private long estimate;
+        // the key of the last visited base node, used to find the position again if the current node is removed
+        private Entity lastKey;
+        private boolean lastKeyInclusive;
+
+        private RangeSpliterator(long revision,
+                                 IndexNode row,
+                                 BaseNode current,
+                                 Entity fence,
+                                 boolean fenceInclusive,
+                                 long estimate) {
+            this.revision = revision;
+            this.row = row;
+            this.current = current;
+            this.fence = fence;
+            this.fenceInclusive = fenceInclusive;
+            this.estimate = estimate < 0 ? EntityTableSkipListIndex.estimateSize(row) : estimate;
+        }
+
+        private RangeSpliterator(long revision,
+                                 IndexNode row,
+                                 BaseNode current,
+                                 Entity from,
+                                 boolean fromInclusive,
+                                 Entity fence,
+                                 boolean fenceInclusive) {
+            this(revision, row, current, fence, fenceInclusive, -1);
+            this.lastKey = from;
+            this.lastKeyInclusive = fromInclusive;
+        }
+
+        Entity getFence() {
+            return this.fence;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Entity> action) {
+            var index = EntityTableSkipListIndex.this;
+            while (this.current != null) {
+                var baseNode = this.current;
+                var key = EntityTableSkipListIndex.getKey(baseNode);
+                if (key == null) {
+                    if (this.lastKey == null) {
+                        this.current = baseNode.next;
+                    } else {
+                        // unlinked since the position is taken, search again
+                        this.current = index.findNearestBaseNode(this.lastKey, this.lastKeyInclusive ? EQUAL : 0);
+                    }
+                    continue;
+                }
+                this.current = baseNode.next;
+                if (this.fence != null) {
+                    var c = index.entityComparator.compare(key, this.fence);
+                    if (c > 0 || c == 0 && !this.fenceInclusive) {
+                        this.current = null;
+                        return false;
+                    }
+                }
+                this.lastKey = key;
+                this.lastKeyInclusive = false;
+                var entity = index.getEntitySnapshot(this.revision, baseNode.entityNode);
+                if (entity != null) {
+                    action.accept(entity);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Spliterator<Entity> trySplit() {
+            var currentKey = this.current == null ? null : EntityTableSkipListIndex.getKey(this.current);
+            if (currentKey == null) {
+                return null;
+            }
+            var comparator = EntityTableSkipListIndex.this.entityComparator;
+            for (var indexNode = this.row; indexNode != null; indexNode = this.row = indexNode.down) {
+                var right = indexNode.right;
+                Entity splitKey = null;
+                // skip index nodes not after the current base node
+                while (right != null
+                        && ((splitKey = EntityTableSkipListIndex.getKey(right.baseNode)) == null
+                        || comparator.compare(splitKey, currentKey) <= 0)) {
+                    indexNode = right;
+                    right = right.right;
+                }
+                if (right != null && (this.fence == null || comparator.compare(splitKey, this.fence) < 0)) {
+                    this.estimate -= this.estimate >>> 1;
+                    var prefix = new RangeSpliterator(
+                            this.revision, indexNode.down, this.current, splitKey, false, this.estimate);
+                    this.current = right.baseNode;
+                    this.row = right.right != null ? right : right.down;
+                    this.lastKey = splitKey;
+                    this.lastKeyInclusive = true;
+                    return prefix;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public long estimateSize() {
+            return this.estimate;
+        }
+
+        @Override
+        public int characteristics() {
+            return Spliterator.ORDERED | Spliterator.NONNULL;
+        }
+    }
+
+    // a quarter of nodes in a level are indexed in the level above
+    private static long estimateSize(IndexNode head) {
+        if (head == null) {
+            return 0;
+        }
+        int levels = 0;
+        for (var indexNode = head; indexNode != null; indexNode = indexNode.down) {
+            ++levels;
+        }
+        long top = 1;
+        for (var indexNode = head.right; indexNode != null && top < (1 << 20); indexNode = indexNode.right) {
+            ++top;
+        }
+        return levels * 2 + 21 >= Long.SIZE ? Long.MAX_VALUE : top << (levels * 2);
+    }
+
+    // returns the key of the base node, or null if it is removed or a marker
+    private static Entity getKey(BaseNode baseNode) {
+        if (baseNode == null) {
+            return null;
+        }
+        var entityNode = baseNode.entityNode;
+        if (entityNode == ENTITY_NODE_MARKER) {
+            return null;
+        }
+        for (; entityNode != null; entityNode = entityNode.next) {
+            var entity = entityNode.entity;
+            if (entity != null && entity != ENTITY_MARKER) {
+                return entity;
+            }
+        }
+        return null;
+    }
+
+    // the search path of the last put of a sorted batch
+    private static class Finger {
+        IndexNode firstIndexNode;
+        IndexNode[] indexNodes = new IndexNode[32];
+        int levels;
+    }
+
     @Override
     public Entity put(Entity entity, boolean linkEntity, boolean mergeEntity) {
+        return this.put(entity, linkEntity, mergeEntity, null);
+    }
+
+    // each put starts from the search path of the previous one
+    @Override
+    public void putAll(List<Entity> entities) {
+        var finger = new Finger();
+        for (var entity : entities) {
+            this.put(entity, false, false, finger);
+        }
+    }
+
+    private Entity put(Entity entity, boolean linkEntity, boolean mergeEntity, Finger finger) {
         var newEntityNode = new EntityNode();
+        var longKey = this.getLongKey(entity);
+        var binaryKey = this.getBinaryKey(entity);
         start:
         for (; ; ) {
             VarHandle.acquireFence();
@@ -111,8 +349,16 @@ public class EntityTableSkipListIndex implements EntityTableSortedIndex {
             var firstIndexNode = this.getFirstIndexNode();
             // search the index for the first possible insertion point
             int levels = 0; // how many levels goes down when searching the index
+            var indexNode = firstIndexNode;
+            if (finger != null && finger.firstIndexNode == firstIndexNode) {
+                levels = finger.levels;
+                while (levels > 0 && this.isBeyond(entity, longKey, binaryKey, finger.indexNodes[levels - 1].right)) {
+                    --levels;
+                }
+                indexNode = finger.indexNodes[levels];
+            }
             BaseNode firstBaseNode;
-            for (var indexNode = firstIndexNode; ; ) {
+            for (; ; ) {
                 for (; ; ) {
                     var rightIndexNode = indexNode.right;
                     if (rightIndexNode == null) {
@@ -122,12 +368,18 @@ public class EntityTableSkipListIndex implements EntityTableSortedIndex {
                     EntityNode rightEntityNode;
                     if (rightBaseNode == null || (rightEntityNode = rightBaseNode.entityNode) == null) {
                         INDEX_NODE_RIGHT.compareAndSet(indexNode, rightIndexNode, rightIndexNode.right);
-                    } else if (this.entityComparator.compare(entity, rightEntityNode.entity) > 0) {
+                    } else if (this.compare(entity, longKey, binaryKey, rightBaseNode, rightEntityNode.entity) > 0) {
                         indexNode = rightIndexNode;
                     } else {
                         break;
                     }
                 }
+                if (finger != null) {
+                    if (levels == finger.indexNodes.length) {
+                        finger.indexNodes = Arrays.copyOf(finger.indexNodes, levels * 2);
+                    }
+                    finger.indexNodes[levels] = indexNode;
+                }
                 var downIndexNode = indexNode.down;
                 if (downIndexNode == null) {
                     firstBaseNode = indexNode.baseNode;
@@ -136,6 +388,10 @@ public class EntityTableSkipListIndex implements EntityTableSortedIndex {
                 indexNode = downIndexNode;
                 ++levels;
             }
+            if (finger != null) {
+                finger.firstIndexNode = firstIndexNode;
+                finger.levels = levels;
+            }
 
             // iterate over the base node list, update the base node if a matching entity is found, or insert a new one
             for (var baseNode = firstBaseNode; ; ) {
@@ -145,6 +401,9 @@ public class EntityTableSkipListIndex implements EntityTableSortedIndex {
                     if (nextEntityNode == ENTITY_NODE_MARKER) {
                         // the current base node is removed and can not be appended,
                         // restart from the very beginning
+                        if (finger != null) {
+                            finger.firstIndexNode = null;
+                        }
                         continue start;
                     }
                     if (nextEntityNode == null) {
@@ -158,22 +417,14 @@ public class EntityTableSkipListIndex implements EntityTableSortedIndex {
                         EntityTableSkipListIndex.unlinkEntityNode(nextBaseNode, nextEntityNode);
                         continue;
                     }
-                    var c = this.entityComparator.compare(entity, nextEntity);
+                    var c = this.compare(entity, longKey, binaryKey, nextBaseNode, nextEntity);
                     if (c > 0) {
                         baseNode = nextBaseNode;
                         continue;
                     }
                     if (c == 0) {
-                        if (entity.getId() != nextEntity.getId()) {
-                            // entity and nextEntity have the same key and different ids
-                            var nextRevisionEntity = (AbstractEntity) nextEntity.nextRevisionEntity;
-                            if (nextRevisionEntity == null
-                                    || nextRevisionEntity.getRevision() <= ((AbstractEntity) entity).getRevision()) {
-                                // check if nextEntity is overwritten by other revisions.
-                                // all modified entities are inserted to the main index before secondary indexes are
-                                // updated, so it is OK to have the equal sign in the condition.
-                                throw new DuplicatedKeyException(this.entityComparator.getKeyString(entity));
-                            }
+                        if (EntityTableIndex.isDuplicated(this.entityComparator, entity, nextEntity)) {
+                            throw new DuplicatedKeyException(this.entityComparator.getKeyString(entity));
                         }
                         newEntityNode.next = nextEntityNode;
                         if (!BASE_NODE_ENTITY_NODE.compareAndSet(nextBaseNode, nextEntityNode, newEntityNode)) {
@@ -205,11 +456,13 @@ public class EntityTableSkipListIndex implements EntityTableSortedIndex {
                 var newBaseNode = new BaseNode();
                 newBaseNode.entityNode = newEntityNode;
                 newBaseNode.next = nextBaseNode;
+                newBaseNode.key = longKey;
+                newBaseNode.binaryKey = binaryKey;
                 if (!BASE_NODE_NEXT.compareAndSet(baseNode, nextBaseNode, newBaseNode)) {
                     // another base node is inserted, or the base node is removed, retry
                     continue;
                 }
-                this.updateIndex(newBaseNode, firstIndexNode, levels);
+                this.updateIndex(newBaseNode, firstIndexNode, levels, finger == null ? null : finger.indexNodes);
                 return newEntityNode.entity;
             }
         }
@@ -218,6 +471,8 @@ public class EntityTableSkipListIndex implements EntityTableSortedIndex {
     @Override
     public void remove(Entity entity) {
         VarHandle.acquireFence();
+        var longKey = this.getLongKey(entity);
+        var binaryKey = this.getBinaryKey(entity);
         start:
         for (; ; ) {
             var prevBaseNode = this.findNearestBaseNode(entity, LESS_THAN);
@@ -248,7 +503,7 @@ public class EntityTableSkipListIndex implements EntityTableSortedIndex {
                     // the current base node is removed, retry
                     continue;
                 }
-                var c = this.entityComparator.compare(entity, currentEntity);
+                var c = this.compare(entity, longKey, binaryKey, currentBaseNode, currentEntity);
                 if (c == 0) {
                     EntityNode prevEntityNode = null;
                     do {
@@ -297,6 +552,17 @@ public class EntityTableSkipListIndex implements EntityTableSortedIndex {
 
     @Override
     public void garbageCollection(long revision) {
+        var collector = new EntityTableIndexStatistics.Collector(this.entityComparator, 0);
+        this.garbageCollection(revision, collector);
+        this.statistics = collector.build(this.sampleHistogram());
+    }
+
+    @Override
+    public EntityTableIndexStatistics getStatistics() {
+        return this.statistics;
+    }
+
+    private void garbageCollection(long revision, EntityTableIndexStatistics.Collector collector) {
         var prevBaseNode = this.getFirstBaseNode();
         if (prevBaseNode == null) {
             // empty index
@@ -318,10 +584,9 @@ public class EntityTableSkipListIndex implements EntityTableSortedIndex {
                 do {
                     var entity = (AbstractEntity) currentEntityNode.entity;
                     if (entity.getRevision() <= revision) {
-                        AbstractEntity nextRevisionEntity;
-                        if (entity.isNull()
-                                || (nextRevisionEntity = (AbstractEntity) entity.getNextRevisionEntity()) != null
-                                && nextRevisionEntity.getRevision() <= revision) {
+                        Entity latestEntity = null;
+                        if (entity.isNull() || (latestEntity =
+                                EntityTableIndex.getLatestRevision(this.entityComparator, entity, revision)) == null) {
                             if (prevEntityNode == null) { // the base node can be removed
                                 if (!BASE_NODE_ENTITY_NODE.compareAndSet(currentBaseNode, currentEntityNode, null)) {
                                     // new revisions inserted, retry
@@ -336,6 +601,8 @@ public class EntityTableSkipListIndex implements EntityTableSortedIndex {
                                 prevEntityNode.next = null;
                             }
                         } else {
+                            // later revisions with the same key take over the entry
+                            currentEntityNode.entity = latestEntity;
                             currentEntityNode.next = null;
                         }
                         break;
@@ -343,13 +610,60 @@ public class EntityTableSkipListIndex implements EntityTableSortedIndex {
                     prevEntityNode = currentEntityNode;
                     currentEntityNode = currentEntityNode.next;
                 } while (currentEntityNode != null);
+                EntityTableSkipListIndex.collectStatistics(collector, currentBaseNode.entityNode);
             }
             prevBaseNode = currentBaseNode;
         }
     }
 
+    private static void collectStatistics(EntityTableIndexStatistics.Collector collector, EntityNode entityNode) {
+        if (entityNode == null || entityNode == ENTITY_NODE_MARKER) {
+            return;
+        }
+        Entity first = null;
+        int chainLength = 0;
+        for (; entityNode != null; entityNode = entityNode.next) {
+            var entity = entityNode.entity;
+            if (entity != null && entity != ENTITY_MARKER) {
+                if (first == null) {
+                    first = entity;
+                }
+                ++chainLength;
+            }
+        }
+        if (first != null) {
+            collector.add(first, chainLength);
+        }
+    }
+
+    // index nodes of a level are a random sample of keys, the level with enough nodes gives an equi-depth histogram
+    private List<Entity> sampleHistogram() {
+        VarHandle.acquireFence();
+        var row = this.headIndexNode;
+        for (; row != null; row = row.down) {
+            int count = 0;
+            for (var indexNode = row.right; indexNode != null && count < EntityTableIndexStatistics.HISTOGRAM_BUCKETS;
+                 indexNode = indexNode.right) {
+                ++count;
+            }
+            if (count == EntityTableIndexStatistics.HISTOGRAM_BUCKETS || row.down == null) {
+                break;
+            }
+        }
+        var histogram = new ArrayList<Entity>();
+        for (var indexNode = row == null ? null : row.right; indexNode != null; indexNode = indexNode.right) {
+            var key = EntityTableSkipListIndex.getKey(indexNode.baseNode);
+            if (key != null) {
+                histogram.add(key);
+            }
+        }
+        return histogram;
+    }
+
     private EntityNode getFirstEntityNode(Entity key) {
         VarHandle.acquireFence();
+        var longKey = this.getLongKey(key);
+        var binaryKey = this.getBinaryKey(key);
         var indexNode = this.headIndexNode;
         if (indexNode == null) {
             return null;
@@ -365,7 +679,7 @@ public class EntityTableSkipListIndex implements EntityTableSortedIndex {
                 if (baseNode == null || (entityNode = baseNode.entityNode) == null) {
                     INDEX_NODE_RIGHT.compareAndSet(indexNode, right, right.right);
                 } else {
-                    var c = this.entityComparator.compare(key, entityNode.entity);
+                    var c = this.compare(key, longKey, binaryKey, baseNode, entityNode.entity);
                     if (c > 0) {
                         indexNode = right;
                     } else if (c == 0) {
@@ -387,7 +701,7 @@ public class EntityTableSkipListIndex implements EntityTableSortedIndex {
                     }
                     var nextEntityNode = nextBaseNode.entityNode;
                     if (nextEntityNode != null && nextEntityNode != ENTITY_NODE_MARKER) {
-                        var c = this.entityComparator.compare(key, nextEntityNode.entity);
+                        var c = this.compare(key, longKey, binaryKey, nextBaseNode, nextEntityNode.entity);
                         if (c == 0) {
                             return nextEntityNode;
                         } else if (c < 0) {
@@ -404,11 +718,7 @@ public class EntityTableSkipListIndex implements EntityTableSortedIndex {
         while (entityNode != null) {
             var entity = (AbstractEntity) entityNode.entity;
             if (entity != null && entity != ENTITY_MARKER && entity.getRevision() <= revision) {
-                var nextRevisionEntity = (AbstractEntity) entity.getNextRevisionEntity();
-                if (nextRevisionEntity != null && nextRevisionEntity.getRevision() <= revision) {
-                    return null;
-                }
-                return entity;
+                return EntityTableIndex.getLatestRevision(this.entityComparator, entity, revision);
             }
             entityNode = entityNode.next;
         }
@@ -429,7 +739,8 @@ public class EntityTableSkipListIndex implements EntityTableSortedIndex {
         }
     }
 
-    private void updateIndex(BaseNode baseNode, IndexNode firstIndexNode, int maxLevels) {
+    // new index nodes are linked from the search path if it is given
+    private void updateIndex(BaseNode baseNode, IndexNode firstIndexNode, int maxLevels, IndexNode[] indexNodes) {
         var random = ThreadLocalRandom.current();
         int lowRand = random.nextInt();
         if ((lowRand & 0x3) == 0) { // insert indexes for quarter of the base nodes
@@ -448,7 +759,10 @@ public class EntityTableSkipListIndex implements EntityTableSortedIndex {
                     rand <<= 1;
                 }
             }
-            if (this.addIndexes(firstIndexNode, skips, topIndexNodeToInsert)
+            var added = indexNodes != null && skips >= 0
+                    ? this.addIndexes(indexNodes[skips], 0, topIndexNodeToInsert)
+                    : this.addIndexes(firstIndexNode, skips, topIndexNodeToInsert);
+            if (added
                     && skips < 0
                     && this.headIndexNode == firstIndexNode) {
                 // try to add new level
@@ -464,6 +778,20 @@ public class EntityTableSkipListIndex implements EntityTableSortedIndex {
         }
     }
 
+    // whether the key is greater than the key of the index node, false if the index node is removed
+    private boolean isBeyond(Entity key, long longKey, byte[] binaryKey, IndexNode indexNode) {
+        if (indexNode == null) {
+            return false;
+        }
+        var baseNode = indexNode.baseNode;
+        EntityNode entityNode;
+        if (baseNode == null || (entityNode = baseNode.entityNode) == null || entityNode == ENTITY_NODE_MARKER) {
+            return false;
+        }
+        var entity = entityNode.entity;
+        return entity != null && entity != ENTITY_MARKER && this.compare(key, longKey, binaryKey, baseNode, entity) > 0;
+    }
+
     private boolean addIndexes(IndexNode indexNode, int skips, IndexNode indexNodeToInsert) {
         var baseNodeToInsert = indexNodeToInsert.baseNode;
         if (baseNodeToInsert == null) {
@@ -486,7 +814,11 @@ public class EntityTableSkipListIndex implements EntityTableSortedIndex {
                     INDEX_NODE_RIGHT.compareAndSet(indexNode, rightIndexNode, rightIndexNode.right);
                     continue;
                 }
-                var c = this.entityComparator.compare(entityToInsert, rightEntityNode.entity);
+                var c = this.compare(entityToInsert,
+                        baseNodeToInsert.key,
+                        baseNodeToInsert.binaryKey,
+                        rightBaseNode,
+                        rightEntityNode.entity);
                 if (c > 0) {
                     indexNode = rightIndexNode;
                     continue;
@@ -530,6 +862,51 @@ public class EntityTableSkipListIndex implements EntityTableSortedIndex {
         }
     }
 
+    // returns the last base node, or the head base node if the index is empty
+    private BaseNode findLastBaseNode() {
+        start:
+        for (; ; ) {
+            var indexNode = this.headIndexNode;
+            if (indexNode == null) {
+                return null;
+            }
+            for (; ; ) {
+                var rightIndexNode = indexNode.right;
+                if (rightIndexNode != null) {
+                    var rightBaseNode = rightIndexNode.baseNode;
+                    if (rightBaseNode == null || rightBaseNode.entityNode == null) {
+                        INDEX_NODE_RIGHT.compareAndSet(indexNode, rightIndexNode, rightIndexNode.right);
+                    } else {
+                        indexNode = rightIndexNode;
+                    }
+                } else if (indexNode.down != null) {
+                    indexNode = indexNode.down;
+                } else {
+                    break;
+                }
+            }
+            for (var baseNode = indexNode.baseNode; ; ) {
+                var nextBaseNode = baseNode.next;
+                if (nextBaseNode == null) {
+                    if (baseNode.entityNode == ENTITY_NODE_MARKER) {
+                        continue start;
+                    }
+                    return baseNode;
+                }
+                var nextEntityNode = nextBaseNode.entityNode;
+                if (nextEntityNode == ENTITY_NODE_MARKER) {
+                    // the current base node is removed, restart from the very beginning
+                    continue start;
+                }
+                if (nextEntityNode == null) {
+                    EntityTableSkipListIndex.unlinkBaseNode(baseNode, nextBaseNode);
+                    continue;
+                }
+                baseNode = nextBaseNode;
+            }
+        }
+    }
+
     private BaseNode getFirstBaseNode() {
         var head = this.headIndexNode;
         return head == null ? null : head.baseNode;
@@ -539,7 +916,7 @@ public class EntityTableSkipListIndex implements EntityTableSortedIndex {
         BaseNode next;
         for (; ; ) {
             next = node.next;
-            if (next.next != null && next.entityNode == ENTITY_NODE_MARKER) {
+            if (next != null && next.entityNode == ENTITY_NODE_MARKER) {
                 next = next.next;
                 break;
             } else {
@@ -558,7 +935,7 @@ public class EntityTableSkipListIndex implements EntityTableSortedIndex {
         EntityNode next;
         for (; ; ) {
             next = entityNode.next;
-            if (next.next != null && next.entity == ENTITY_MARKER) {
+            if (next != null && next.entity == ENTITY_MARKER) {
                 next = next.next;
                 break;
             } else {
@@ -577,7 +954,7 @@ public class EntityTableSkipListIndex implements EntityTableSortedIndex {
         EntityNode next;
         for (; ; ) {
             next = node.next;
-            if (next.next != null && next.entity == ENTITY_MARKER) {
+            if (next != null && next.entity == ENTITY_MARKER) {
                 next = next.next;
                 break;
             } else {
@@ -594,6 +971,8 @@ public class EntityTableSkipListIndex implements EntityTableSortedIndex {
 
     private BaseNode findPredecessorByIndex(Entity key) {
         VarHandle.acquireFence();
+        var longKey = this.getLongKey(key);
+        var binaryKey = this.getBinaryKey(key);
         var indexNode = this.headIndexNode;
         if (indexNode == null) {
             return null;
@@ -608,7 +987,7 @@ public class EntityTableSkipListIndex implements EntityTableSortedIndex {
                 EntityNode rightEntityNode;
                 if (rightBaseNode == null || (rightEntityNode = rightBaseNode.entityNode) == null) {
                     INDEX_NODE_RIGHT.compareAndSet(indexNode, rightIndexNode, rightIndexNode.right);
-                } else if (this.entityComparator.compare(key, rightEntityNode.entity) > 0) {
+                } else if (this.compare(key, longKey, binaryKey, rightBaseNode, rightEntityNode.entity) > 0) {
                     indexNode = rightIndexNode;
                 } else {
                     break;
@@ -623,6 +1002,28 @@ public class EntityTableSkipListIndex implements EntityTableSortedIndex {
         }
     }
 
+    private long getLongKey(Entity entity) {
+        return this.longKeyExtractor == null ? 0 : this.longKeyExtractor.applyAsLong(entity);
+    }
+
+    private byte[] getBinaryKey(Entity entity) {
+        return this.keyEncoder == null ? null : BinaryKeyBuilder.encode(this.keyEncoder, entity);
+    }
+
+    // compares the keys cached in base nodes first, the comparator is only needed to break ties of long keys
+    private int compare(Entity entity, long longKey, byte[] binaryKey, BaseNode baseNode, Entity baseEntity) {
+        if (this.keyEncoder != null) {
+            return Arrays.compareUnsigned(binaryKey, baseNode.binaryKey);
+        }
+        if (this.longKeyExtractor != null) {
+            var c = Long.compare(longKey, baseNode.key);
+            if (c != 0 || this.unique) {
+                return c;
+            }
+        }
+        return this.entityComparator.compare(entity, baseEntity);
+    }
+
     private static final int EQUAL = 1;
     private static final int LESS_THAN = 2;
 
@@ -634,6 +1035,8 @@ public class EntityTableSkipListIndex implements EntityTableSortedIndex {
             }
             return result.next;
         }
+        var longKey = this.getLongKey(key);
+        var binaryKey = this.getBinaryKey(key);
         start:
         for (; ; ) {
             var baseNode = findPredecessorByIndex(key);
@@ -655,7 +1058,7 @@ public class EntityTableSkipListIndex implements EntityTableSortedIndex {
                     EntityTableSkipListIndex.unlinkBaseNode(baseNode, nextBaseNode);
                     continue;
                 }
-                var c = this.entityComparator.compare(key, nextEntityNode.entity);
+                var c = this.compare(key, longKey, binaryKey, nextBaseNode, nextEntityNode.entity);
                 if (c == 0 && (op & EQUAL) != 0 || (c < 0) && (op & LESS_THAN) == 0) {
                     return nextBaseNode;
                 } else if (c <= 0 && (op & LESS_THAN) != 0) {
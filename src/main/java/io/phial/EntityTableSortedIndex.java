@@ -1,14 +1,63 @@
 package io.phial;
 
+import java.util.function.ToLongFunction;
 import java.util.stream.Stream;
 
 public interface EntityTableSortedIndex extends EntityTableIndex {
-    EntityComparator getEntityComparator();
-
     Stream<Entity> query(long transactionId,
                          long revision,
                          Entity from,
                          boolean fromInclusive,
                          Entity to,
                          boolean toInclusive);
+
+    Stream<Entity> queryDescending(long transactionId,
+                                   long revision,
+                                   Entity from,
+                                   boolean fromInclusive,
+                                   Entity to,
+                                   boolean toInclusive);
+
+    default long count(long transactionId,
+                       long revision,
+                       Entity from,
+                       boolean fromInclusive,
+                       Entity to,
+                       boolean toInclusive) {
+        throw new IllegalArgumentException("order statistics are not maintained by the index");
+    }
+
+    default long rank(long transactionId, long revision, Entity key) {
+        return this.count(transactionId, revision, null, false, key, false);
+    }
+
+    // the visible entity with the given rank, or null if there are not so many entities
+    default Entity select(long transactionId, long revision, long rank) {
+        throw new IllegalArgumentException("order statistics are not maintained by the index");
+    }
+
+    // the number summarized by aggregate, or null if the index does not aggregate values
+    default ToLongFunction<Entity> getValueExtractor() {
+        return null;
+    }
+
+    // the count, sum, min and max of the values of visible entities in the range
+    default EntityAggregate aggregate(long transactionId,
+                                      long revision,
+                                      Entity from,
+                                      boolean fromInclusive,
+                                      Entity to,
+                                      boolean toInclusive) {
+        var valueExtractor = this.getValueExtractor();
+        if (valueExtractor == null) {
+            throw new IllegalArgumentException("values are not aggregated by the index");
+        }
+        var entities = this.query(transactionId, revision, from, fromInclusive, to, toInclusive)
+                .filter(entity -> !((AbstractEntity) entity).isNull());
+        return EntityAggregate.of(entities::iterator, valueExtractor);
+    }
+
+    // called after the entity is superseded by an entity with another key or a removal
+    default void supersede(Entity entity, long revision) {
+    }
 }
@@ -0,0 +1,40 @@
+package io.phial;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+// a committed entity version whose payload is stored off-heap, only kept in the primary index
+public class OffHeapEntity extends AbstractEntity {
+    private long address;
+    private final int size;
+
+    OffHeapEntity(long id, long revision, long address, int size) {
+        this.id = id;
+        this.revision = revision;
+        this.address = address;
+        this.size = size;
+    }
+
+    public long getAddress() {
+        return (long) ADDRESS.getVolatile(this);
+    }
+
+    public int getSize() {
+        return this.size;
+    }
+
+    // returns the previous address, or 0 if it has been cleared
+    long clearAddress() {
+        return (long) ADDRESS.getAndSet(this, 0L);
+    }
+
+    private static final VarHandle ADDRESS;
+
+    static {
+        try {
+            ADDRESS = MethodHandles.lookup().findVarHandle(OffHeapEntity.class, "address", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package io.phial;
+
+import io.phial.memory.FreedMemoryGcManager;
+import io.phial.memory.MemoryArena;
+
+public class OffHeapEntityStorage {
+    private final EntitySerializer entitySerializer;
+    private final MemoryArena memoryArena;
+    private final FreedMemoryGcManager freedMemoryGcManager;
+
+    public OffHeapEntityStorage(EntitySerializer entitySerializer,
+                                MemoryArena memoryArena,
+                                FreedMemoryGcManager freedMemoryGcManager) {
+        this.entitySerializer = entitySerializer;
+        this.memoryArena = memoryArena;
+        this.freedMemoryGcManager = freedMemoryGcManager;
+    }
+
+    public Entity store(Entity entity) {
+        var abstractEntity = (AbstractEntity) entity;
+        if (abstractEntity.isNull()) {
+            return entity;
+        }
+        int size = this.entitySerializer.getSerializedSize(entity);
+        var slabAllocator = this.memoryArena.getSlabAllocator(size);
+        if (slabAllocator == null) {
+            // too large for slabs, keep it on heap
+            return entity;
+        }
+        long address = slabAllocator.allocate();
+        this.entitySerializer.serialize(entity, address);
+        return new OffHeapEntity(abstractEntity.getId(), abstractEntity.getRevision(), address, size);
+    }
+
+    // returns null if the off-heap memory of the entity has been freed
+    public Entity load(Entity entity) {
+        if (!(entity instanceof OffHeapEntity)) {
+            return entity;
+        }
+        var offHeapEntity = (OffHeapEntity) entity;
+        var epoch = this.freedMemoryGcManager.joinEpoch();
+        try {
+            // the memory is freed after the address is cleared and all joined epochs are left
+            long address = offHeapEntity.getAddress();
+            if (address == 0) {
+                return null;
+            }
+            var result = (AbstractEntity) this.entitySerializer.deserialize(address, offHeapEntity.getSize());
+            result.setId(offHeapEntity.getId());
+            result.setRevision(offHeapEntity.getRevision());
+            result.setNextRevisionEntity(offHeapEntity.getNextRevisionEntity());
+            return result;
+        } finally {
+            this.freedMemoryGcManager.leaveEpoch(epoch);
+        }
+    }
+
+    public void free(Entity entity) {
+        if (!(entity instanceof OffHeapEntity)) {
+            return;
+        }
+        var offHeapEntity = (OffHeapEntity) entity;
+        long address = offHeapEntity.clearAddress();
+        if (address != 0) {
+            this.freedMemoryGcManager.putGarbage(this.memoryArena.getSlabAllocator(offHeapEntity.getSize()), address);
+        }
+    }
+}
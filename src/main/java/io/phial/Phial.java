@@ -2,22 +2,27 @@ package io.phial;
 
 import io.phial.memory.FreedMemoryGcManager;
 import io.phial.memory.MemoryArena;
+import io.phial.specs.EntityTableIndexSpec;
 import io.phial.specs.EntityTableSpec;
 import sun.misc.Unsafe;
 
 import java.lang.reflect.Field;
 import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Collection;
+import java.util.Map;
 import java.util.TreeMap;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Phial {
     public static final Unsafe UNSAFE;
@@ -33,19 +38,21 @@ public class Phial {
     }
 
     private static Phial instance;
-    private final EntityStore entityStore = new EntityStore();
+    private final EntityStore entityStore;
+    private final ForkJoinPool indexUpdatePool;
     private final MemoryArena[] memoryArenas;
     private final AtomicInteger memoryArenaIndex = new AtomicInteger();
     private final ThreadLocal<MemoryArena> localMemoryArena = new ThreadLocal<>();
+    // indexes are allocated from the arena of their table, including the ones created later
+    private final Map<Class<?>, MemoryArena> tableMemoryArenas = new ConcurrentHashMap<>();
     private final ExecutorService executorService;
     private final ScheduledExecutorService backgroundExecutorService = Executors.newSingleThreadScheduledExecutor();
     private final TransactionCommitter transactionCommitter;
-    private long revision = 0;
-    private long nextRevision = 1;
-    private long nextTransactionId = 1;
-    private boolean inGarbageCollection;
-
-    private final List<Long> committingTransactions = new LinkedList<>();
+    private final FreedMemoryGcManager freedMemoryGcManager = new FreedMemoryGcManager();
+    private final CommitSequencer commitSequencer = new CommitSequencer();
+    private final AtomicLong nextTransactionId = new AtomicLong(1);
+    private final AtomicBoolean inGarbageCollection = new AtomicBoolean();
+    private final Config.WriteConflictDetection writeConflictDetection;
 
     public Phial() {
         this(Config.newBuilder().build());
@@ -58,8 +65,12 @@ public class Phial {
                 config.getTaskPoolKeepAliveSeconds(),
                 TimeUnit.SECONDS,
                 new LinkedBlockingQueue<>());
-        this.transactionCommitter = new TransactionCommitter(config, this.executorService);
-        var freedMemoryGcManager = new FreedMemoryGcManager();
+        this.transactionCommitter = new TransactionCommitter(config, this.executorService, this.commitSequencer);
+        this.indexUpdatePool = config.getIndexUpdateParallelism() > 1
+                ? new ForkJoinPool(config.getIndexUpdateParallelism())
+                : null;
+        this.entityStore = new EntityStore(this.indexUpdatePool);
+        this.writeConflictDetection = config.getWriteConflictDetection();
         this.memoryArenas = new MemoryArena[config.getMemoryArenaNumber()];
         for (int i = 0; i < this.memoryArenas.length; ++i) {
             this.memoryArenas[i] = new MemoryArena(
@@ -69,7 +80,7 @@ public class Phial {
                     new TreeMap<>(config.getMemoryRunFreeListWatermark()));
         }
         this.backgroundExecutorService.scheduleAtFixedRate(
-                freedMemoryGcManager::runOnce,
+                this.freedMemoryGcManager::runOnce,
                 0,
                 config.getFreedMemoryGcIntervalMillis(),
                 TimeUnit.MILLISECONDS);
@@ -103,19 +114,60 @@ public class Phial {
     }
 
     public void createTable(EntityTableSpec entityTableSpec) {
-        var table = this.entityStore.createTable(entityTableSpec.getClazz());
+        OffHeapEntityStorage offHeapEntityStorage = null;
+        var arena = this.memoryArenas[this.entityStore.getTableCount() % this.memoryArenas.length];
+        if (entityTableSpec.getEntitySerializer() != null) {
+            offHeapEntityStorage = new OffHeapEntityStorage(
+                    entityTableSpec.getEntitySerializer(),
+                    arena,
+                    this.freedMemoryGcManager);
+        }
+        var table = this.entityStore.createTable(entityTableSpec.getClazz(), offHeapEntityStorage);
+        this.tableMemoryArenas.put(entityTableSpec.getClazz(), arena);
         for (var indexSpec : entityTableSpec.getIndexes()) {
-            table.createIndex(indexSpec.getRecordComparator(), indexSpec.isUnique());
+            table.createIndex(indexSpec, arena, this.freedMemoryGcManager);
+        }
+    }
+
+    // builds the index online from the rows of the table, returns the id of the index
+    public int createIndex(Class<?> clazz, EntityTableIndexSpec indexSpec) {
+        var table = this.getTable(clazz);
+        return table.createIndex(indexSpec, this.tableMemoryArenas.get(clazz), this.freedMemoryGcManager);
+    }
+
+    public void dropIndex(Class<?> clazz, int indexId) {
+        this.getTable(clazz).dropIndex(indexId);
+    }
+
+    EntityTable getTable(Class<?> clazz) {
+        var table = this.entityStore.getTable(clazz);
+        if (table == null) {
+            throw new IllegalArgumentException("table " + clazz.getSimpleName() + " does not exist");
         }
+        return table;
     }
 
-    synchronized public Transaction newTransaction() {
-        return new Transaction(this, this.entityStore, this.nextTransactionId++, this.revision);
+    public Transaction newTransaction() {
+        return this.newTransaction(false);
+    }
+
+    // a serializable transaction fails to commit if entities it read are modified after its snapshot
+    public Transaction newTransaction(boolean serializable) {
+        return new Transaction(this,
+                this.entityStore,
+                this.nextTransactionId.getAndIncrement(),
+                this.commitSequencer.getVisibleRevision(),
+                serializable,
+                this.writeConflictDetection);
     }
 
     public void shutdown() throws InterruptedException {
         this.executorService.shutdown();
         this.executorService.awaitTermination(1000, TimeUnit.DAYS);
+        if (this.indexUpdatePool != null) {
+            this.indexUpdatePool.shutdown();
+            this.indexUpdatePool.awaitTermination(1000, TimeUnit.DAYS);
+        }
         this.backgroundExecutorService.shutdown();
         this.backgroundExecutorService.awaitTermination(1000, TimeUnit.DAYS);
         for (var arena : this.memoryArenas) {
@@ -123,31 +175,42 @@ public class Phial {
         }
     }
 
-    void commit(long transactionId) throws InterruptedException {
-        var tables = this.entityStore.getAllTables();
-        long revision;
+    void commit(long transactionId, Collection<EntityTable> tables) throws InterruptedException {
         var futures = new ArrayList<CompletableFuture<Void>>();
-        synchronized (this) {
-            revision = this.nextRevision++;
-            for (var table : tables) {
-                futures.add(this.transactionCommitter.commit(table, transactionId, revision));
+        // a transaction of a single table commits in the calling thread if no other commit is queued on the table
+        var inlineTable = tables.size() == 1 ? tables.iterator().next() : null;
+        var revision = this.commitSequencer.next();
+        try {
+            if (inlineTable == null || !this.transactionCommitter.tryReserve(inlineTable, revision)) {
+                for (var table : tables) {
+                    futures.add(this.transactionCommitter.commit(table, transactionId, revision));
+                }
+            }
+        } finally {
+            if (this.commitSequencer.dispatch(revision)) {
+                this.transactionCommitter.wakeUp();
             }
         }
         try {
-            CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+            if (inlineTable != null && futures.isEmpty()) {
+                this.transactionCommitter.commitReserved(inlineTable, transactionId, revision);
+            } else {
+                CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+            }
         } catch (Exception e) {
+            // all the tables are done, the ones committed are rolled back before the revision becomes visible
+            var tableIterator = tables.iterator();
             for (var future : futures) {
-                future.cancel(false);
+                var table = tableIterator.next();
+                if (!future.isCompletedExceptionally()) {
+                    table.rollback(transactionId);
+                }
             }
             throw new RuntimeException("failed to commit transaction " + transactionId, e);
-        }
-        synchronized (this) {
-            if (this.revision < revision) {
-                this.revision = revision;
-                if (!this.inGarbageCollection) {
-                    this.inGarbageCollection = true;
-                    this.executorService.submit(this::garbageCollection);
-                }
+        } finally {
+            // a failed revision is completed as well, or no later revision could become visible
+            if (this.commitSequencer.complete(revision) && this.inGarbageCollection.compareAndSet(false, true)) {
+                this.executorService.submit(this::garbageCollection);
             }
         }
     }
@@ -155,13 +218,17 @@ public class Phial {
     void garbageCollection() {
         long lastRevision = 0;
         for (; ; ) {
-            synchronized (this) {
-                if (lastRevision == this.revision) {
-                    this.inGarbageCollection = false;
+            var revision = this.commitSequencer.getVisibleRevision();
+            if (lastRevision == revision) {
+                this.inGarbageCollection.set(false);
+                // check again, the revision may advance before the flag is cleared
+                if (this.commitSequencer.getVisibleRevision() == lastRevision
+                        || !this.inGarbageCollection.compareAndSet(false, true)) {
                     return;
                 }
-                lastRevision = this.revision;
+                continue;
             }
+            lastRevision = revision;
             this.entityStore.garbageCollection(lastRevision);
         }
     }
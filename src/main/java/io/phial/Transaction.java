@@ -1,6 +1,11 @@
 package io.phial;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.stream.Stream;
 
 public class Transaction {
@@ -9,15 +14,26 @@ public class Transaction {
     private final long transactionId;
     private final long snapshotRevision;
     private boolean readOnly = true;
+    private final Set<EntityTable> dirtyTables = new HashSet<>();
+    // reads recorded by a serializable transaction, null if the transaction only reads its snapshot
+    private final Map<EntityTable, List<EntityTableRead>> reads;
+    private final Config.WriteConflictDetection writeConflictDetection;
     private static final int COMMITTED = 1;
     private static final int ROLLED_BACK = 2;
     private int status;
 
-    Transaction(Phial phial, EntityStore store, long transactionId, long revision) {
+    Transaction(Phial phial,
+                EntityStore store,
+                long transactionId,
+                long revision,
+                boolean serializable,
+                Config.WriteConflictDetection writeConflictDetection) {
         this.phial = phial;
         this.store = store;
         this.transactionId = transactionId;
         this.snapshotRevision = revision;
+        this.reads = serializable ? new HashMap<>() : null;
+        this.writeConflictDetection = writeConflictDetection;
     }
 
     public long getNextId(Class<?> clazz) {
@@ -30,6 +46,7 @@ public class Transaction {
         return this.store.getTable(clazz).getNextId();
     }
 
+    // a delta changing a key does not move the entity in secondary indexes until the transaction commits
     public void createOrUpdateEntities(Class<?> clazz, List<EntityUpdate> entities) {
         if (this.status != 0) {
             if (this.status == COMMITTED) {
@@ -37,7 +54,12 @@ public class Transaction {
             }
             throw new IllegalStateException("transaction is rolled back");
         }
-        this.store.getTable(clazz).put(this.transactionId, entities);
+        var table = this.store.getTable(clazz);
+        if (this.writeConflictDetection != Config.WriteConflictDetection.NONE) {
+            table.setWriteConflictDetection(this.transactionId, this.snapshotRevision, this.writeConflictDetection);
+        }
+        table.put(this.transactionId, entities);
+        this.dirtyTables.add(table);
         this.readOnly = false;
     }
 
@@ -48,7 +70,12 @@ public class Transaction {
             }
             throw new IllegalStateException("transaction is rolled back");
         }
-        if (this.store.getTable(clazz).remove(this.transactionId, this.snapshotRevision, ids)) {
+        var table = this.store.getTable(clazz);
+        if (this.writeConflictDetection != Config.WriteConflictDetection.NONE) {
+            table.setWriteConflictDetection(this.transactionId, this.snapshotRevision, this.writeConflictDetection);
+        }
+        if (table.remove(this.transactionId, this.snapshotRevision, ids)) {
+            this.dirtyTables.add(table);
             this.readOnly = false;
         }
     }
@@ -68,6 +95,9 @@ public class Transaction {
         }
         var table = this.store.getTable(clazz);
         var entity = table.getByIndex(this.transactionId, indexId, this.snapshotRevision, key);
+        if (this.reads != null) {
+            this.addRead(table, new EntityTableRead(indexId, key, entity));
+        }
         if (entity == null) {
             return null;
         }
@@ -81,6 +111,20 @@ public class Transaction {
             boolean fromInclusive,
             Entity to,
             boolean toInclusive) {
+        return this.queryEntitiesByIndex(clazz, indexId, from, fromInclusive, to, toInclusive, false, 0, -1);
+    }
+
+    // a negative limit means no limit
+    public Stream<Entity> queryEntitiesByIndex(
+            Class<?> clazz,
+            int indexId,
+            Entity from,
+            boolean fromInclusive,
+            Entity to,
+            boolean toInclusive,
+            boolean descending,
+            long offset,
+            long limit) {
         if (this.status != 0) {
             if (this.status == COMMITTED) {
                 throw new IllegalStateException("transaction is committed");
@@ -88,6 +132,21 @@ public class Transaction {
             throw new IllegalStateException("transaction is rolled back");
         }
         var table = this.store.getTable(clazz);
+        if (this.reads != null) {
+            // entities skipped by the offset are read as well
+            var read = new EntityTableRead(indexId, from, fromInclusive, to, toInclusive, descending);
+            this.addRead(table, read);
+            var stream = read.record(table.queryByIndex(
+                    this.transactionId, indexId, this.snapshotRevision, from, fromInclusive, to, toInclusive,
+                    descending, 0, -1));
+            if (offset > 0) {
+                stream = stream.skip(offset);
+            }
+            if (limit >= 0) {
+                stream = stream.limit(limit);
+            }
+            return stream;
+        }
         return table.queryByIndex(
                 this.transactionId,
                 indexId,
@@ -95,7 +154,107 @@ public class Transaction {
                 from,
                 fromInclusive,
                 to,
-                toInclusive);
+                toInclusive,
+                descending,
+                offset,
+                limit);
+    }
+
+    // counted by the statistics of B+-tree indexes, other index types are rejected
+    public long countEntitiesByIndex(
+            Class<?> clazz,
+            int indexId,
+            Entity from,
+            boolean fromInclusive,
+            Entity to,
+            boolean toInclusive) {
+        this.checkStatus();
+        var table = this.store.getTable(clazz);
+        if (this.reads != null) {
+            this.addCountedRead(table, indexId, from, fromInclusive, to, toInclusive);
+        }
+        return table.countByIndex(
+                this.transactionId, indexId, this.snapshotRevision, from, fromInclusive, to, toInclusive);
+    }
+
+    public EntityAggregate aggregateEntitiesByIndex(
+            Class<?> clazz,
+            int indexId,
+            Entity from,
+            boolean fromInclusive,
+            Entity to,
+            boolean toInclusive) {
+        this.checkStatus();
+        var table = this.store.getTable(clazz);
+        if (this.reads != null) {
+            this.addCountedRead(table, indexId, from, fromInclusive, to, toInclusive);
+        }
+        return table.aggregateByIndex(
+                this.transactionId, indexId, this.snapshotRevision, from, fromInclusive, to, toInclusive);
+    }
+
+    public long getEntityRankByIndex(Class<?> clazz, int indexId, Entity key) {
+        this.checkStatus();
+        var table = this.store.getTable(clazz);
+        if (this.reads != null) {
+            this.addCountedRead(table, indexId, null, false, key, false);
+        }
+        return table.rankByIndex(this.transactionId, indexId, this.snapshotRevision, key);
+    }
+
+    // the entity with the given zero based rank in the index, or null if there are not so many entities
+    public Entity selectEntityByIndex(Class<?> clazz, int indexId, long rank) {
+        this.checkStatus();
+        var table = this.store.getTable(clazz);
+        var entity = table.selectByIndex(this.transactionId, indexId, this.snapshotRevision, rank);
+        if (this.reads != null) {
+            // the entities up to the selected one decide its rank
+            this.addCountedRead(table, indexId, null, false, entity, true);
+        }
+        return entity;
+    }
+
+    // must not be used after the transaction ends
+    public EntityCursor openCursor(
+            Class<?> clazz,
+            int indexId,
+            Entity from,
+            boolean fromInclusive,
+            Entity to,
+            boolean toInclusive,
+            boolean descending) {
+        var stream = this.queryEntitiesByIndex(clazz, indexId, from, fromInclusive, to, toInclusive, descending, 0, -1);
+        return new EntityCursor(this, stream.spliterator());
+    }
+
+    private void addRead(EntityTable table, EntityTableRead read) {
+        this.reads.computeIfAbsent(table, t -> new ArrayList<>()).add(read);
+    }
+
+    private void addCountedRead(EntityTable table,
+                                int indexId,
+                                Entity from,
+                                boolean fromInclusive,
+                                Entity to,
+                                boolean toInclusive) {
+        var committedCount = table.countByIndex(
+                0, indexId, this.snapshotRevision, from, fromInclusive, to, toInclusive);
+        this.addRead(table, new EntityTableRead(indexId, from, fromInclusive, to, toInclusive, committedCount));
+    }
+
+    private Set<EntityTable> getReadOrDirtyTables() {
+        var tables = new HashSet<>(this.dirtyTables);
+        tables.addAll(this.reads.keySet());
+        return tables;
+    }
+
+    void checkStatus() {
+        if (this.status != 0) {
+            if (this.status == COMMITTED) {
+                throw new IllegalStateException("transaction is committed");
+            }
+            throw new IllegalStateException("transaction is rolled back");
+        }
     }
 
     public void commit() throws InterruptedException {
@@ -106,7 +265,18 @@ public class Transaction {
             throw new IllegalStateException("can not commit a rolled back transaction");
         }
         if (!this.readOnly) {
-            this.phial.commit(this.transactionId);
+            var tables = this.dirtyTables;
+            if (this.reads != null) {
+                // tables only read are committed as well to validate the reads in the order of commits
+                tables = this.getReadOrDirtyTables();
+                for (var entry : this.reads.entrySet()) {
+                    entry.getKey().setReads(this.transactionId, this.snapshotRevision, entry.getValue());
+                }
+            }
+            this.phial.commit(this.transactionId, tables);
+            for (var table : tables) {
+                table.closeTransaction(this.transactionId);
+            }
         }
         this.status = COMMITTED;
     }
@@ -116,7 +286,7 @@ public class Transaction {
             throw new IllegalStateException("can not rollback a committed transaction");
         }
         if (!this.readOnly) {
-            for (var table : this.store.getAllTables()) {
+            for (var table : this.reads == null ? this.dirtyTables : this.getReadOrDirtyTables()) {
                 table.rollback(this.transactionId);
             }
         }
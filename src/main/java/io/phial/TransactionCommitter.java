@@ -1,17 +1,20 @@
 package io.phial;
 
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+// commits of each table are enqueued in any order, and taken in the order of revisions after all lower revisions
+// are dispatched
 class TransactionCommitter {
     private static final Logger logger = Logger.getLogger(TransactionCommitter.class.getName());
 
@@ -21,12 +24,28 @@ class TransactionCommitter {
         long revision;
     }
 
+    // guarded by its own monitor
+    private static class TableQueue {
+        final EntityTable table;
+        final Queue<CommitInfo> infos = new PriorityQueue<>(Comparator.comparingLong(info -> info.revision));
+        // whether a commit of the table is running, either in the executor or inline
+        boolean running;
+
+        TableQueue(EntityTable table) {
+            this.table = table;
+        }
+    }
+
     private final ExecutorService executor;
+    private final CommitSequencer commitSequencer;
     private final int commitBatchSize;
-    private final Map<EntityTable, Queue<CommitInfo>> committingTables = new HashMap<>();
+    private final Map<EntityTable, TableQueue> tableQueues = new ConcurrentHashMap<>();
+    // tables whose next commit waits for lower revisions to be dispatched
+    private final Set<TableQueue> waitingTableQueues = ConcurrentHashMap.newKeySet();
 
-    public TransactionCommitter(Config config, ExecutorService executor) {
+    public TransactionCommitter(Config config, ExecutorService executor, CommitSequencer commitSequencer) {
         this.executor = executor;
+        this.commitSequencer = commitSequencer;
         this.commitBatchSize = config.getCommitBatchSize();
     }
 
@@ -38,57 +57,136 @@ class TransactionCommitter {
         info.future = new CompletableFuture<>();
         info.transactionId = transactionId;
         info.revision = revision;
-        synchronized (committingTables) {
-            var infoQueue = committingTables.get(table);
-            if (infoQueue != null) {
-                synchronized (infoQueue) {
-                    infoQueue.add(info);
-                }
-            } else {
-                var newInfoQueue = new LinkedList<CommitInfo>();
-                newInfoQueue.push(info);
-                committingTables.put(table, newInfoQueue);
-                this.executor.submit(() -> process(table, newInfoQueue));
-            }
+        var tableQueue = this.getTableQueue(table);
+        synchronized (tableQueue) {
+            tableQueue.infos.add(info);
         }
+        this.schedule(tableQueue);
         return info.future;
     }
 
-    private void process(EntityTable table, Queue<CommitInfo> infoQueue) {
-        for (int i = 0; i < this.commitBatchSize; ++i) {
-            CommitInfo info;
-            synchronized (infoQueue) {
-                info = infoQueue.poll();
+    // reserves the table for a commit in the calling thread if no lower commit of the table may be pending
+    public boolean tryReserve(EntityTable table, long revision) {
+        var tableQueue = this.getTableQueue(table);
+        synchronized (tableQueue) {
+            if (tableQueue.running
+                    || !tableQueue.infos.isEmpty()
+                    || this.commitSequencer.getDispatchedRevision() != revision - 1) {
+                return false;
             }
-            if (info == null) {
-                synchronized (committingTables) {
-                    synchronized (infoQueue) {
-                        info = infoQueue.poll(); // check again
-                    }
-                    if (info == null) {
-                        committingTables.remove(table);
-                        return;
-                    }
+            tableQueue.running = true;
+            return true;
+        }
+    }
+
+    // commits the table reserved by tryReserve, then hands the commits queued meanwhile to the executor
+    public void commitReserved(EntityTable table, long transactionId, long revision) {
+        var tableQueue = this.getTableQueue(table);
+        try {
+            table.commit(transactionId, revision);
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine("transaction " + transactionId + ": table " + table.getName() + " committed");
+            }
+        } finally {
+            synchronized (tableQueue) {
+                tableQueue.running = false;
+            }
+            this.schedule(tableQueue);
+        }
+    }
+
+    // called after the dispatched revision advances, schedules the tables waiting for it
+    public void wakeUp() {
+        for (var tableQueue : this.waitingTableQueues) {
+            if (this.waitingTableQueues.remove(tableQueue)) {
+                this.schedule(tableQueue);
+            }
+        }
+    }
+
+    private TableQueue getTableQueue(EntityTable table) {
+        return this.tableQueues.computeIfAbsent(table, TableQueue::new);
+    }
+
+    // submits the commits of the table unless they are running or wait for lower revisions
+    private void schedule(TableQueue tableQueue) {
+        synchronized (tableQueue) {
+            var info = tableQueue.infos.peek();
+            if (tableQueue.running || info == null) {
+                return;
+            }
+            if (info.revision > this.commitSequencer.getDispatchedRevision()) {
+                this.waitingTableQueues.add(tableQueue);
+                // check again, the dispatched revision may advance before the table is added
+                if (info.revision > this.commitSequencer.getDispatchedRevision()) {
+                    return;
                 }
+                this.waitingTableQueues.remove(tableQueue);
             }
-            if (!info.future.isCancelled()) {
-                try {
-                    table.commit(info.transactionId, info.revision);
-                    info.future.complete(null);
-                } catch (Exception e) {
-                    info.future.completeExceptionally(e);
+            tableQueue.running = true;
+        }
+        this.executor.submit(() -> this.process(tableQueue));
+    }
+
+    private void process(TableQueue tableQueue) {
+        var table = tableQueue.table;
+        var infos = new ArrayList<CommitInfo>();
+        synchronized (tableQueue) {
+            var dispatchedRevision = this.commitSequencer.getDispatchedRevision();
+            while (infos.size() < this.commitBatchSize) {
+                var info = tableQueue.infos.peek();
+                if (info == null || info.revision > dispatchedRevision) {
+                    break;
                 }
-                if (logger.isLoggable(Level.FINE)) {
-                    logger.fine("transaction " + info.transactionId + ": table " + table.getName() + " committed");
+                tableQueue.infos.poll();
+                if (info.future.isCancelled()) {
+                    if (logger.isLoggable(Level.FINE)) {
+                        logger.fine("transaction " + info.transactionId + ": table " + table.getName()
+                                + " commitment is canceled");
+                    }
+                    continue;
                 }
-            } else {
-                if (logger.isLoggable(Level.FINE)) {
-                    logger.fine(
-                            "transaction " + info.transactionId + ": table " + table.getName() + " commitment is canceled");
+                infos.add(info);
+            }
+        }
+        try {
+            this.commitGroup(table, infos);
+        } finally {
+            synchronized (tableQueue) {
+                tableQueue.running = false;
+            }
+            // yield
+            this.schedule(tableQueue);
+        }
+    }
+
+    private void commitGroup(EntityTable table, List<CommitInfo> infos) {
+        if (infos.isEmpty()) {
+            return;
+        }
+        var transactionIds = new long[infos.size()];
+        var revisions = new long[infos.size()];
+        for (int i = 0; i < infos.size(); ++i) {
+            transactionIds[i] = infos.get(i).transactionId;
+            revisions[i] = infos.get(i).revision;
+        }
+        try {
+            var exceptions = table.commit(transactionIds, revisions);
+            for (int i = 0; i < infos.size(); ++i) {
+                var info = infos.get(i);
+                if (exceptions[i] == null) {
+                    info.future.complete(null);
+                    if (logger.isLoggable(Level.FINE)) {
+                        logger.fine("transaction " + info.transactionId + ": table " + table.getName() + " committed");
+                    }
+                } else {
+                    info.future.completeExceptionally(exceptions[i]);
                 }
             }
+        } catch (Exception e) {
+            for (var info : infos) {
+                info.future.completeExceptionally(e);
+            }
         }
-        // yield
-        this.executor.submit(() -> process(table, infoQueue));
     }
 }
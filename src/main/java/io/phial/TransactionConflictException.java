@@ -0,0 +1,7 @@
+package io.phial;
+
+public class TransactionConflictException extends RuntimeException {
+    public TransactionConflictException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,73 @@
+package io.phial;
+
+import java.util.stream.Stream;
+
+public class TransactionEntityTableHashIndex implements EntityTableIndex {
+
+    private final EntityTableIndex base;
+    private final EntityTableIndex patch;
+    // ids of the entities modified by the transaction, whose entities in the base index are shadowed
+    private final EntityIdSet shadowedIds;
+
+    public TransactionEntityTableHashIndex(EntityTableIndex base, EntityIdSet shadowedIds) {
+        this.base = base;
+        this.patch = new EntityTablePatchIndex(base.isUnique(), base.getEntityComparator(), false);
+        this.shadowedIds = shadowedIds;
+    }
+
+    public EntityTableIndex getPatch() {
+        return this.patch;
+    }
+
+    @Override
+    public boolean isUnique() {
+        return this.base.isUnique();
+    }
+
+    @Override
+    public EntityComparator getEntityComparator() {
+        return this.patch.getEntityComparator();
+    }
+
+    @Override
+    public Entity get(long transactionId, long snapshotRevision, Entity key) {
+        var entity = this.patch.get(transactionId, 0, key);
+        if (entity != null) {
+            return entity;
+        }
+        entity = this.base.get(transactionId, snapshotRevision, key);
+        if (entity != null
+                && this.shadowedIds != null
+                && this.shadowedIds.contains(entity.getId())) {
+            // the entity is modified in this transaction
+            return null;
+        }
+        return entity;
+    }
+
+    @Override
+    public Stream<Entity> queryKey(long transactionId, long snapshotRevision, Entity from, Entity to) {
+        var entities = this.base.queryKey(transactionId, snapshotRevision, from, to)
+                .filter(entity -> this.shadowedIds == null || !this.shadowedIds.contains(entity.getId()));
+        return Stream.concat(this.patch.queryKey(transactionId, 0, from, to), entities);
+    }
+
+    @Override
+    public Entity put(Entity entity, boolean linkEntity, boolean mergeEntity) {
+        var e = this.base.get(0, Long.MAX_VALUE, entity);
+        if (e != null && e.getId() != entity.getId()) {
+            throw new DuplicatedKeyException(this.base.getEntityComparator().getKeyString(entity));
+        }
+        return this.patch.put(entity, linkEntity, mergeEntity);
+    }
+
+    @Override
+    public void remove(Entity entity) {
+        // meaningless for this class, do nothing
+    }
+
+    @Override
+    public void garbageCollection(long revision) {
+        // meaningless for this class, do nothing
+    }
+}
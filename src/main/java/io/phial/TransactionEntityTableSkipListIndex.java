@@ -1,8 +1,11 @@
 package io.phial;
 
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.Spliterator;
 import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
@@ -10,12 +13,13 @@ public class TransactionEntityTableSkipListIndex implements EntityTableSortedInd
 
     private final EntityTableSortedIndex base;
     private final EntityTableSortedIndex patch;
-    private final EntityTableSortedIndex mainPatchIndex;
+    // null for the main index, whose patch holds all modified entities
+    private final EntityIdSet shadowedIds;
 
-    public TransactionEntityTableSkipListIndex(EntityTableSortedIndex base, EntityTableSortedIndex mainPatchIndex) {
+    public TransactionEntityTableSkipListIndex(EntityTableSortedIndex base, EntityIdSet shadowedIds) {
         this.base = base;
-        this.patch = new EntityTableSkipListIndex(base.isUnique(), base.getEntityComparator());
-        this.mainPatchIndex = mainPatchIndex;
+        this.patch = new EntityTablePatchIndex(base.isUnique(), base.getEntityComparator(), true);
+        this.shadowedIds = shadowedIds;
     }
 
     public EntityTableSortedIndex getPatch() {
@@ -32,6 +36,11 @@ public class TransactionEntityTableSkipListIndex implements EntityTableSortedInd
         return this.patch.getEntityComparator();
     }
 
+    @Override
+    public ToLongFunction<Entity> getValueExtractor() {
+        return this.base.getValueExtractor();
+    }
+
     @Override
     public Entity get(long transactionId, long snapshotRevision, Entity key) {
         var entity = this.patch.get(transactionId, 0, key);
@@ -39,7 +48,7 @@ public class TransactionEntityTableSkipListIndex implements EntityTableSortedInd
             return entity;
         }
         entity = this.base.get(transactionId, snapshotRevision, key);
-        if (this.mainPatchIndex != null && this.mainPatchIndex.get(transactionId, 0, entity) != null) {
+        if (entity != null && this.isShadowed(entity)) {
             return null;
         }
         return entity;
@@ -48,18 +57,127 @@ public class TransactionEntityTableSkipListIndex implements EntityTableSortedInd
     @Override
     public Stream<Entity> query(long transactionId, long revision, Entity from, boolean fromInclusive, Entity to,
                                 boolean toInclusive) {
-        var stream1 = this.base.query(transactionId, revision, from, fromInclusive, to, toInclusive);
-        var stream2 = this.patch.query(transactionId, revision, from, fromInclusive, to, toInclusive);
-        var iterator1 = stream1.iterator();
-        var iterator2 = stream2.iterator();
-        var comparator = this.base.getEntityComparator();
-        var mergedIterator = new Iterator<Entity>() {
+        var spliterator = this.base.query(transactionId, revision, from, fromInclusive, to, toInclusive).spliterator();
+        return StreamSupport.stream(
+                new MergedSpliterator(transactionId, revision, spliterator, from, fromInclusive, to, toInclusive),
+                false);
+    }
+
+    @Override
+    public Stream<Entity> queryDescending(long transactionId,
+                                          long revision,
+                                          Entity from,
+                                          boolean fromInclusive,
+                                          Entity to,
+                                          boolean toInclusive) {
+        var iterator1 = this.base.queryDescending(transactionId, revision, from, fromInclusive, to, toInclusive)
+                .iterator();
+        var iterator2 = this.patch.queryDescending(transactionId, revision, from, fromInclusive, to, toInclusive)
+                .iterator();
+        var mergedIterator = this.merge(
+                transactionId, iterator1, iterator2, this.base.getEntityComparator().reversed());
+        var spliterator = Spliterators.spliteratorUnknownSize(mergedIterator, Spliterator.ORDERED);
+        return StreamSupport.stream(spliterator, false);
+    }
+
+    // merges a range of the base index with the same range of the patch. ranges of skip-list indexes are split by
+    // the base spliterator, and the patch range is cut at the same key.
+    private class MergedSpliterator implements Spliterator<Entity> {
+        private final long transactionId;
+        private final long revision;
+        private final Spliterator<Entity> baseSpliterator;
+        private Entity from;
+        private boolean fromInclusive;
+        private final Entity to;
+        private final boolean toInclusive;
+        private Iterator<Entity> iterator;
+
+        private MergedSpliterator(long transactionId,
+                                  long revision,
+                                  Spliterator<Entity> baseSpliterator,
+                                  Entity from,
+                                  boolean fromInclusive,
+                                  Entity to,
+                                  boolean toInclusive) {
+            this.transactionId = transactionId;
+            this.revision = revision;
+            this.baseSpliterator = baseSpliterator;
+            this.from = from;
+            this.fromInclusive = fromInclusive;
+            this.to = to;
+            this.toInclusive = toInclusive;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Entity> action) {
+            if (this.iterator == null) {
+                var index = TransactionEntityTableSkipListIndex.this;
+                var stream = index.patch.query(
+                        this.transactionId, this.revision, this.from, this.fromInclusive, this.to, this.toInclusive);
+                this.iterator = index.merge(this.transactionId,
+                        Spliterators.iterator(this.baseSpliterator),
+                        stream.iterator(),
+                        index.base.getEntityComparator());
+            }
+            if (this.iterator.hasNext()) {
+                action.accept(this.iterator.next());
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public Spliterator<Entity> trySplit() {
+            if (this.iterator != null || !(this.baseSpliterator instanceof EntityTableSkipListIndex.RangeSpliterator)) {
+                return null;
+            }
+            var prefix = (EntityTableSkipListIndex.RangeSpliterator) this.baseSpliterator.trySplit();
+            if (prefix == null) {
+                return null;
+            }
+            var result = new MergedSpliterator(this.transactionId,
+                    this.revision,
+                    prefix,
+                    this.from,
+                    this.fromInclusive,
+                    prefix.getFence(),
+                    false);
+            this.from = prefix.getFence();
+            this.fromInclusive = true;
+            return result;
+        }
+
+        @Override
+        public long estimateSize() {
+            return this.baseSpliterator.estimateSize();
+        }
+
+        @Override
+        public int characteristics() {
+            return Spliterator.ORDERED | Spliterator.NONNULL;
+        }
+    }
+
+    private Iterator<Entity> merge(long transactionId,
+                                   Iterator<Entity> iterator1,
+                                   Iterator<Entity> iterator2,
+                                   Comparator<Entity> comparator) {
+        return new Iterator<>() {
             private Entity next1 = iterator1.hasNext() ? iterator1.next() : null;
             private Entity next2 = iterator2.hasNext() ? iterator2.next() : null;
 
             @Override
             public boolean hasNext() {
-                return next1 != null || next2 != null;
+                for (; ; ) {
+                    if (next2 != null || next1 == null) {
+                        return next1 != null || next2 != null;
+                    }
+                    if (!TransactionEntityTableSkipListIndex.this.isShadowed(next1)) {
+                        return true;
+                    }
+                    // the entity is modified in this transaction
+                    next1 = iterator1.hasNext() ? iterator1.next() : null;
+                }
             }
 
             @Override
@@ -71,9 +189,7 @@ public class TransactionEntityTableSkipListIndex implements EntityTableSortedInd
                                     && (c = comparator.compare(next1, next2)) < 0) {
                         var result = next1;
                         next1 = iterator1.hasNext() ? iterator1.next() : null;
-                        if (TransactionEntityTableSkipListIndex.this.mainPatchIndex != null
-                                && TransactionEntityTableSkipListIndex.this.mainPatchIndex.get(transactionId, 0,
-                                result) != null) {
+                        if (TransactionEntityTableSkipListIndex.this.isShadowed(result)) {
                             continue;
                         }
                         return result;
@@ -88,8 +204,10 @@ public class TransactionEntityTableSkipListIndex implements EntityTableSortedInd
                 }
             }
         };
-        var spliterator = Spliterators.spliteratorUnknownSize(mergedIterator, Spliterator.ORDERED);
-        return StreamSupport.stream(spliterator, false);
+    }
+
+    private boolean isShadowed(Entity entity) {
+        return this.shadowedIds != null && this.shadowedIds.contains(entity.getId());
     }
 
     @Override
@@ -8,28 +8,30 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class FreedMemoryGcManager {
-    private static class EpochNode {
-        AtomicInteger activeTransactions = new AtomicInteger();
-        Queue<Map.Entry<SlabAllocator, Long>> garbageList = new ConcurrentLinkedQueue<>();
+    public static class Epoch {
+        private final AtomicInteger activeTransactions = new AtomicInteger();
+        private final Queue<Map.Entry<SlabAllocator, Long>> garbageList = new ConcurrentLinkedQueue<>();
     }
 
-    private final List<EpochNode> nodes = new ArrayList<>();
-    private volatile EpochNode currentNode = new EpochNode();
+    private final List<Epoch> nodes = new ArrayList<>();
+    private volatile Epoch currentNode = new Epoch();
 
     public FreedMemoryGcManager() {
         this.nodes.add(this.currentNode);
     }
 
-    public void joinEpoch() {
+    public Epoch joinEpoch() {
         for (; ; ) {
-            if (this.currentNode.activeTransactions.getAndIncrement() >= 0) {
-                break;
+            var node = this.currentNode;
+            if (node.activeTransactions.getAndIncrement() >= 0) {
+                return node;
             }
         }
     }
 
-    public void leaveEpoch() {
-        this.currentNode.activeTransactions.getAndDecrement();
+    public void leaveEpoch(Epoch epoch) {
+        // leave the joined epoch rather than the current one, which may be changed since then
+        epoch.activeTransactions.getAndDecrement();
     }
 
     public void putGarbage(SlabAllocator slabAllocator, long address) {
@@ -44,29 +46,29 @@ public class FreedMemoryGcManager {
     }
 
     private void newEpoch() {
-        EpochNode newNode = new EpochNode();
+        Epoch newNode = new Epoch();
         this.nodes.add(newNode);
         this.currentNode = newNode;
     }
 
     private void garbageCollection() {
+        // garbage put in an epoch may still be referenced by transactions that joined earlier epochs,
+        // so epochs are freed in order and stop at the first one with active transactions
         int i = 0;
-        for (var node : nodes) {
-            if (node != currentNode && node.activeTransactions.get() == 0) {
-                if (node.activeTransactions.getAndAdd(-Integer.MAX_VALUE) > 0) {
-                    // some transactions joined the epoch just before this if statement
-                    node.activeTransactions.getAndAdd(Integer.MAX_VALUE);
-                } else {
-                    for (var entry : node.garbageList) {
-                        entry.getKey().free(entry.getValue());
-                    }
-                    // garbage collected, skip this node
-                    continue;
-                }
+        for (; i < this.nodes.size(); ++i) {
+            var node = this.nodes.get(i);
+            if (node == this.currentNode || node.activeTransactions.get() != 0) {
+                break;
+            }
+            if (node.activeTransactions.getAndAdd(-Integer.MAX_VALUE) > 0) {
+                // some transactions joined the epoch just before this if statement
+                node.activeTransactions.getAndAdd(Integer.MAX_VALUE);
+                break;
+            }
+            for (var entry : node.garbageList) {
+                entry.getKey().free(entry.getValue());
             }
-            this.nodes.set(i, node);
-            ++i;
         }
+        this.nodes.subList(0, i).clear();
     }
-
 }
@@ -83,6 +83,14 @@ public class MemoryArena {
         }
     }
 
+    // returns null if the memory of the size is not allocated from slabs
+    public SlabAllocator getSlabAllocator(int size) {
+        if (size > 64 * KB) {
+            return null;
+        }
+        return this.slabAllocators[SizeClass.getSizeClassIndex(size)];
+    }
+
     public void freeGarbageCollectedThreadCaches() {
         for (var slabAllocator : this.slabAllocators) {
             if (slabAllocator instanceof ThreadCachedSlabAllocator) {
@@ -3,8 +3,8 @@ package io.phial.memory;
 import io.phial.Phial;
 
 import java.lang.ref.ReferenceQueue;
-import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public abstract class ThreadCachedSlabAllocator extends AbstractSlabAllocator {
     private static final long ACTIVE_RUN_FIELD_OFFSET;
@@ -25,7 +25,7 @@ public abstract class ThreadCachedSlabAllocator extends AbstractSlabAllocator {
     private final double cacheWatermarkDecayRate;
     private final ReferenceQueue<ThreadCache> referenceQueue;
     private final ThreadLocal<ThreadCache> cache = new ThreadLocal<>();
-    private final Set<ThreadCacheReference> referenceSet = new HashSet<>();
+    private final Set<ThreadCacheReference> referenceSet = ConcurrentHashMap.newKeySet();
     private long activeRun;
     protected final InternalRedBlackTree availableRuns = new InternalRedBlackTree();
     protected final SimpleLock availableLock = new SimpleLock();
@@ -67,8 +67,8 @@ public abstract class ThreadCachedSlabAllocator extends AbstractSlabAllocator {
     @Override
     public void free(long address) {
         var localCache = this.cache.get();
-        assert localCache != null;
-        if (!localCache.put(address)) {
+        if (localCache == null || !localCache.put(address)) {
+            // threads never allocated from this allocator, e.g. the freed memory gc thread, have no cache
             this.globalFree(address);
         }
     }
@@ -99,6 +99,11 @@ public abstract class ThreadCachedSlabAllocator extends AbstractSlabAllocator {
     private long globalAllocate() {
         for (; ; ) {
             long run = this.activeRun;
+            if (run == 0) {
+                // no run is allocated yet
+                this.updateActiveRun();
+                continue;
+            }
             long bitmapAddress = this.getBitmapAddress(run);
             long bitmap = Phial.UNSAFE.getLong(bitmapAddress);
             if (bitmap == 0) {
@@ -120,10 +125,9 @@ public abstract class ThreadCachedSlabAllocator extends AbstractSlabAllocator {
 
     private void updateActiveRun() {
         this.availableLock.lock();
-        long bitmapAddress = this.getBitmapAddress(this.activeRun);
         try {
-            long bitmap = Phial.UNSAFE.getLong(bitmapAddress);
-            if (bitmap == 0) { // check again before update
+            if (this.activeRun == 0 || Phial.UNSAFE.getLong(this.getBitmapAddress(this.activeRun)) == 0) {
+                // check again before update
                 long nextRun = this.availableRuns.pollFirst();
                 if (nextRun == 0) {
                     long newRun = this.runAllocator.allocate();
@@ -138,7 +142,7 @@ public abstract class ThreadCachedSlabAllocator extends AbstractSlabAllocator {
 
     private void globalFree(long address) {
         long run = this.getRunAddress(address);
-        long slabIndex = (address - this.getSlabOffset()) / this.slabSize;
+        long slabIndex = (address - run - this.getSlabOffset()) / this.slabSize;
         long bitmapAddress = this.getBitmapAddress(run);
         for (; ; ) {
             long bitmap = Phial.UNSAFE.getLong(bitmapAddress);
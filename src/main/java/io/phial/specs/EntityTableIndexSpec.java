@@ -1,14 +1,71 @@
 package io.phial.specs;
 
+import io.phial.Entity;
 import io.phial.EntityComparator;
+import io.phial.EntityKeyEncoder;
+
+import java.util.function.ToLongFunction;
 
 public class EntityTableIndexSpec {
+    public enum Type {
+        SKIP_LIST,
+        BP_TREE,
+        HASH,
+        OFF_HEAP_SKIP_LIST,
+    }
+
     private final boolean unique;
     private final EntityComparator entityComparator;
+    private final Type type;
+    private final ToLongFunction<Entity> longKeyExtractor;
+    private final EntityKeyEncoder keyEncoder;
+    private final ToLongFunction<Entity> valueExtractor;
 
     public EntityTableIndexSpec(boolean unique, EntityComparator entityComparator) {
+        this(unique, entityComparator, Type.SKIP_LIST);
+    }
+
+    public EntityTableIndexSpec(boolean unique, EntityComparator entityComparator, Type type) {
+        this(unique, entityComparator, type, null, null, null);
+    }
+
+    // the long key extractor must order entities the same way as the comparator
+    public EntityTableIndexSpec(boolean unique,
+                                EntityComparator entityComparator,
+                                Type type,
+                                ToLongFunction<Entity> longKeyExtractor) {
+        this(unique, entityComparator, type, longKeyExtractor, null, null);
+    }
+
+    // the key encoder must order entities the same way as the comparator
+    public EntityTableIndexSpec(boolean unique,
+                                EntityComparator entityComparator,
+                                Type type,
+                                EntityKeyEncoder keyEncoder) {
+        this(unique, entityComparator, type, null, keyEncoder, null);
+    }
+
+    // the value extractor selects the number summarized by aggregate queries, only B+-tree indexes support it
+    public EntityTableIndexSpec(boolean unique,
+                                EntityComparator entityComparator,
+                                Type type,
+                                ToLongFunction<Entity> longKeyExtractor,
+                                ToLongFunction<Entity> valueExtractor) {
+        this(unique, entityComparator, type, longKeyExtractor, null, valueExtractor);
+    }
+
+    private EntityTableIndexSpec(boolean unique,
+                                 EntityComparator entityComparator,
+                                 Type type,
+                                 ToLongFunction<Entity> longKeyExtractor,
+                                 EntityKeyEncoder keyEncoder,
+                                 ToLongFunction<Entity> valueExtractor) {
         this.unique = unique;
         this.entityComparator = entityComparator;
+        this.type = type;
+        this.longKeyExtractor = longKeyExtractor;
+        this.keyEncoder = keyEncoder;
+        this.valueExtractor = valueExtractor;
     }
 
     public boolean isUnique() {
@@ -18,4 +75,20 @@ public class EntityTableIndexSpec {
     public EntityComparator getRecordComparator() {
         return this.entityComparator;
     }
+
+    public Type getType() {
+        return this.type;
+    }
+
+    public ToLongFunction<Entity> getLongKeyExtractor() {
+        return this.longKeyExtractor;
+    }
+
+    public EntityKeyEncoder getKeyEncoder() {
+        return this.keyEncoder;
+    }
+
+    public ToLongFunction<Entity> getValueExtractor() {
+        return this.valueExtractor;
+    }
 }
@@ -1,11 +1,21 @@
 package io.phial.specs;
 
+import io.phial.EntitySerializer;
+
 public class EntityTableSpec {
     private final Class<?> clazz;
+    private final EntitySerializer entitySerializer;
     private final EntityTableIndexSpec[] indexes;
 
     public EntityTableSpec(Class<?> clazz, EntityTableIndexSpec... indexes) {
+        this(clazz, null, indexes);
+    }
+
+    // committed entities are stored off-heap if entitySerializer is not null. such a table can only be read by ids,
+    // secondary indexes compare keys of entities on heap and can not be created on it
+    public EntityTableSpec(Class<?> clazz, EntitySerializer entitySerializer, EntityTableIndexSpec... indexes) {
         this.clazz = clazz;
+        this.entitySerializer = entitySerializer;
         this.indexes = indexes;
     }
 
@@ -13,6 +23,10 @@ public class EntityTableSpec {
         return this.clazz;
     }
 
+    public EntitySerializer getEntitySerializer() {
+        return this.entitySerializer;
+    }
+
     public EntityTableIndexSpec[] getIndexes() {
         return this.indexes;
     }
@@ -0,0 +1,252 @@
+package io.phial;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static io.phial.TestEntity.KEY_COMPARATOR;
+import static io.phial.TestEntity.queryKeys;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class BpTreeIndexTest {
+    @Test
+    public void testPutAndQuery() {
+        var index = new EntityTableBpTreeIndex(true, KEY_COMPARATOR);
+        var keys = LongStream.range(0, 10000).boxed().collect(Collectors.toList());
+        Collections.shuffle(keys);
+        for (var key : keys) {
+            index.put(TestEntity.of(key + 1, key * 2, 1), false, false);
+        }
+        for (long key = 0; key < 10000; ++key) {
+            var entity = (TestEntity) index.get(0, 1, TestEntity.of(0, key * 2, 0));
+            assertThat(entity.getId(), is(key + 1));
+            assertThat(index.get(0, 1, TestEntity.of(0, key * 2 + 1, 0)), nullValue());
+        }
+        assertThat(queryKeys(index, 1, 100L, 110L), is(List.of(100L, 102L, 104L, 106L, 108L)));
+        assertThat(queryKeys(index, 1, null, 5L), is(List.of(0L, 2L, 4L)));
+        assertThat(queryKeys(index, 1, 19995L, null), is(List.of(19996L, 19998L)));
+        assertThat(queryKeys(index, 0, null, null), is(List.of()));
+        assertThat(queryKeys(index, 1, null, null).size(), is(10000));
+    }
+
+    @Test
+    public void testRevisions() {
+        var index = new EntityTableBpTreeIndex(true, KEY_COMPARATOR);
+        var entity1 = TestEntity.of(1, 10, 1);
+        index.put(entity1, false, false);
+        var entity2 = TestEntity.of(1, 10, 2);
+        index.put(entity2, true, false);
+        var entity3 = TestEntity.of(2, 20, 2);
+        index.put(entity3, false, false);
+        assertThat(index.get(0, 1, entity1), is(entity1));
+        assertThat(index.get(0, 2, entity1), is(entity2));
+        assertThat(index.get(0, 1, entity3), nullValue());
+        assertThat(queryKeys(index, 1, null, null), is(List.of(10L)));
+        assertThat(queryKeys(index, 2, null, null), is(List.of(10L, 20L)));
+
+        index.remove(entity2);
+        entity1.setNextRevisionEntity(null);
+        assertThat(index.get(0, 2, entity1), is(entity1));
+
+        var nullEntity = new NullEntity();
+        nullEntity.setId(2);
+        nullEntity.setRevision(3);
+        entity3.setNextRevisionEntity(nullEntity);
+        index.garbageCollection(3);
+        assertThat(index.get(0, 2, entity3), nullValue());
+        assertThat(queryKeys(index, 3, null, null), is(List.of(10L)));
+    }
+
+    @Test
+    public void testCount() {
+        var index = new EntityTableBpTreeIndex(true, KEY_COMPARATOR);
+        var entities = new ArrayList<TestEntity>();
+        for (long key = 0; key < 1000; ++key) {
+            var entity = TestEntity.of(key + 1, key * 2, 1);
+            entities.add(entity);
+            index.put(entity, false, false);
+        }
+        // move some entities to odd keys at revision 2, and remove some at revision 3
+        for (int i = 0; i < 100; ++i) {
+            var entity = entities.get(i);
+            var newEntity = TestEntity.of(entity.getId(), entity.key + 1, 2);
+            entity.setNextRevisionEntity(newEntity);
+            index.put(newEntity, false, false);
+            index.supersede(entity, 2);
+        }
+        for (int i = 500; i < 600; ++i) {
+            var entity = entities.get(i);
+            var nullEntity = new NullEntity();
+            nullEntity.setId(entity.getId());
+            nullEntity.setRevision(3);
+            entity.setNextRevisionEntity(nullEntity);
+            index.supersede(entity, 3);
+        }
+        for (long revision = 1; revision <= 3; ++revision) {
+            for (var range : List.of(List.of(-1L, 3000L), List.of(0L, 100L), List.of(150L, 1500L), List.of(7L, 7L))) {
+                var from = TestEntity.of(0, range.get(0), 0);
+                var to = TestEntity.of(0, range.get(1), 0);
+                assertThat(index.count(0, revision, from, true, to, false),
+                        is(index.query(0, revision, from, true, to, false).count()));
+                assertThat(index.count(0, revision, from, false, to, true),
+                        is(index.query(0, revision, from, false, to, true).count()));
+            }
+            assertThat(index.count(0, revision, null, false, null, false), is(revision < 3 ? 1000L : 900L));
+        }
+        assertThat(index.rank(0, 2, TestEntity.of(0, 1100, 0)), is(550L));
+        assertThat(index.rank(0, 3, TestEntity.of(0, 1100, 0)), is(500L));
+        assertThat(((TestEntity) index.select(0, 1, 10)).key, is(20L));
+        assertThat(((TestEntity) index.select(0, 2, 10)).key, is(21L));
+        assertThat(((TestEntity) index.select(0, 3, 500)).key, is(1200L));
+        assertThat(index.select(0, 3, 900), nullValue());
+    }
+
+    @Test
+    public void testConcurrentCount() throws InterruptedException {
+        var index = new EntityTableBpTreeIndex(true, KEY_COMPARATOR);
+        var keys = LongStream.range(0, 20000).boxed().collect(Collectors.toList());
+        Collections.shuffle(keys);
+        for (var key : keys) {
+            index.put(TestEntity.of(key + 1, key * 2, 1), false, false);
+        }
+        // inner nodes are split by concurrent puts at revision 2, while the summaries of revision 1 stay the same
+        var threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; ++i) {
+            long offset = i;
+            var thread = new Thread(() -> {
+                for (long key = offset; key < 20000; key += 4) {
+                    index.put(TestEntity.of(key + 20001, key * 2 + 1, 2), false, false);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        var from = TestEntity.of(0, 1000, 0);
+        var to = TestEntity.of(0, 30001, 0);
+        for (int i = 0; i < 100; ++i) {
+            assertThat(index.count(0, 1, null, false, null, false), is(20000L));
+            assertThat(index.count(0, 1, from, true, to, true), is(14501L));
+            assertThat(((TestEntity) index.select(0, 1, 12345)).key, is(24690L));
+        }
+        for (var thread : threads) {
+            thread.join();
+        }
+        assertThat(index.count(0, 2, null, false, null, false), is(40000L));
+        assertThat(index.count(0, 2, from, false, to, false), is(29000L));
+        assertThat(index.rank(0, 2, to), is(30001L));
+        for (long rank = 0; rank < 40000; rank += 999) {
+            assertThat(((TestEntity) index.select(0, 2, rank)).key, is(rank));
+        }
+        assertThat(index.select(0, 2, 40000), nullValue());
+    }
+
+    @Test
+    public void testAggregate() {
+        ToLongFunction<Entity> valueExtractor = entity -> ((TestEntity) entity).key % 7 - 3;
+        var index = new EntityTableBpTreeIndex(true, KEY_COMPARATOR, null, valueExtractor);
+        var entities = new ArrayList<TestEntity>();
+        for (long key = 0; key < 1000; ++key) {
+            var entity = TestEntity.of(key + 1, key * 2, 1);
+            entities.add(entity);
+            index.put(entity, false, false);
+        }
+        for (int i = 0; i < 1000; i += 3) {
+            var entity = entities.get(i);
+            var newEntity = TestEntity.of(entity.getId(), entity.key + 2001, 2);
+            entity.setNextRevisionEntity(newEntity);
+            index.put(newEntity, false, false);
+            index.supersede(entity, 2);
+        }
+        for (long revision = 1; revision <= 2; ++revision) {
+            for (var range : List.of(List.of(-1L, 5000L), List.of(10L, 100L), List.of(1500L, 2500L))) {
+                var from = TestEntity.of(0, range.get(0), 0);
+                var to = TestEntity.of(0, range.get(1), 0);
+                var aggregate = index.aggregate(0, revision, from, true, to, false);
+                var values = index.query(0, revision, from, true, to, false)
+                        .mapToLong(valueExtractor)
+                        .summaryStatistics();
+                assertThat(aggregate.getCount(), is(values.getCount()));
+                assertThat(aggregate.getSum(), is(values.getSum()));
+                assertThat(aggregate.getMin(), is(values.getMin()));
+                assertThat(aggregate.getMax(), is(values.getMax()));
+            }
+        }
+        var empty = index.aggregate(0, 2, TestEntity.of(0, 1, 0), true, TestEntity.of(0, 2, 0), false);
+        assertThat(empty.getCount(), is(0L));
+        assertThat(empty.getMin(), is(Long.MAX_VALUE));
+        assertThrows(IllegalArgumentException.class, () -> new EntityTableBpTreeIndex(true, KEY_COMPARATOR)
+                .aggregate(0, 1, null, false, null, false));
+    }
+
+    @Test
+    public void testDescendingQuery() throws InterruptedException {
+        var index = new EntityTableBpTreeIndex(true, KEY_COMPARATOR);
+        var keys = LongStream.range(0, 10000).boxed().collect(Collectors.toList());
+        Collections.shuffle(keys);
+        for (var key : keys) {
+            index.put(TestEntity.of(key + 1, key * 2, key % 2 + 1), false, false);
+        }
+        for (var range : List.of(List.of(-1L, 30000L), List.of(100L, 5000L), List.of(8L, 8L), List.of(9L, 9L))) {
+            var from = TestEntity.of(0, range.get(0), 0);
+            var to = TestEntity.of(0, range.get(1), 0);
+            for (long revision = 1; revision <= 2; ++revision) {
+                for (var inclusive : List.of(true, false)) {
+                    var expected = index.query(0, revision, from, inclusive, to, inclusive)
+                            .map(Entity::getId)
+                            .collect(Collectors.toList());
+                    Collections.reverse(expected);
+                    assertThat(index.queryDescending(0, revision, from, inclusive, to, inclusive)
+                            .map(Entity::getId)
+                            .collect(Collectors.toList()), is(expected));
+                }
+            }
+        }
+
+        // leaf nodes split by concurrent puts are neither skipped nor read twice
+        var expected = LongStream.range(0, 10000).map(key -> 10000 - key).boxed().collect(Collectors.toList());
+        var writer = new Thread(() -> {
+            for (long key = 0; key < 10000; ++key) {
+                index.put(TestEntity.of(key + 10001, key * 2 + 1, 3), false, false);
+            }
+        });
+        writer.start();
+        for (int i = 0; i < 10; ++i) {
+            assertThat(index.queryDescending(0, 2, null, false, null, false)
+                    .map(Entity::getId)
+                    .collect(Collectors.toList()), is(expected));
+        }
+        writer.join();
+        assertThat(index.queryDescending(0, 3, null, false, TestEntity.of(0, 3, 0), true)
+                .map(entity -> ((TestEntity) entity).key)
+                .collect(Collectors.toList()), is(List.of(3L, 2L, 1L, 0L)));
+    }
+
+    @Test
+    public void testConcurrentPut() throws InterruptedException {
+        var index = new EntityTableBpTreeIndex(true, KEY_COMPARATOR);
+        var threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; ++i) {
+            long offset = i;
+            var thread = new Thread(() -> {
+                for (long key = offset; key < 100000; key += 4) {
+                    index.put(TestEntity.of(key + 1, key, 1), false, false);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (var thread : threads) {
+            thread.join();
+        }
+        assertThat(queryKeys(index, 1, null, null),
+                is(LongStream.range(0, 100000).boxed().collect(Collectors.toList())));
+    }
+}
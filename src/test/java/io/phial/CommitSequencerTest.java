@@ -0,0 +1,82 @@
+package io.phial;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class CommitSequencerTest {
+    @Test
+    public void testCommitSequencer() throws InterruptedException {
+        var sequencer = new CommitSequencer(4);
+        for (long revision = 1; revision <= 3; ++revision) {
+            assertThat(sequencer.next(), is(revision));
+        }
+        // revisions are dispatched in any order, the dispatched revision waits for the lower ones
+        assertThat(sequencer.dispatch(3), is(false));
+        assertThat(sequencer.dispatch(2), is(false));
+        assertThat(sequencer.getDispatchedRevision(), is(0L));
+        assertThat(sequencer.dispatch(1), is(true));
+        assertThat(sequencer.getDispatchedRevision(), is(3L));
+        // a revision is visible only after all lower revisions are completed
+        assertThat(sequencer.complete(2), is(false));
+        assertThat(sequencer.getVisibleRevision(), is(0L));
+        assertThat(sequencer.complete(1), is(true));
+        assertThat(sequencer.getVisibleRevision(), is(2L));
+        assertThat(sequencer.complete(3), is(true));
+        assertThat(sequencer.getVisibleRevision(), is(3L));
+
+        // the rings wrap around many times under concurrent commits
+        var threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; ++i) {
+            var thread = new Thread(() -> {
+                for (int j = 0; j < 10000; ++j) {
+                    var revision = sequencer.next();
+                    sequencer.dispatch(revision);
+                    sequencer.complete(revision);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (var thread : threads) {
+            thread.join();
+        }
+        assertThat(sequencer.getDispatchedRevision(), is(80003L));
+        assertThat(sequencer.getVisibleRevision(), is(80003L));
+    }
+
+    @Test
+    public void testOutOfOrderDispatch() {
+        var sequencer = new CommitSequencer();
+        var executor = Executors.newSingleThreadExecutor();
+        var committer = new TransactionCommitter(Config.newBuilder().build(), executor, sequencer);
+        var committedRevisions = new ArrayList<Long>();
+        var table = new EntityTable("test") {
+            @Override
+            public RuntimeException[] commit(long[] transactionIds, long[] revisions) {
+                for (var revision : revisions) {
+                    committedRevisions.add(revision);
+                }
+                return new RuntimeException[transactionIds.length];
+            }
+        };
+        var revision1 = sequencer.next();
+        var revision2 = sequencer.next();
+        // the later revision is enqueued first, and waits for the lower one to be dispatched
+        var future2 = committer.commit(table, 2, revision2);
+        assertThat(sequencer.dispatch(revision2), is(false));
+        assertThat(future2.isDone(), is(false));
+        var future1 = committer.commit(table, 1, revision1);
+        assertThat(sequencer.dispatch(revision1), is(true));
+        committer.wakeUp();
+        CompletableFuture.allOf(future1, future2).join();
+        assertThat(committedRevisions, is(List.of(revision1, revision2)));
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,184 @@
+package io.phial;
+
+import io.phial.specs.EntityTableIndexSpec;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.function.ObjLongConsumer;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+
+import static io.phial.TestEntity.KEY_COMPARATOR;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class EntityDeltaTest {
+    static class CountedEntity extends TestEntity {
+        long count;
+
+        static CountedEntity of(long id, long key, long count) {
+            var entity = new CountedEntity();
+            entity.setId(id);
+            entity.key = key;
+            entity.count = count;
+            return entity;
+        }
+    }
+
+    // an update of the key only
+    static class KeyUpdate extends CountedEntity {
+        static KeyUpdate of(long id, long key) {
+            var entity = new KeyUpdate();
+            entity.setId(id);
+            entity.key = key;
+            return entity;
+        }
+
+        @Override
+        public Entity merge(Entity base) {
+            if (base == null) {
+                return null;
+            }
+            var result = (CountedEntity) ((AbstractEntity) base).clone();
+            result.setRevision(this.getRevision());
+            result.setNextRevisionEntity(null);
+            result.key = this.key;
+            return result;
+        }
+    }
+
+    @Test
+    public void testDelta() {
+        var table = new EntityTable("test");
+        int indexId = table.createIndex(KEY_COMPARATOR, true, EntityTableIndexSpec.Type.SKIP_LIST);
+        table.put(1, List.of(TestEntity.of(1, 10, 0)));
+        table.commit(1, 1);
+        table.closeTransaction(1);
+        ToLongFunction<TestEntity> getKey = entity -> entity.key;
+        ObjLongConsumer<TestEntity> setKey = (entity, key) -> entity.key = key;
+
+        // concurrent deltas of the same entity are all applied, even with write conflict detection
+        for (long transactionId = 2; transactionId <= 4; ++transactionId) {
+            table.setWriteConflictDetection(transactionId, 1, Config.WriteConflictDetection.AT_WRITE);
+            table.put(transactionId, List.of(new EntityDelta<TestEntity>(1).add(getKey, setKey, transactionId)));
+        }
+        // the transaction reads its delta applied to its snapshot by the main index
+        table.put(2, List.of(new EntityDelta<TestEntity>(1).max(getKey, setKey, 0)));
+        assertThat(((TestEntity) table.getByIndex(2, 1, 1, TestEntity.of(1, 0, 0))).key, is(12L));
+        // secondary indexes find the entity by its key in the snapshot, and apply the delta as well
+        assertThat(((TestEntity) table.getByIndex(2, indexId, 1, TestEntity.of(0, 10, 0))).key, is(12L));
+        assertThat(table.queryByIndex(2, indexId, 1, null, false, null, false)
+                .map(entity -> ((TestEntity) entity).key)
+                .collect(Collectors.toList()), is(List.of(12L)));
+        table.commit(new long[]{2, 3}, new long[]{2, 3});
+        table.closeTransaction(2);
+        table.closeTransaction(3);
+        table.commit(4, 4);
+        table.closeTransaction(4);
+        assertThat(((TestEntity) table.getByIndex(0, 1, 4, TestEntity.of(1, 0, 0))).key, is(19L));
+        assertThat(table.getByIndex(0, indexId, 4, TestEntity.of(0, 19, 0)).getId(), is(1L));
+        assertThat(table.getByIndex(0, indexId, 4, TestEntity.of(0, 10, 0)), nullValue());
+        assertThat(((TestEntity) table.getByIndex(0, 1, 2, TestEntity.of(1, 0, 0))).key, is(12L));
+
+        // a delta after an update of the transaction applies to the update
+        table.put(5, List.of(TestEntity.of(1, 100, 0)));
+        table.put(5, List.of(new EntityDelta<TestEntity>(1).min(getKey, setKey, 50)));
+        assertThat(((TestEntity) table.getByIndex(5, indexId, 4, TestEntity.of(0, 100, 0))).key, is(50L));
+        table.commit(5, 5);
+        table.closeTransaction(5);
+        assertThat(((TestEntity) table.getByIndex(0, 1, 5, TestEntity.of(1, 0, 0))).key, is(50L));
+        assertThat(table.getByIndex(0, indexId, 5, TestEntity.of(0, 50, 0)).getId(), is(1L));
+
+        // a delta of a removed entity leaves it removed
+        table.remove(6, 5, List.of(1L));
+        table.put(7, List.of(new EntityDelta<TestEntity>(1).increment(getKey, setKey)));
+        table.commit(6, 6);
+        table.closeTransaction(6);
+        table.commit(7, 7);
+        table.closeTransaction(7);
+        assertThat(table.getByIndex(0, 1, 7, TestEntity.of(1, 0, 0)).getId(), is(1L));
+        assertThat(((AbstractEntity) table.getByIndex(0, 1, 7, TestEntity.of(1, 0, 0))).isNull(), is(true));
+        assertThat(table.queryByIndex(0, indexId, 7, null, false, null, false).count(), is(0L));
+    }
+
+    @Test
+    public void testDeltaWithPartialUpdate() {
+        var table = new EntityTable("test");
+        int indexId = table.createIndex(KEY_COMPARATOR, true, EntityTableIndexSpec.Type.SKIP_LIST);
+        table.put(1, List.of(CountedEntity.of(1, 10, 7)));
+        table.commit(1, 1);
+        table.closeTransaction(1);
+        ToLongFunction<CountedEntity> getCount = entity -> entity.count;
+        ObjLongConsumer<CountedEntity> setCount = (entity, count) -> entity.count = count;
+
+        // the delta applies to the update merged with the latest entity, not to the fields the update leaves unset
+        table.put(2, List.of(KeyUpdate.of(1, 20)));
+        table.put(2, List.of(new EntityDelta<CountedEntity>(1).add(getCount, setCount, 5)));
+        var entity = (CountedEntity) table.getByIndex(2, 1, 1, TestEntity.of(1, 0, 0));
+        assertThat(entity.key, is(20L));
+        assertThat(entity.count, is(12L));
+        assertThat(((CountedEntity) table.getByIndex(2, indexId, 1, TestEntity.of(0, 20, 0))).count, is(12L));
+        table.put(3, List.of(new EntityDelta<CountedEntity>(1).add(getCount, setCount, 100)));
+        table.commit(3, 2);
+        table.closeTransaction(3);
+        table.commit(2, 3);
+        table.closeTransaction(2);
+        entity = (CountedEntity) table.getByIndex(0, 1, 3, TestEntity.of(1, 0, 0));
+        assertThat(entity.key, is(20L));
+        assertThat(entity.count, is(112L));
+        assertThat(table.getByIndex(0, indexId, 3, TestEntity.of(0, 20, 0)).getId(), is(1L));
+        assertThat(table.getByIndex(0, indexId, 3, TestEntity.of(0, 10, 0)), nullValue());
+
+        // an update after a delta is merged first, then the operations of the delta are applied
+        table.put(4, List.of(new EntityDelta<CountedEntity>(1).add(getCount, setCount, 1000)));
+        table.put(4, List.of(KeyUpdate.of(1, 30)));
+        entity = (CountedEntity) table.getByIndex(4, 1, 3, TestEntity.of(1, 0, 0));
+        assertThat(entity.key, is(30L));
+        assertThat(entity.count, is(1112L));
+        assertThat(table.getByIndex(4, indexId, 3, TestEntity.of(0, 20, 0)), nullValue());
+        assertThat(((CountedEntity) table.getByIndex(4, indexId, 3, TestEntity.of(0, 30, 0))).count, is(1112L));
+        table.commit(4, 4);
+        table.closeTransaction(4);
+        entity = (CountedEntity) table.getByIndex(0, 1, 4, TestEntity.of(1, 0, 0));
+        assertThat(entity.key, is(30L));
+        assertThat(entity.count, is(1112L));
+        assertThat(table.getByIndex(0, indexId, 4, TestEntity.of(0, 30, 0)).getId(), is(1L));
+
+        // an update after a delta conflicts like any other update
+        table.setWriteConflictDetection(5, 4, Config.WriteConflictDetection.AT_COMMIT);
+        table.put(5, List.of(new EntityDelta<CountedEntity>(1).add(getCount, setCount, 1)));
+        table.put(5, List.of(KeyUpdate.of(1, 40)));
+        table.put(6, List.of(KeyUpdate.of(1, 50)));
+        table.commit(6, 5);
+        table.closeTransaction(6);
+        assertThrows(TransactionConflictException.class, () -> table.commit(5, 6));
+        table.closeTransaction(5);
+
+        // a removal after an update and a delta hides the updated key
+        table.put(7, List.of(KeyUpdate.of(1, 60)));
+        table.put(7, List.of(new EntityDelta<CountedEntity>(1).add(getCount, setCount, 1)));
+        table.remove(7, 6, List.of(1L));
+        assertThat(table.getByIndex(7, indexId, 6, TestEntity.of(0, 60, 0)), nullValue());
+        assertThat(table.queryByIndex(7, indexId, 6, null, false, null, false).count(), is(0L));
+        table.closeTransaction(7);
+    }
+
+    @Test
+    public void testDeltaOfMissingEntity() {
+        var table = new EntityTable("test");
+        table.put(1, List.of(TestEntity.of(1, 10, 0)));
+        table.commit(1, 1);
+        table.closeTransaction(1);
+        ToLongFunction<TestEntity> getKey = entity -> entity.key;
+        ObjLongConsumer<TestEntity> setKey = (entity, key) -> entity.key = key;
+
+        // the commit fails as a whole, the other writes of the transaction are taken back
+        table.put(2, List.of(TestEntity.of(1, 20, 0), new EntityDelta<TestEntity>(2).increment(getKey, setKey)));
+        assertThrows(IllegalStateException.class, () -> table.commit(2, 2));
+        table.closeTransaction(2);
+        assertThat(((TestEntity) table.getByIndex(0, 1, 2, TestEntity.of(1, 0, 0))).key, is(10L));
+        assertThat(table.getByIndex(0, 1, 2, TestEntity.of(2, 0, 0)), nullValue());
+    }
+}
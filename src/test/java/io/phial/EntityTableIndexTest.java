@@ -0,0 +1,228 @@
+package io.phial;
+
+import io.phial.specs.EntityTableIndexSpec;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static io.phial.TestEntity.KEY_COMPARATOR;
+import static io.phial.TestEntity.queryKeys;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class EntityTableIndexTest {
+    @Test
+    public void testLongKeyExtractor() {
+        var comparator = new EntityComparator() {
+            @Override
+            public String getKeyString(Entity entity) {
+                return "id:" + entity.getId() + " " + KEY_COMPARATOR.getKeyString(entity);
+            }
+
+            @Override
+            public int compare(Entity entity1, Entity entity2) {
+                var c = KEY_COMPARATOR.compare(entity1, entity2);
+                return c == 0 ? Long.compare(entity1.getId(), entity2.getId()) : c;
+            }
+
+            @Override
+            public int hash(Entity entity) {
+                return KEY_COMPARATOR.hash(entity);
+            }
+        };
+        ToLongFunction<Entity> longKeyExtractor = entity -> ((TestEntity) entity).key;
+        for (var index : List.of(new EntityTableSkipListIndex(false, comparator, longKeyExtractor),
+                new EntityTableBpTreeIndex(false, comparator, longKeyExtractor))) {
+            var keys = LongStream.range(0, 10000).boxed().collect(Collectors.toList());
+            Collections.shuffle(keys);
+            for (var key : keys) {
+                // ten entities share each key
+                index.put(TestEntity.of(key + 1, -key / 10, 1), false, false);
+            }
+            assertThat(index.get(0, 1, TestEntity.of(25, -2, 0)).getId(), is(25L));
+            assertThat(index.get(0, 1, TestEntity.of(35, -2, 0)), nullValue());
+            assertThat(index.query(0, 1, TestEntity.of(0, -2, 0), true, TestEntity.of(Long.MAX_VALUE, -2, 0), true)
+                    .map(Entity::getId)
+                    .collect(Collectors.toList()),
+                    is(LongStream.rangeClosed(21, 30).boxed().collect(Collectors.toList())));
+            assertThat(queryKeys(index, 1, -1L, null).size(), is(20));
+            index.remove(TestEntity.of(25, -2, 1));
+            assertThat(index.get(0, 1, TestEntity.of(25, -2, 0)), nullValue());
+        }
+    }
+
+    @Test
+    public void testPutAll() {
+        for (var index : List.<EntityTableSortedIndex>of(new EntityTableSkipListIndex(true, KEY_COMPARATOR),
+                new EntityTableBpTreeIndex(true, KEY_COMPARATOR))) {
+            for (long key = 0; key < 10000; key += 3) {
+                index.put(TestEntity.of(key + 1, key, 1), false, false);
+            }
+            var batch = new ArrayList<Entity>();
+            for (long key = 0; key < 10000; ++key) {
+                if (key % 3 != 0) {
+                    batch.add(TestEntity.of(key + 1, key, 2));
+                }
+            }
+            index.putAll(batch);
+            var expected = LongStream.range(0, 10000).boxed().collect(Collectors.toList());
+            assertThat(queryKeys(index, 2, null, null), is(expected));
+            assertThat(queryKeys(index, 2, 5000L, 5003L), is(List.of(5000L, 5001L, 5002L)));
+            assertThat(index.get(0, 2, TestEntity.of(0, 9998, 0)).getId(), is(9999L));
+
+            // stops at the duplicated key
+            var duplicated = List.<Entity>of(TestEntity.of(10001, -1, 3),
+                    TestEntity.of(10002, 5000, 3),
+                    TestEntity.of(10003, 10000, 3));
+            assertThrows(DuplicatedKeyException.class, () -> index.putAll(duplicated));
+            assertThat(index.get(0, 3, TestEntity.of(0, -1, 0)).getId(), is(10001L));
+            assertThat(index.get(0, 3, TestEntity.of(0, 10000, 0)), nullValue());
+        }
+    }
+
+    @Test
+    public void testIndexStatistics() {
+        for (var index : List.<EntityTableIndex>of(new EntityTableSkipListIndex(true, KEY_COMPARATOR),
+                new EntityTableBpTreeIndex(true, KEY_COMPARATOR),
+                new EntityTableHashIndex(true, KEY_COMPARATOR))) {
+            assertThat(index.getStatistics().getKeyCount(), is(0L));
+            var entities = new ArrayList<TestEntity>();
+            for (long key = 0; key < 10000; ++key) {
+                var entity = TestEntity.of(key + 1, key, 1);
+                entities.add(entity);
+                index.put(entity, false, false);
+            }
+            // 1000 entities get a new version with the same key and 500 are moved to other keys
+            for (int i = 0; i < 1500; ++i) {
+                var entity = entities.get(i);
+                var newEntity = TestEntity.of(entity.getId(), i < 1000 ? entity.key : entity.key + 10000, 2);
+                entity.setNextRevisionEntity(newEntity);
+                index.put(newEntity, false, false);
+            }
+            index.garbageCollection(1);
+            var statistics = index.getStatistics();
+            assertThat(statistics.getKeyCount(), is(10500L));
+            assertThat(statistics.getVersionCount(), is(11500L));
+            assertThat(statistics.getTombstoneCount(), is(500L));
+            assertThat(Math.abs(statistics.getDistinctKeyCount() - 10500) < 500, is(true));
+            var histogram = statistics.getHistogram();
+            if (index instanceof EntityTableSortedIndex) {
+                assertThat(histogram.size() > 1, is(true));
+                for (int i = 1; i < histogram.size(); ++i) {
+                    assertThat(KEY_COMPARATOR.compare(histogram.get(i - 1), histogram.get(i)) < 0, is(true));
+                }
+            } else {
+                assertThat(histogram.isEmpty(), is(true));
+            }
+
+            index.garbageCollection(2);
+            statistics = index.getStatistics();
+            assertThat(statistics.getKeyCount(), is(10000L));
+            assertThat(statistics.getAverageChainLength(), is(1.0));
+            assertThat(statistics.getTombstoneRatio(), is(0.0));
+        }
+    }
+
+    @Test
+    public void testDuplicatedKey() {
+        for (var index : List.of(new EntityTableSkipListIndex(true, KEY_COMPARATOR),
+                new EntityTableBpTreeIndex(true, KEY_COMPARATOR),
+                new EntityTableHashIndex(true, KEY_COMPARATOR),
+                new EntityTablePatchIndex(true, KEY_COMPARATOR, true))) {
+            // entity 1 owns key 10 until it moves at revision 3. the old condition only looked at the revision of
+            // the next version, and accepted entity 2 at revision 2 because that version is newer
+            var entity1 = TestEntity.of(1, 10, 1);
+            index.put(entity1, false, false);
+            entity1.setNextRevisionEntity(TestEntity.of(1, 20, 3));
+            assertThrows(DuplicatedKeyException.class, () -> index.put(TestEntity.of(2, 10, 2), false, false));
+
+            // entity 3 is removed at revision 4, and its key is free from then on
+            var entity3 = TestEntity.of(3, 30, 1);
+            index.put(entity3, false, false);
+            var nullEntity = new NullEntity();
+            nullEntity.setId(3);
+            nullEntity.setRevision(4);
+            entity3.setNextRevisionEntity(nullEntity);
+            var entity4 = TestEntity.of(4, 30, 5);
+            index.put(entity4, false, false);
+            assertThat(index.get(0, 5, entity4), is(entity4));
+        }
+    }
+
+    @Test
+    public void testUniqueKeyMoved() {
+        for (var index : List.of(new EntityTableSkipListIndex(true, KEY_COMPARATOR),
+                new EntityTableBpTreeIndex(true, KEY_COMPARATOR),
+                new EntityTableHashIndex(true, KEY_COMPARATOR))) {
+            var entity1 = TestEntity.of(1, 10, 1);
+            index.put(entity1, false, false);
+            assertThrows(DuplicatedKeyException.class, () -> index.put(TestEntity.of(2, 10, 2), false, false));
+
+            // entity 1 moves to another key, and entity 2 takes its key in the same revision
+            var entity2 = TestEntity.of(1, 11, 3);
+            entity1.setNextRevisionEntity(entity2);
+            index.put(entity2, false, false);
+            var entity3 = TestEntity.of(2, 10, 3);
+            index.put(entity3, false, false);
+            assertThat(index.get(0, 2, entity1), is(entity1));
+            assertThat(index.get(0, 3, entity1), is(entity3));
+            assertThat(index.get(0, 3, entity2), is(entity2));
+        }
+    }
+
+    @Test
+    public void testUnchangedKeyLinked() {
+        for (var index : List.of(new EntityTableSkipListIndex(true, KEY_COMPARATOR),
+                new EntityTableBpTreeIndex(true, KEY_COMPARATOR),
+                new EntityTableHashIndex(true, KEY_COMPARATOR))) {
+            var entity1 = TestEntity.of(1, 10, 1);
+            index.put(entity1, false, false);
+            // the key is not changed, the new revision is only linked
+            var entity2 = TestEntity.of(1, 10, 2);
+            entity1.setNextRevisionEntity(entity2);
+            assertThat(index.get(0, 1, entity1), is(entity1));
+            assertThat(index.get(0, 2, entity1), is(entity2));
+            assertThrows(DuplicatedKeyException.class, () -> index.put(TestEntity.of(2, 10, 3), false, false));
+
+            // moves to another key and back
+            var entity3 = TestEntity.of(1, 11, 3);
+            entity2.setNextRevisionEntity(entity3);
+            index.put(entity3, false, false);
+            var entity4 = TestEntity.of(1, 10, 4);
+            entity3.setNextRevisionEntity(entity4);
+            index.put(entity4, false, false);
+            assertThat(index.get(0, 3, entity1), nullValue());
+            assertThat(index.get(0, 4, entity1), is(entity4));
+            if (index instanceof EntityTableSortedIndex) {
+                assertThat(queryKeys((EntityTableSortedIndex) index, 4, null, null), is(List.of(10L)));
+            }
+
+            index.garbageCollection(2);
+            assertThat(index.get(0, 2, entity1), is(entity2));
+            index.garbageCollection(4);
+            assertThat(index.get(0, 4, entity1), is(entity4));
+            assertThat(index.get(0, 4, entity3), nullValue());
+        }
+
+        var table = new EntityTable("test");
+        int indexId = table.createIndex(KEY_COMPARATOR, true, EntityTableIndexSpec.Type.SKIP_LIST);
+        for (long revision = 1; revision <= 5; ++revision) {
+            table.put(revision, List.of(TestEntity.of(1, 10, 0)));
+            table.commit(revision, revision);
+            table.closeTransaction(revision);
+        }
+        var key = TestEntity.of(0, 10, 0);
+        for (long revision = 1; revision <= 5; ++revision) {
+            assertThat(((AbstractEntity) table.getByIndex(0, indexId, revision, key)).getRevision(), is(revision));
+        }
+        table.garbageCollection(1);
+        assertThat(table.getIndexStatistics(indexId).getVersionCount(), is(1L));
+    }
+}
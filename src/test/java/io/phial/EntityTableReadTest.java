@@ -0,0 +1,168 @@
+package io.phial;
+
+import io.phial.specs.EntityTableIndexSpec;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static io.phial.TestEntity.KEY_COMPARATOR;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class EntityTableReadTest {
+    @Test
+    public void testCountedRange() {
+        var table = new EntityTable("test");
+        int indexId = table.createIndex(KEY_COMPARATOR, false, EntityTableIndexSpec.Type.BP_TREE);
+        var entities = new ArrayList<EntityUpdate>();
+        for (long id = 1; id <= 100; ++id) {
+            entities.add(TestEntity.of(id, id * 10, 0));
+        }
+        table.put(1, entities);
+        table.commit(1, 1);
+        table.closeTransaction(1);
+
+        // transactions count keys in [100, 300) at snapshot 1, and modify an entity in the range themselves
+        for (long transactionId = 2; transactionId <= 3; ++transactionId) {
+            var from = TestEntity.of(0, 100, 0);
+            var to = TestEntity.of(0, 300, 0);
+            var count = table.countByIndex(0, indexId, 1, from, true, to, false);
+            table.setReads(transactionId, 1, List.of(new EntityTableRead(indexId, from, true, to, false, count)));
+            table.put(transactionId, List.of(TestEntity.of(15, 155, 0)));
+        }
+        // a commit out of the range keeps the count
+        table.put(5, List.of(TestEntity.of(50, 505, 0)));
+        table.commit(5, 5);
+        table.closeTransaction(5);
+        table.commit(2, 6);
+        table.closeTransaction(2);
+        // the entity is updated in the range after the snapshot
+        assertThrows(TransactionConflictException.class, () -> table.commit(3, 7));
+        table.rollback(3);
+
+        // an entity moved out of the range changes the count
+        table.setReads(8, 6, List.of(new EntityTableRead(indexId, TestEntity.of(0, 400, 0), true, null, false,
+                table.countByIndex(0, indexId, 6, TestEntity.of(0, 400, 0), true, null, false))));
+        table.put(8, List.of(TestEntity.of(1, 1, 0)));
+        table.put(9, List.of(TestEntity.of(40, 5, 0)));
+        table.commit(9, 8);
+        table.closeTransaction(9);
+        assertThrows(TransactionConflictException.class, () -> table.commit(8, 9));
+        table.rollback(8);
+    }
+
+    @Test
+    public void testWriteSkew() {
+        var table = newTable();
+        // both transactions read entities 1 and 2, and each one writes one of them
+        for (long transactionId = 2; transactionId <= 3; ++transactionId) {
+            var reads = new ArrayList<EntityTableRead>();
+            for (long id = 1; id <= 2; ++id) {
+                var key = TestEntity.of(id, 0, 0);
+                reads.add(new EntityTableRead(1, key, table.getByIndex(transactionId, 1, 1, key)));
+            }
+            table.setReads(transactionId, 1, reads);
+            table.put(transactionId, List.of(TestEntity.of(transactionId - 1, 0, 0)));
+        }
+        assertThat(table.validateReads(2, 1), is(true));
+        table.commit(2, 2);
+        table.closeTransaction(2);
+        assertThat(table.validateReads(3, 2), is(false));
+        table.rollback(3);
+    }
+
+    @Test
+    public void testUnchangedSnapshot() {
+        var table = newTable();
+        // a wrong read is not validated while nothing is committed to the table after the snapshot
+        var key = TestEntity.of(1, 0, 0);
+        table.setReads(2, 1, List.of(new EntityTableRead(1, key, TestEntity.of(2, 20, 1))));
+        assertThat(table.validateReads(2, 1), is(true));
+        table.put(3, List.of(TestEntity.of(5, 50, 0)));
+        table.commit(3, 2);
+        table.closeTransaction(3);
+        assertThat(table.validateReads(2, 2), is(false));
+    }
+
+    @Test
+    public void testReadOnlyCommit() {
+        var table = newTable();
+        var key = TestEntity.of(1, 0, 0);
+        table.setReads(2, 1, List.of(new EntityTableRead(1, key, table.getByIndex(2, 1, 1, key))));
+        table.commit(2, 2);
+        table.closeTransaction(2);
+        // nothing is written, so reads of the snapshot are still skipped by validation
+        assertThat(table.getLastCommittedRevision(), is(1L));
+        table.setReads(3, 1, List.of(new EntityTableRead(1, key, TestEntity.of(2, 20, 1))));
+        assertThat(table.validateReads(3, 2), is(true));
+    }
+
+    @Test
+    public void testRangeRead() {
+        var table = newTable();
+        int indexId = table.createIndex(KEY_COMPARATOR, true, EntityTableIndexSpec.Type.SKIP_LIST);
+        // an exhausted scan of [10, 30), and a scan of [10, 100) stopped after two entities
+        var read1 = new EntityTableRead(indexId, TestEntity.of(0, 10, 0), true, TestEntity.of(0, 30, 0), false, false);
+        assertThat(read1.record(table.queryByIndex(
+                2, indexId, 1, TestEntity.of(0, 10, 0), true, TestEntity.of(0, 30, 0), false)).count(), is(2L));
+        var read2 = new EntityTableRead(indexId, TestEntity.of(0, 10, 0), true, TestEntity.of(0, 100, 0), false, false);
+        assertThat(read2.record(table.queryByIndex(
+                2, indexId, 1, TestEntity.of(0, 10, 0), true, TestEntity.of(0, 100, 0), false)).limit(2).count(),
+                is(2L));
+        table.setReads(2, 1, List.of(read1, read2));
+
+        // entities out of the ranges read are modified
+        table.put(3, List.of(TestEntity.of(3, 35, 0), TestEntity.of(4, 5, 0)));
+        table.commit(3, 2);
+        table.closeTransaction(3);
+        assertThat(table.validateReads(2, 2), is(true));
+        // a phantom is inserted into the range
+        table.put(4, List.of(TestEntity.of(5, 25, 0)));
+        table.commit(4, 3);
+        table.closeTransaction(4);
+        assertThat(table.validateReads(2, 3), is(false));
+    }
+
+    @Test
+    public void testKeyRead() {
+        var table = newTable();
+        int indexId = table.createIndex(KEY_COMPARATOR, false, EntityTableIndexSpec.Type.HASH);
+        table.put(2, List.of(TestEntity.of(5, 20, 0)));
+        table.commit(2, 2);
+        table.closeTransaction(2);
+
+        // a key of a hash index is validated as a whole, even if only a part of it is read
+        var key = TestEntity.of(0, 20, 0);
+        for (long transactionId = 3; transactionId <= 4; ++transactionId) {
+            var read = new EntityTableRead(indexId, key, true, key, true, false);
+            assertThat(read.record(table.queryByIndex(transactionId, indexId, 2, key, true, key, true)).limit(1)
+                    .count(), is(1L));
+            table.setReads(transactionId, 2, List.of(read));
+        }
+        // another key is modified
+        table.put(5, List.of(TestEntity.of(3, 35, 0)));
+        table.commit(5, 3);
+        table.closeTransaction(5);
+        assertThat(table.validateReads(3, 3), is(true));
+        // an entity of the key is removed
+        table.remove(6, 3, List.of(5L));
+        table.commit(6, 4);
+        table.closeTransaction(6);
+        assertThat(table.validateReads(4, 4), is(false));
+    }
+
+    // entities 1 to 4 with keys 10 to 40 at revision 1
+    private static EntityTable newTable() {
+        var table = new EntityTable("test");
+        var entities = new ArrayList<EntityUpdate>();
+        for (long id = 1; id <= 4; ++id) {
+            entities.add(TestEntity.of(id, id * 10, 0));
+        }
+        table.put(1, entities);
+        table.commit(1, 1);
+        table.closeTransaction(1);
+        return table;
+    }
+}
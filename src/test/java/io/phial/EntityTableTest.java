@@ -0,0 +1,399 @@
+package io.phial;
+
+import io.phial.specs.EntityTableIndexSpec;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+
+import static io.phial.TestEntity.KEY_COMPARATOR;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class EntityTableTest {
+    @Test
+    public void testOnlineIndexBuild() throws InterruptedException {
+        var table = new EntityTable("test");
+        var revision = new AtomicLong();
+        Consumer<List<EntityUpdate>> commit = entities -> {
+            var transactionId = revision.incrementAndGet();
+            table.put(transactionId, entities);
+            table.commit(transactionId, transactionId);
+            table.closeTransaction(transactionId);
+        };
+        for (long id = 1; id <= 1000; ++id) {
+            commit.accept(List.of(TestEntity.of(id, id * 2, 0)));
+        }
+        var writer = new Thread(() -> {
+            for (long i = 0; i < 3000; ++i) {
+                commit.accept(List.of(TestEntity.of(i % 1000 + 1, i * 7 % 500, 0)));
+            }
+        });
+        writer.start();
+        int indexId = table.createIndex(KEY_COMPARATOR, false, EntityTableIndexSpec.Type.SKIP_LIST);
+        writer.join();
+        var expected = table.queryByIndex(0, 1, revision.get(), null, false, null, false)
+                .map(entity -> ((TestEntity) entity).key)
+                .sorted()
+                .collect(Collectors.toList());
+        var keys = table.queryByIndex(0, indexId, revision.get(), null, false, null, false)
+                .map(entity -> ((TestEntity) entity).key)
+                .collect(Collectors.toList());
+        assertThat(keys, is(expected));
+        // the index misses versions older than the snapshot it is built from
+        assertThrows(IllegalStateException.class,
+                () -> table.queryByIndex(0, indexId, 1, null, false, null, false));
+
+        table.dropIndex(indexId);
+        assertThrows(IllegalArgumentException.class,
+                () -> table.queryByIndex(0, indexId, revision.get(), null, false, null, false));
+        commit.accept(List.of(TestEntity.of(1, 1, 0)));
+        assertThat(((TestEntity) table.getByIndex(0, 1, revision.get(), TestEntity.of(1, 0, 0))).key, is(1L));
+    }
+
+    @Test
+    public void testDropIndexBeingBuilt() throws InterruptedException {
+        var table = new EntityTable("test");
+        var entities = new ArrayList<EntityUpdate>();
+        for (long id = 1; id <= 100; ++id) {
+            entities.add(TestEntity.of(id, id, 0));
+        }
+        table.put(1, entities);
+        table.commit(1, 1);
+        table.closeTransaction(1);
+        // the build waits in its first comparison until the index is dropped
+        var dropped = new CountDownLatch(1);
+        var comparator = new EntityComparator() {
+            @Override
+            public String getKeyString(Entity entity) {
+                return KEY_COMPARATOR.getKeyString(entity);
+            }
+
+            @Override
+            public int compare(Entity entity1, Entity entity2) {
+                try {
+                    dropped.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return KEY_COMPARATOR.compare(entity1, entity2);
+            }
+
+            @Override
+            public int hash(Entity entity) {
+                return KEY_COMPARATOR.hash(entity);
+            }
+        };
+        var exception = new AtomicReference<RuntimeException>();
+        var builder = new Thread(() -> {
+            try {
+                table.createIndex(comparator, true, EntityTableIndexSpec.Type.SKIP_LIST);
+            } catch (RuntimeException e) {
+                exception.set(e);
+            }
+        });
+        builder.start();
+        while (!isBeingBuilt(table, 2)) {
+            Thread.onSpinWait();
+        }
+        table.dropIndex(2);
+        dropped.countDown();
+        builder.join();
+        assertThat(exception.get() instanceof IllegalStateException, is(true));
+        assertThrows(IllegalArgumentException.class,
+                () -> table.queryByIndex(0, 2, 1, null, false, null, false));
+        assertThat(table.createIndex(KEY_COMPARATOR, true, EntityTableIndexSpec.Type.SKIP_LIST), is(3));
+        assertThat(table.queryByIndex(0, 3, 1, null, false, null, false).count(), is(100L));
+    }
+
+    private static boolean isBeingBuilt(EntityTable table, int indexId) {
+        try {
+            table.queryByIndex(0, indexId, 1, null, false, null, false);
+            return false;
+        } catch (IllegalArgumentException e) {
+            return false;
+        } catch (IllegalStateException e) {
+            return true;
+        }
+    }
+
+    @Test
+    public void testParallelIndexUpdate() {
+        var indexUpdatePool = new ForkJoinPool(2);
+        var table = new EntityTable("test", null, indexUpdatePool);
+        int indexId1 = table.createIndex(KEY_COMPARATOR, true, EntityTableIndexSpec.Type.SKIP_LIST);
+        int indexId2 = table.createIndex(KEY_COMPARATOR, true, EntityTableIndexSpec.Type.HASH);
+        var entities = new ArrayList<EntityUpdate>();
+        for (long id = 1; id <= 100; ++id) {
+            entities.add(TestEntity.of(id, id, 0));
+        }
+        table.put(1, entities);
+        table.commit(1, 1);
+        table.closeTransaction(1);
+
+        entities.clear();
+        for (long id = 101; id <= 200; ++id) {
+            entities.add(TestEntity.of(id, id, 0));
+        }
+        table.put(2, entities);
+        // a concurrent transaction takes key 150 and commits first
+        table.put(3, List.of(TestEntity.of(300, 150, 0)));
+        table.commit(3, 2);
+        table.closeTransaction(3);
+        var exception = assertThrows(DuplicatedKeyException.class, () -> table.commit(2, 3));
+        assertThat(exception.getMessage(), is("test key:150"));
+        table.rollback(2);
+        assertThat(table.getByIndex(0, 1, 3, TestEntity.of(101, 0, 0)), nullValue());
+        for (var indexId : List.of(indexId1, indexId2)) {
+            assertThat(table.getByIndex(0, indexId, 3, TestEntity.of(0, 101, 0)), nullValue());
+            assertThat(table.getByIndex(0, indexId, 3, TestEntity.of(0, 150, 0)).getId(), is(300L));
+        }
+        assertThat(table.queryByIndex(0, indexId1, 3, null, false, null, false).count(), is(101L));
+
+        table.put(4, List.of(TestEntity.of(300, 300, 0)));
+        table.commit(4, 4);
+        table.closeTransaction(4);
+        entities.clear();
+        for (long id = 101; id <= 200; ++id) {
+            entities.add(TestEntity.of(id, id, 0));
+        }
+        table.put(5, entities);
+        table.commit(5, 5);
+        table.closeTransaction(5);
+        for (var indexId : List.of(indexId1, indexId2)) {
+            assertThat(table.getByIndex(0, indexId, 5, TestEntity.of(0, 150, 0)).getId(), is(150L));
+        }
+        assertThat(table.queryByIndex(0, indexId1, 5, null, false, null, false).count(), is(201L));
+        indexUpdatePool.shutdown();
+    }
+
+    @Test
+    public void testGroupCommit() {
+        var table = new EntityTable("test");
+        int indexId1 = table.createIndex(KEY_COMPARATOR, true, EntityTableIndexSpec.Type.SKIP_LIST);
+        int indexId2 = table.createIndex(KEY_COMPARATOR, true, EntityTableIndexSpec.Type.HASH);
+        table.put(1, List.of(TestEntity.of(1, 10, 0), TestEntity.of(2, 20, 0)));
+        // entity 1 moves to key 15, and entity 3 takes key 10 in a later transaction of the group
+        table.put(2, List.of(TestEntity.of(1, 15, 0)));
+        table.put(3, List.of(TestEntity.of(3, 10, 0)));
+        table.put(4, List.of(TestEntity.of(4, 30, 0)));
+        var exceptions = table.commit(new long[]{1, 2, 3, 4}, new long[]{1, 2, 3, 4});
+        for (var exception : exceptions) {
+            assertThat(exception, nullValue());
+        }
+        for (long transactionId = 1; transactionId <= 4; ++transactionId) {
+            table.closeTransaction(transactionId);
+        }
+        for (var indexId : List.of(indexId1, indexId2)) {
+            assertThat(table.getByIndex(0, indexId, 1, TestEntity.of(0, 10, 0)).getId(), is(1L));
+            assertThat(table.getByIndex(0, indexId, 4, TestEntity.of(0, 10, 0)).getId(), is(3L));
+            assertThat(table.getByIndex(0, indexId, 4, TestEntity.of(0, 15, 0)).getId(), is(1L));
+        }
+
+        // a duplicated key fails only its own transaction
+        table.put(5, List.of(TestEntity.of(5, 50, 0)));
+        table.put(6, List.of(TestEntity.of(6, 50, 0), TestEntity.of(7, 70, 0)));
+        table.put(7, List.of(TestEntity.of(8, 80, 0)));
+        exceptions = table.commit(new long[]{5, 6, 7}, new long[]{5, 6, 7});
+        assertThat(exceptions[0], nullValue());
+        assertThat(exceptions[1].getMessage(), is("test key:50"));
+        assertThat(exceptions[2], nullValue());
+        table.closeTransaction(5);
+        table.rollback(6);
+        table.closeTransaction(7);
+        for (var indexId : List.of(indexId1, indexId2)) {
+            assertThat(table.getByIndex(0, indexId, 7, TestEntity.of(0, 50, 0)).getId(), is(5L));
+            assertThat(table.getByIndex(0, indexId, 7, TestEntity.of(0, 70, 0)), nullValue());
+            assertThat(table.getByIndex(0, indexId, 7, TestEntity.of(0, 80, 0)).getId(), is(8L));
+        }
+        assertThat(table.queryByIndex(0, indexId1, 7, null, false, null, false).count(), is(6L));
+    }
+
+    @Test
+    public void testOrderStatistics() {
+        var table = new EntityTable("test");
+        int indexId1 = table.createIndex(KEY_COMPARATOR, false, EntityTableIndexSpec.Type.BP_TREE);
+        int indexId2 = table.createIndex(KEY_COMPARATOR, true, EntityTableIndexSpec.Type.SKIP_LIST);
+        var entities = new ArrayList<EntityUpdate>();
+        for (long id = 1; id <= 200; ++id) {
+            entities.add(TestEntity.of(id, id * 10, 0));
+        }
+        table.put(1, entities);
+        table.commit(1, 1);
+        table.closeTransaction(1);
+
+        // moved, removed, inserted and delta entities of the transaction are counted with the snapshot
+        for (long id = 1; id <= 200; id += 7) {
+            table.put(2, List.of(TestEntity.of(id, id * 10 + (id % 3 == 0 ? 1003 : -5), 0)));
+        }
+        table.remove(2, 1, List.of(4L, 50L, 199L));
+        table.put(2, List.of(TestEntity.of(0, 3, 0), TestEntity.of(0, 5000, 0)));
+        ToLongFunction<TestEntity> getKey = entity -> entity.key;
+        ObjLongConsumer<TestEntity> setKey = (entity, key) -> entity.key = key;
+        table.put(2, List.of(new EntityDelta<TestEntity>(100).add(getKey, setKey, 1)));
+        for (var transactionId : List.of(0L, 2L)) {
+            var keys = table.queryByIndex(transactionId, indexId1, 1, null, false, null, false)
+                    .map(entity -> ((TestEntity) entity).key)
+                    .collect(Collectors.toList());
+            for (long i = 0; i <= 20; ++i) {
+                var from = i * 250;
+                var to = from + 700;
+                var count = keys.stream().filter(key -> key >= from && key < to).count();
+                assertThat(table.countByIndex(
+                        transactionId, indexId1, 1, TestEntity.of(0, from, 0), true, TestEntity.of(0, to, 0), false),
+                        is(count));
+                assertThat(table.rankByIndex(transactionId, indexId1, 1, TestEntity.of(0, from, 0)),
+                        is(keys.stream().filter(key -> key < from).count()));
+            }
+            for (int rank = 0; rank < keys.size(); ++rank) {
+                var entity = (TestEntity) table.selectByIndex(transactionId, indexId1, 1, rank);
+                assertThat(entity.key, is(keys.get(rank)));
+            }
+            assertThat(table.selectByIndex(transactionId, indexId1, 1, keys.size()), nullValue());
+        }
+
+        // other index types do not maintain order statistics
+        for (var indexId : List.of(1, indexId2)) {
+            var e = assertThrows(IllegalArgumentException.class,
+                    () -> table.countByIndex(0, indexId, 1, null, false, null, false));
+            assertThat(e.getMessage(), containsString(indexId == 1 ? "the id index" : "a SKIP_LIST index"));
+            assertThrows(IllegalArgumentException.class, () -> table.selectByIndex(2, indexId, 1, 0));
+        }
+    }
+
+    @Test
+    public void testGroupCommitFailure() {
+        var table = new EntityTable("test");
+        int indexId = table.createIndex(KEY_COMPARATOR, true, EntityTableIndexSpec.Type.SKIP_LIST);
+        table.put(1, List.of(TestEntity.of(1, 10, 0), TestEntity.of(4, 40, 0)));
+        table.commit(1, 1);
+        table.closeTransaction(1);
+        ToLongFunction<TestEntity> getKey = entity -> entity.key;
+        ObjLongConsumer<TestEntity> setKey = (entity, key) -> entity.key = key;
+
+        // the first transaction of the group takes key 20, which is committed by another transaction after its write
+        table.put(3, List.of(TestEntity.of(1, 20, 0), TestEntity.of(4, 41, 0)));
+        table.put(2, List.of(TestEntity.of(2, 20, 0)));
+        table.commit(2, 2);
+        table.closeTransaction(2);
+        // the second one updates the same entities after it
+        table.put(4, List.of(new EntityDelta<TestEntity>(1).add(getKey, setKey, 5), TestEntity.of(4, 40, 0)));
+        table.put(5, List.of(TestEntity.of(3, 30, 0)));
+        var exceptions = table.commit(new long[]{3, 4, 5}, new long[]{3, 4, 5});
+        assertThat(exceptions[0] instanceof DuplicatedKeyException, is(true));
+        assertThat(exceptions[1], nullValue());
+        assertThat(exceptions[2], nullValue());
+        table.rollback(3);
+        table.closeTransaction(4);
+        table.closeTransaction(5);
+        // the delta applies to the version before the failed update
+        assertThat(((TestEntity) table.getByIndex(0, 1, 5, TestEntity.of(1, 0, 0))).key, is(15L));
+        assertThat(((TestEntity) table.getByIndex(0, 1, 3, TestEntity.of(1, 0, 0))).key, is(10L));
+        assertThat(table.getByIndex(0, indexId, 5, TestEntity.of(0, 15, 0)).getId(), is(1L));
+        assertThat(table.getByIndex(0, indexId, 5, TestEntity.of(0, 20, 0)).getId(), is(2L));
+        assertThat(table.getByIndex(0, indexId, 5, TestEntity.of(0, 25, 0)), nullValue());
+        assertThat(table.getByIndex(0, indexId, 5, TestEntity.of(0, 41, 0)), nullValue());
+        // the unchanged key reaches the version of the second transaction
+        var entity = (AbstractEntity) table.getByIndex(0, indexId, 5, TestEntity.of(0, 40, 0));
+        assertThat(entity.getRevision(), is(4L));
+        assertThat(table.getByIndex(0, indexId, 5, TestEntity.of(0, 30, 0)).getId(), is(3L));
+    }
+
+    @Test
+    public void testWriteConflictDetection() {
+        var table = new EntityTable("test");
+        table.createIndex(KEY_COMPARATOR, true, EntityTableIndexSpec.Type.SKIP_LIST);
+        table.put(1, List.of(TestEntity.of(1, 10, 0), TestEntity.of(2, 20, 0)));
+        table.commit(1, 1);
+        table.closeTransaction(1);
+
+        // both transactions update entity 1 from snapshot 1, the first committer wins
+        for (long transactionId = 2; transactionId <= 3; ++transactionId) {
+            table.setWriteConflictDetection(transactionId, 1, Config.WriteConflictDetection.AT_COMMIT);
+            table.put(transactionId, List.of(TestEntity.of(1, transactionId + 10, 0)));
+        }
+        table.commit(2, 2);
+        table.closeTransaction(2);
+        assertThrows(TransactionConflictException.class, () -> table.commit(3, 3));
+        table.rollback(3);
+        assertThat(((TestEntity) table.getByIndex(0, 1, 3, TestEntity.of(1, 0, 0))).key, is(12L));
+
+        // transactions of a group conflict with the ones before them
+        table.setWriteConflictDetection(4, 3, Config.WriteConflictDetection.AT_COMMIT);
+        table.put(4, List.of(TestEntity.of(2, 40, 0)));
+        table.setWriteConflictDetection(5, 3, Config.WriteConflictDetection.AT_COMMIT);
+        table.remove(5, 3, List.of(2L));
+        var exceptions = table.commit(new long[]{4, 5}, new long[]{4, 5});
+        assertThat(exceptions[0], nullValue());
+        assertThat(exceptions[1] instanceof TransactionConflictException, is(true));
+        table.closeTransaction(4);
+        table.rollback(5);
+        assertThat(((TestEntity) table.getByIndex(0, 1, 5, TestEntity.of(2, 0, 0))).key, is(40L));
+
+        // writes fail early if the conflicting commits are done already
+        table.setWriteConflictDetection(6, 3, Config.WriteConflictDetection.AT_WRITE);
+        assertThrows(TransactionConflictException.class,
+                () -> table.put(6, List.of(TestEntity.of(3, 30, 0), TestEntity.of(2, 50, 0))));
+        assertThrows(TransactionConflictException.class, () -> table.remove(6, 3, List.of(2L)));
+        table.put(6, List.of(TestEntity.of(1, 60, 0)));
+        table.commit(6, 6);
+        table.closeTransaction(6);
+        assertThat(table.getByIndex(0, 1, 6, TestEntity.of(3, 0, 0)), nullValue());
+        assertThat(((TestEntity) table.getByIndex(0, 1, 6, TestEntity.of(1, 0, 0))).key, is(60L));
+    }
+
+    @Test
+    public void testTransactionPatch() {
+        var table = new EntityTable("test");
+        int indexId1 = table.createIndex(KEY_COMPARATOR, true, EntityTableIndexSpec.Type.SKIP_LIST);
+        int indexId2 = table.createIndex(KEY_COMPARATOR, false, EntityTableIndexSpec.Type.HASH);
+        table.put(1, List.of(TestEntity.of(1, 10, 0), TestEntity.of(2, 20, 0)));
+        table.commit(1, 1);
+        table.closeTransaction(1);
+
+        // the patch holds a few entities in an array at first, and moves them to a skip list when it grows
+        for (var count : List.of(3, 40)) {
+            long transactionId = count + 1;
+            var entities = new ArrayList<EntityUpdate>();
+            for (long id = 3; id < 3 + count; ++id) {
+                entities.add(TestEntity.of(id, id * 10, 0));
+            }
+            table.put(transactionId, entities);
+            // entity 1 moves to key 15, and entity 2 is removed
+            table.put(transactionId, List.of(TestEntity.of(1, 15, 0)));
+            table.remove(transactionId, 1, List.of(2L));
+            var expected = new ArrayList<Long>(List.of(15L));
+            for (long id = 3; id < 3 + count; ++id) {
+                expected.add(id * 10);
+            }
+            var keys = table.queryByIndex(transactionId, indexId1, 1, null, false, null, false)
+                    .map(entity -> ((TestEntity) entity).key)
+                    .collect(Collectors.toList());
+            assertThat(keys, is(expected));
+            keys = table.queryByIndex(transactionId, indexId1, 1, null, false, null, false, true, 0, -1)
+                    .map(entity -> ((TestEntity) entity).key)
+                    .collect(Collectors.toList());
+            Collections.reverse(expected);
+            assertThat(keys, is(expected));
+            assertThat(table.getByIndex(transactionId, indexId1, 1, TestEntity.of(0, 10, 0)), nullValue());
+            assertThat(table.getByIndex(transactionId, indexId1, 1, TestEntity.of(0, 20, 0)), nullValue());
+            assertThat(table.getByIndex(transactionId, indexId2, 1, TestEntity.of(1, 15, 0)).getId(), is(1L));
+            assertThat(table.getByIndex(transactionId, indexId2, 1, TestEntity.of(3, 30, 0)).getId(), is(3L));
+            assertThrows(DuplicatedKeyException.class,
+                    () -> table.put(transactionId, List.of(TestEntity.of(100, 30, 0))));
+            table.rollback(transactionId);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package io.phial;
+
+import io.phial.specs.EntityTableIndexSpec;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+import static io.phial.TestEntity.KEY_COMPARATOR;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class HashIndexTest {
+    @Test
+    public void testPutAndGet() {
+        var index = new EntityTableHashIndex(true, KEY_COMPARATOR);
+        var keys = LongStream.range(0, 10000).boxed().collect(Collectors.toList());
+        Collections.shuffle(keys);
+        for (var key : keys) {
+            index.put(TestEntity.of(key + 1, key * 2, 1), false, false);
+        }
+        for (long key = 0; key < 10000; ++key) {
+            var entity = (TestEntity) index.get(0, 1, TestEntity.of(0, key * 2, 0));
+            assertThat(entity.getId(), is(key + 1));
+            assertThat(index.get(0, 1, TestEntity.of(0, key * 2 + 1, 0)), nullValue());
+            assertThat(index.get(0, 0, TestEntity.of(0, key * 2, 0)), nullValue());
+        }
+    }
+
+    @Test
+    public void testRevisions() {
+        var index = new EntityTableHashIndex(true, KEY_COMPARATOR);
+        var entity1 = TestEntity.of(1, 10, 1);
+        index.put(entity1, false, false);
+        var entity2 = TestEntity.of(1, 10, 2);
+        index.put(entity2, true, false);
+        var entity3 = TestEntity.of(2, 20, 2);
+        index.put(entity3, false, false);
+        assertThat(index.get(0, 1, entity1), is(entity1));
+        assertThat(index.get(0, 2, entity1), is(entity2));
+        assertThat(index.get(0, 1, entity3), nullValue());
+        assertThat(index.get(0, 2, entity3), is(entity3));
+
+        index.remove(entity2);
+        entity1.setNextRevisionEntity(null);
+        assertThat(index.get(0, 2, entity1), is(entity1));
+
+        var nullEntity = new NullEntity();
+        nullEntity.setId(2);
+        nullEntity.setRevision(3);
+        entity3.setNextRevisionEntity(nullEntity);
+        index.garbageCollection(3);
+        assertThat(index.get(0, 2, entity3), nullValue());
+        assertThat(index.get(0, 3, entity1), is(entity1));
+        index.put(TestEntity.of(3, 20, 4), false, false);
+        assertThat(index.get(0, 4, entity3).getId(), is(3L));
+    }
+
+    @Test
+    public void testConcurrentPut() throws InterruptedException {
+        var index = new EntityTableHashIndex(true, KEY_COMPARATOR);
+        var threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; ++i) {
+            long offset = i;
+            var thread = new Thread(() -> {
+                for (long key = offset; key < 100000; key += 4) {
+                    index.put(TestEntity.of(key + 1, key, 1), false, false);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (var thread : threads) {
+            thread.join();
+        }
+        for (long key = 0; key < 100000; ++key) {
+            assertThat(index.get(0, 1, TestEntity.of(0, key, 0)).getId(), is(key + 1));
+        }
+    }
+
+    @Test
+    public void testNonUniqueKeys() {
+        var table = new EntityTable("test");
+        int indexId = table.createIndex(KEY_COMPARATOR, false, EntityTableIndexSpec.Type.HASH);
+        var entities = new ArrayList<EntityUpdate>();
+        for (long id = 1; id <= 300; ++id) {
+            entities.add(TestEntity.of(id, id % 3, 0));
+        }
+        table.put(1, entities);
+        table.commit(1, 1);
+        table.closeTransaction(1);
+        var key = TestEntity.of(0, 1, 0);
+        Function<Stream<Entity>, List<Long>> getIds = stream -> stream.map(Entity::getId).sorted()
+                .collect(Collectors.toList());
+        var ids = LongStream.rangeClosed(1, 300).filter(id -> id % 3 == 1).boxed().collect(Collectors.toList());
+        assertThat(getIds.apply(table.queryByIndex(0, indexId, 1, key, true, key, true)), is(ids));
+
+        // the transaction sees its own entities of the key, and not the ones it moves to another key
+        table.put(2, List.of(TestEntity.of(301, 1, 0), TestEntity.of(4, 2, 0)));
+        var expected = new ArrayList<>(ids);
+        expected.remove(Long.valueOf(4));
+        expected.add(301L);
+        assertThat(getIds.apply(table.queryByIndex(2, indexId, 1, key, true, key, true)), is(expected));
+        assertThat(getIds.apply(table.queryByIndex(0, indexId, 1, key, true, key, true)), is(ids));
+        table.commit(2, 2);
+        table.closeTransaction(2);
+        assertThat(getIds.apply(table.queryByIndex(0, indexId, 2, key, true, key, true)), is(expected));
+        assertThat(table.getByIndex(0, indexId, 2, TestEntity.of(7, 1, 0)).getId(), is(7L));
+
+        // only a single key can be queried
+        assertThrows(IllegalArgumentException.class,
+                () -> table.queryByIndex(0, indexId, 2, key, true, TestEntity.of(0, 2, 0), true));
+        assertThrows(IllegalArgumentException.class, () -> table.queryByIndex(0, indexId, 2, key, true, key, false));
+    }
+}
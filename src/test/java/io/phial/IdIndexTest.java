@@ -0,0 +1,113 @@
+package io.phial;
+
+import io.phial.memory.FreedMemoryGcManager;
+import io.phial.memory.MemoryArena;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static io.phial.TestEntity.ID_COMPARATOR;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class IdIndexTest {
+    @Test
+    public void testPutAndQuery() {
+        var index = new EntityTableIdIndex(ID_COMPARATOR);
+        for (long id = 1; id <= 5000; ++id) {
+            index.put(TestEntity.of(id, id, 1), false, false);
+        }
+        // sparse ids grow the tree in height
+        index.put(TestEntity.of(1L << 40, 0, 1), false, false);
+        for (long id = 1; id <= 5000; ++id) {
+            assertThat(index.get(0, 1, TestEntity.of(id, 0, 0)).getId(), is(id));
+        }
+        assertThat(index.get(0, 1, TestEntity.of(5001, 0, 0)), nullValue());
+        assertThat(index.get(0, 1, TestEntity.of(1L << 40, 0, 0)).getId(), is(1L << 40));
+        var ids = index.query(0, 1, TestEntity.of(4990, 0, 0), false, null, false)
+                .map(Entity::getId)
+                .collect(Collectors.toList());
+        var expected = LongStream.rangeClosed(4991, 5000).boxed().collect(Collectors.toList());
+        expected.add(1L << 40);
+        assertThat(ids, is(expected));
+        assertThat(index.query(0, 1, TestEntity.of(10, 0, 0), true, TestEntity.of(13, 0, 0), false)
+                .map(Entity::getId)
+                .collect(Collectors.toList()), is(List.of(10L, 11L, 12L)));
+        assertThat(index.queryDescending(0, 1, TestEntity.of(4998, 0, 0), false, null, false)
+                .map(Entity::getId)
+                .collect(Collectors.toList()), is(List.of(1L << 40, 5000L, 4999L)));
+        assertThat(index.queryDescending(0, 1, null, false, TestEntity.of(3, 0, 0), true)
+                .map(Entity::getId)
+                .collect(Collectors.toList()), is(List.of(3L, 2L, 1L)));
+
+        var entity1 = (TestEntity) index.get(0, 1, TestEntity.of(1, 0, 0));
+        var entity2 = TestEntity.of(1, 100, 2);
+        index.put(entity2, true, false);
+        assertThat(index.get(0, 1, entity1), is(entity1));
+        assertThat(index.get(0, 2, entity1), is(entity2));
+        index.garbageCollection(2);
+        assertThat(index.get(0, 1, entity1), nullValue());
+        index.remove(entity2);
+        assertThat(index.get(0, 2, entity1), nullValue());
+    }
+
+    @Test
+    public void testOffHeap() {
+        var config = Config.newBuilder().build();
+        var arena = new MemoryArena(
+                config.getMemoryThreadCacheFlushThreshold(),
+                new TreeMap<>(config.getMemoryThreadCacheWatermark()),
+                config.getMemoryThreadCacheWatermarkDecayRate(),
+                new TreeMap<>(config.getMemoryRunFreeListWatermark()));
+        var freedMemoryGcManager = new FreedMemoryGcManager();
+        var storage = new OffHeapEntityStorage(new EntitySerializer() {
+            @Override
+            public int getSerializedSize(Entity entity) {
+                return Long.BYTES;
+            }
+
+            @Override
+            public void serialize(Entity entity, long address) {
+                Phial.UNSAFE.putLong(address, ((TestEntity) entity).key);
+            }
+
+            @Override
+            public Entity deserialize(long address, int size) {
+                var entity = new TestEntity();
+                entity.key = Phial.UNSAFE.getLong(address);
+                return entity;
+            }
+        }, arena, freedMemoryGcManager);
+        try {
+            var index = new EntityTableIdIndex(ID_COMPARATOR, storage);
+            for (long id = 1; id <= 1000; ++id) {
+                var entity = index.put(TestEntity.of(id, id * 10, 1), false, false);
+                assertThat(((TestEntity) entity).key, is(id * 10));
+            }
+            var entity1 = index.get(0, 1, TestEntity.of(1, 0, 0));
+            assertThat(entity1 instanceof OffHeapEntity, is(true));
+            assertThat(((TestEntity) storage.load(entity1)).key, is(10L));
+            assertThat(storage.load(entity1).getId(), is(1L));
+
+            index.put(TestEntity.of(1, 20, 2), true, false);
+            // the versions are linked off-heap, no heap copy of the merged entity is kept
+            assertThat(((AbstractEntity) entity1).getNextRevisionEntity() instanceof OffHeapEntity, is(true));
+            assertThat(((TestEntity) storage.load(index.get(0, 2, entity1))).key, is(20L));
+            index.garbageCollection(2);
+            freedMemoryGcManager.runOnce();
+            freedMemoryGcManager.runOnce();
+            assertThat(((OffHeapEntity) entity1).getAddress(), is(0L));
+            assertThat(storage.load(entity1), nullValue());
+            assertThat(((TestEntity) storage.load(index.get(0, 2, entity1))).key, is(20L));
+            assertThat(index.query(0, 2, null, false, null, false)
+                    .map(entity -> ((TestEntity) storage.load(entity)).key)
+                    .reduce(0L, Long::sum), is(20L + LongStream.rangeClosed(2, 1000).map(id -> id * 10).sum()));
+        } finally {
+            arena.close();
+        }
+    }
+}
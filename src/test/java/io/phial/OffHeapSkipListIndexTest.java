@@ -0,0 +1,82 @@
+package io.phial;
+
+import io.phial.memory.FreedMemoryGcManager;
+import io.phial.memory.MemoryArena;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static io.phial.TestEntity.KEY_COMPARATOR;
+import static io.phial.TestEntity.queryKeys;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class OffHeapSkipListIndexTest {
+    @Test
+    public void testPutAndQuery() throws InterruptedException {
+        var config = Config.newBuilder().build();
+        var arena = new MemoryArena(
+                config.getMemoryThreadCacheFlushThreshold(),
+                new TreeMap<>(config.getMemoryThreadCacheWatermark()),
+                config.getMemoryThreadCacheWatermarkDecayRate(),
+                new TreeMap<>(config.getMemoryRunFreeListWatermark()));
+        var freedMemoryGcManager = new FreedMemoryGcManager();
+        try {
+            var index = new EntityTableOffHeapSkipListIndex(true, KEY_COMPARATOR, arena, freedMemoryGcManager);
+            var threads = new ArrayList<Thread>();
+            for (int i = 0; i < 4; ++i) {
+                long offset = i;
+                var thread = new Thread(() -> {
+                    for (long key = offset; key < 10000; key += 4) {
+                        index.put(TestEntity.of(key + 1, key * 2, 1), false, false);
+                    }
+                });
+                threads.add(thread);
+                thread.start();
+            }
+            for (var thread : threads) {
+                thread.join();
+            }
+            for (long key = 0; key < 10000; ++key) {
+                assertThat(index.get(0, 1, TestEntity.of(0, key * 2, 0)).getId(), is(key + 1));
+                assertThat(index.get(0, 1, TestEntity.of(0, key * 2 + 1, 0)), nullValue());
+            }
+            assertThat(queryKeys(index, 1, 100L, 110L), is(List.of(100L, 102L, 104L, 106L, 108L)));
+            assertThat(queryKeys(index, 1, 19995L, null), is(List.of(19996L, 19998L)));
+            assertThat(queryKeys(index, 1, null, null).size(), is(10000));
+            assertThat(index.queryDescending(0, 1, TestEntity.of(0, 19990, 0), false, null, false)
+                    .map(entity -> ((TestEntity) entity).key)
+                    .collect(Collectors.toList()), is(List.of(19998L, 19996L, 19994L, 19992L)));
+            assertThat(index.queryDescending(0, 1, null, false, TestEntity.of(0, 4, 0), true)
+                    .map(entity -> ((TestEntity) entity).key)
+                    .collect(Collectors.toList()), is(List.of(4L, 2L, 0L)));
+            assertThat(index.queryDescending(0, 1, null, false, null, false).count(), is(10000L));
+
+            // remove every other key and let the removed nodes be freed
+            for (long key = 0; key < 10000; key += 2) {
+                var entity = (TestEntity) index.get(0, 1, TestEntity.of(0, key * 2, 0));
+                var nullEntity = new NullEntity();
+                nullEntity.setId(entity.getId());
+                nullEntity.setRevision(2);
+                entity.setNextRevisionEntity(nullEntity);
+            }
+            index.garbageCollection(2);
+            freedMemoryGcManager.runOnce();
+            freedMemoryGcManager.runOnce();
+            assertThat(queryKeys(index, 2, null, null),
+                    is(LongStream.range(0, 10000).filter(key -> key % 2 == 1).map(key -> key * 2)
+                            .boxed().collect(Collectors.toList())));
+            assertThat(index.get(0, 2, TestEntity.of(0, 0, 0)), nullValue());
+            index.put(TestEntity.of(10001, 0, 3), false, false);
+            assertThat(index.get(0, 3, TestEntity.of(0, 0, 0)).getId(), is(10001L));
+            assertThat(queryKeys(index, 3, null, 5L), is(List.of(0L, 2L)));
+        } finally {
+            arena.close();
+        }
+    }
+}
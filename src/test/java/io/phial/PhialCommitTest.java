@@ -0,0 +1,132 @@
+package io.phial;
+
+import io.phial.specs.EntityTableIndexSpec;
+import io.phial.specs.EntityTableSpec;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class PhialCommitTest {
+    static class OtherEntity extends TestEntity {
+    }
+
+    // records the threads committing each revision
+    private static class RecordingEntityTable extends EntityTable {
+        final Map<Long, Thread> committingThreads = new ConcurrentHashMap<>();
+
+        RecordingEntityTable() {
+            super("test");
+        }
+
+        @Override
+        public RuntimeException[] commit(long[] transactionIds, long[] revisions) {
+            for (var revision : revisions) {
+                this.committingThreads.put(revision, Thread.currentThread());
+            }
+            return super.commit(transactionIds, revisions);
+        }
+    }
+
+    @Test
+    public void testUntouchedTables() throws InterruptedException {
+        var phial = new Phial();
+        phial.createTable(new EntityTableSpec(TestEntity.class));
+        phial.createTable(new EntityTableSpec(OtherEntity.class));
+        var trx = phial.newTransaction();
+        trx.createOrUpdateEntities(TestEntity.class, List.of(TestEntity.of(0, 10, 0)));
+        trx.commit();
+        // only the table modified by the transaction is committed
+        assertThat(phial.getTable(TestEntity.class).getLastCommittedRevision(), is(1L));
+        assertThat(phial.getTable(OtherEntity.class).getLastCommittedRevision(), is(0L));
+        phial.shutdown();
+    }
+
+    @Test
+    public void testInlineCommit() throws InterruptedException {
+        var phial = new Phial();
+        var table = new RecordingEntityTable();
+        table.put(1, List.of(TestEntity.of(1, 10, 0)));
+        phial.commit(1, List.of(table));
+        table.closeTransaction(1);
+        // a transaction of a single table with no queued commits commits in the calling thread
+        assertThat(table.committingThreads.get(1L), is(Thread.currentThread()));
+
+        // concurrent commits of the table are queued or run inline, and all of them are committed
+        var threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; ++i) {
+            long threadId = i;
+            var thread = new Thread(() -> {
+                for (long j = 0; j < 200; ++j) {
+                    var transactionId = 2 + threadId * 200 + j;
+                    table.put(transactionId, List.of(TestEntity.of(transactionId, transactionId * 10, 0)));
+                    try {
+                        phial.commit(transactionId, List.of(table));
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    table.closeTransaction(transactionId);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (var thread : threads) {
+            thread.join();
+        }
+        assertThat(table.committingThreads.size(), is(801));
+        assertThat(table.getLastCommittedRevision(), is(801L));
+        assertThat(table.queryByIndex(0, 1, 801, null, false, null, false).count(), is(801L));
+        phial.shutdown();
+    }
+
+    @Test
+    public void testPartialCommit() throws InterruptedException {
+        var phial = new Phial();
+        var table1 = new EntityTable("test1");
+        int indexId = table1.createIndex(new EntityTableIndexSpec(true, TestEntity.KEY_COMPARATOR,
+                EntityTableIndexSpec.Type.BP_TREE, null, entity -> ((TestEntity) entity).key), null, null);
+        var table2 = new EntityTable("test2");
+        var entities = new ArrayList<EntityUpdate>();
+        for (long id = 1; id <= 100; ++id) {
+            entities.add(TestEntity.of(id, id * 10, 0));
+        }
+        table1.put(1, entities);
+        table2.put(1, List.of(TestEntity.of(1, 10, 0)));
+        phial.commit(1, List.of(table1, table2));
+        table1.closeTransaction(1);
+        table2.closeTransaction(1);
+
+        // the read of the second table is invalid, so it fails, and the commit of the first one is rolled back
+        table1.put(2, List.of(TestEntity.of(5, 5000, 0), TestEntity.of(101, 1010, 0)));
+        table1.remove(2, 1, List.of(7L));
+        table2.setReads(2, 0, List.of(new EntityTableRead(1, TestEntity.of(1, 0, 0), null)));
+        assertThrows(RuntimeException.class, () -> phial.commit(2, List.of(table1, table2)));
+        assertThat(table1.queryByIndex(0, 1, Long.MAX_VALUE, null, false, null, false).count(), is(100L));
+        assertThat(table2.queryByIndex(0, 1, Long.MAX_VALUE, null, false, null, false).count(), is(1L));
+        table2.rollback(2);
+        // the entities superseded by the commit are counted again
+        for (var to : List.of(100L, 1000L, 10000L)) {
+            var toKey = TestEntity.of(0, to, 0);
+            assertThat(table1.countByIndex(0, indexId, 2, null, false, toKey, false),
+                    is(table1.queryByIndex(0, indexId, 2, null, false, toKey, false).count()));
+        }
+        var aggregate = table1.aggregateByIndex(0, indexId, 2, null, false, null, false);
+        assertThat(aggregate.getCount(), is(100L));
+        assertThat(aggregate.getSum(), is(50500L));
+        assertThat(aggregate.getMax(), is(1000L));
+
+        // later commits are not affected
+        table1.put(3, List.of(TestEntity.of(101, 1010, 0)));
+        phial.commit(3, List.of(table1));
+        table1.closeTransaction(3);
+        assertThat(table1.queryByIndex(0, 1, 3, null, false, null, false).count(), is(101L));
+        phial.shutdown();
+    }
+}
@@ -0,0 +1,152 @@
+package io.phial;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static io.phial.TestEntity.KEY_COMPARATOR;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class SkipListIndexTest {
+    @Test
+    public void testKeyEncoder() {
+        var keys = List.of(new BinaryKeyBuilder().appendLong(Long.MIN_VALUE).appendString("b").build(),
+                new BinaryKeyBuilder().appendLong(-1).appendString("b").build(),
+                new BinaryKeyBuilder().appendLong(0).appendString("").build(),
+                new BinaryKeyBuilder().appendLong(0).appendString("a").build(),
+                new BinaryKeyBuilder().appendLong(0).appendString("a\0").build(),
+                new BinaryKeyBuilder().appendLong(0).appendString("a\0b").appendBoolean(false).build(),
+                new BinaryKeyBuilder().appendLong(0).appendString("a\0b").appendBoolean(true).build(),
+                new BinaryKeyBuilder().appendLong(0).appendString("ab").build(),
+                new BinaryKeyBuilder().appendLong(1).appendString("").build());
+        for (int i = 1; i < keys.size(); ++i) {
+            assertThat(Arrays.compareUnsigned(keys.get(i - 1), keys.get(i)) < 0, is(true));
+        }
+
+        // string keys with an id suffix, as EntityTable encodes non-unique indexes
+        var comparator = new EntityComparator() {
+            @Override
+            public String getKeyString(Entity entity) {
+                return "id:" + entity.getId() + " key:" + ((TestEntity) entity).key;
+            }
+
+            @Override
+            public int compare(Entity entity1, Entity entity2) {
+                var c = Long.toString(((TestEntity) entity1).key).compareTo(Long.toString(((TestEntity) entity2).key));
+                return c == 0 ? Long.compare(entity1.getId(), entity2.getId()) : c;
+            }
+
+            @Override
+            public int hash(Entity entity) {
+                return KEY_COMPARATOR.hash(entity);
+            }
+        };
+        var index = new EntityTableSkipListIndex(false, comparator, null, (entity, builder) ->
+                builder.appendString(Long.toString(((TestEntity) entity).key)).appendLong(entity.getId()));
+        for (long id = 1; id <= 1000; ++id) {
+            index.put(TestEntity.of(id, id % 100, 1), false, false);
+        }
+        assertThat(index.get(0, 1, TestEntity.of(205, 5, 0)).getId(), is(205L));
+        assertThat(index.get(0, 1, TestEntity.of(206, 5, 0)), nullValue());
+        // "5" < "50" < "51" < "6" in string order
+        assertThat(index.query(0, 1, TestEntity.of(Long.MAX_VALUE, 5, 0), false, TestEntity.of(0, 6, 0), false)
+                .map(entity -> ((TestEntity) entity).key)
+                .distinct()
+                .collect(Collectors.toList()), is(List.of(50L, 51L, 52L, 53L, 54L, 55L, 56L, 57L, 58L, 59L)));
+    }
+
+    @Test
+    public void testParallelQuery() {
+        var index = new EntityTableSkipListIndex(true, KEY_COMPARATOR);
+        for (long key = 0; key < 100000; ++key) {
+            index.put(TestEntity.of(key + 1, key, 1), false, false);
+        }
+        var spliterator = index.query(0, 1, null, false, null, false).spliterator();
+        assertThat(spliterator.estimateSize() > 10000, is(true));
+        var prefix = spliterator.trySplit();
+        assertThat(prefix == null, is(false));
+        var prefixKeys = new ArrayList<Long>();
+        prefix.forEachRemaining(entity -> prefixKeys.add(((TestEntity) entity).key));
+        var firstKey = new long[1];
+        spliterator.tryAdvance(entity -> firstKey[0] = ((TestEntity) entity).key);
+        assertThat(prefixKeys.get(prefixKeys.size() - 1) + 1, is(firstKey[0]));
+
+        assertThat(index.query(0, 1, TestEntity.of(0, 100, 0), true, TestEntity.of(0, 90000, 0), false)
+                .parallel()
+                .map(entity -> ((TestEntity) entity).key)
+                .collect(Collectors.toList()), is(LongStream.range(100, 90000).boxed().collect(Collectors.toList())));
+
+        // the patch of a transaction is split at the same keys
+        var transactionIndex = new TransactionEntityTableSkipListIndex(index, null);
+        for (long key = 100000; key < 110000; ++key) {
+            transactionIndex.put(TestEntity.of(key + 1, key, 0), false, false);
+        }
+        transactionIndex.put(TestEntity.of(51, 50, 0), false, false);
+        var keys = transactionIndex.query(0, 1, null, false, null, false)
+                .parallel()
+                .map(entity -> ((TestEntity) entity).key)
+                .collect(Collectors.toList());
+        assertThat(keys, is(LongStream.range(0, 110000).boxed().collect(Collectors.toList())));
+    }
+
+    @Test
+    public void testDescendingQuery() {
+        var index = new EntityTableSkipListIndex(true, KEY_COMPARATOR);
+        for (long key = 0; key < 1000; ++key) {
+            index.put(TestEntity.of(key + 1, key * 2, key % 2 + 1), false, false);
+        }
+        var descendingKeys = index.queryDescending(0, 1, TestEntity.of(0, 8, 0), true, TestEntity.of(0, 20, 0), false)
+                .map(entity -> ((TestEntity) entity).key)
+                .collect(Collectors.toList());
+        assertThat(descendingKeys, is(List.of(16L, 12L, 8L)));
+        assertThat(index.queryDescending(0, 2, null, false, null, false)
+                .limit(3)
+                .map(entity -> ((TestEntity) entity).key)
+                .collect(Collectors.toList()), is(List.of(1998L, 1996L, 1994L)));
+        assertThat(index.queryDescending(0, 2, null, false, TestEntity.of(0, 0, 0), true).count(), is(1L));
+
+        var transactionIndex = new TransactionEntityTableSkipListIndex(index, null);
+        transactionIndex.put(TestEntity.of(2000, 1999, 0), false, false);
+        transactionIndex.put(TestEntity.of(1000, 1998, 0), false, false);
+        assertThat(transactionIndex.queryDescending(0, 2, TestEntity.of(0, 1994, 0), true, null, false)
+                .map(Entity::getId)
+                .collect(Collectors.toList()), is(List.of(2000L, 1000L, 999L, 998L)));
+
+        var bpTreeIndex = new EntityTableBpTreeIndex(true, KEY_COMPARATOR);
+        for (long key = 0; key < 100; ++key) {
+            bpTreeIndex.put(TestEntity.of(key + 1, key, 1), false, false);
+        }
+        assertThat(bpTreeIndex.queryDescending(0, 1, null, false, TestEntity.of(0, 3, 0), false)
+                .map(entity -> ((TestEntity) entity).key)
+                .collect(Collectors.toList()), is(List.of(2L, 1L, 0L)));
+    }
+
+    @Test
+    public void testResumableQuery() {
+        var index = new EntityTableSkipListIndex(true, KEY_COMPARATOR);
+        var entities = new ArrayList<TestEntity>();
+        for (long key = 0; key < 10; ++key) {
+            var entity = TestEntity.of(key + 1, key, 1);
+            entities.add(entity);
+            index.put(entity, false, false);
+        }
+        var spliterator = index.query(0, 1, TestEntity.of(0, 0, 0), false, null, false).spliterator();
+        var keys = new ArrayList<Long>();
+        for (int i = 0; i < 3; ++i) {
+            assertThat(spliterator.tryAdvance(entity -> keys.add(((TestEntity) entity).key)), is(true));
+        }
+        assertThat(keys, is(List.of(1L, 2L, 3L)));
+        // the current base node is unlinked and a new one with the same key is inserted
+        index.remove(entities.get(4));
+        index.put(TestEntity.of(5, 4, 1), false, false);
+        index.remove(entities.get(5));
+        spliterator.forEachRemaining(entity -> keys.add(((TestEntity) entity).key));
+        assertThat(keys, is(List.of(1L, 2L, 3L, 4L, 6L, 7L, 8L, 9L)));
+    }
+}
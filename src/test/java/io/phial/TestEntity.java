@@ -0,0 +1,67 @@
+package io.phial;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+class TestEntity extends AbstractEntity implements EntityUpdate {
+    static final EntityComparator KEY_COMPARATOR = new EntityComparator() {
+        @Override
+        public String getKeyString(Entity entity) {
+            return "key:" + ((TestEntity) entity).key;
+        }
+
+        @Override
+        public int compare(Entity entity1, Entity entity2) {
+            return Long.compare(((TestEntity) entity1).key, ((TestEntity) entity2).key);
+        }
+
+        @Override
+        public int hash(Entity entity) {
+            return Long.hashCode(((TestEntity) entity).key);
+        }
+    };
+
+    static final EntityComparator ID_COMPARATOR = new EntityComparator() {
+        @Override
+        public String getKeyString(Entity entity) {
+            return "id:" + entity.getId();
+        }
+
+        @Override
+        public int compare(Entity entity1, Entity entity2) {
+            return Long.compare(entity1.getId(), entity2.getId());
+        }
+
+        @Override
+        public int hash(Entity entity) {
+            return Long.hashCode(entity.getId());
+        }
+    };
+
+    long key;
+
+    static TestEntity of(long id, long key, long revision) {
+        var entity = new TestEntity();
+        entity.setId(id);
+        entity.setRevision(revision);
+        entity.key = key;
+        return entity;
+    }
+
+    static List<Long> queryKeys(EntityTableSortedIndex index, long revision, Long from, Long to) {
+        return index.query(0,
+                        revision,
+                        from == null ? null : TestEntity.of(0, from, 0),
+                        true,
+                        to == null ? null : TestEntity.of(0, to, 0),
+                        false)
+                .map(entity -> ((TestEntity) entity).key)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public Entity merge(Entity base) {
+        // test entities are always complete
+        return this;
+    }
+}